@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.FilePath;
+import org.jenkinsci.plugins.newrelicnotifier.api.Changelogs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of loading a changelog file from the workspace, by file size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChangelogBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int size;
+
+    @Param({"HEAD", "HEAD_AND_TAIL"})
+    public ChangelogTruncation truncation;
+
+    private File dir;
+
+    private FilePath workspace;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = File.createTempFile("changelog", "benchmark");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, "changelog.txt")),
+                StandardCharsets.UTF_8)) {
+            writer.write(Changelogs.text(size));
+        }
+        workspace = new FilePath(dir);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        workspace.deleteRecursive();
+    }
+
+    @Benchmark
+    public String read() throws IOException, InterruptedException {
+        return ChangelogReader.read(workspace, "changelog.txt", truncation);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading the application list, by number of applications.
+ * <p>
+ * {@link #parse()} only parses a single page held in memory, {@link #getApplications()} fetches all pages from
+ * the in-process {@link NewRelicStubServer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ApplicationListBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int applications;
+
+    private NewRelicStubServer server;
+
+    private NewRelicClientImpl client;
+
+    private byte[] page;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new NewRelicStubServer(applications);
+        client = new NewRelicClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        // a single page with all applications, for parsing without paging
+        try (NewRelicStubServer single = new NewRelicStubServer(Math.min(applications, NewRelicStubServer.PAGE_SIZE))) {
+            try (CloseableHttpResponse response = SharedHttpClient.get(URI.create(single.getUrl()))
+                    .execute(new HttpGet(single.getUrl() + "/v2/applications.json"))) {
+                page = EntityUtils.toByteArray(response.getEntity());
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public List<Application> parse() throws IOException {
+        List<Application> result = new ArrayList<>();
+        ApplicationListReader.read(new InputStreamReader(new ByteArrayInputStream(page), StandardCharsets.UTF_8), result);
+        return result;
+    }
+
+    @Benchmark
+    public List<Application> getApplications() throws IOException {
+        return client.getApplications("benchmark");
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+/**
+ * Generates changelogs for the benchmarks.
+ */
+public final class Changelogs {
+
+    private static final String[] LINES = {
+        "Fix \"quoted\" path handling for C:\\build\\workspace",
+        "Update dependencies",
+        "Merge pull request #1234 from feature/deployments",
+        "\u00dcn\u00efc\u00f6d\u00e9 in commit messages, tabs\tand {\"json\": true}",
+    };
+
+    private Changelogs() {
+    }
+
+    /**
+     * @param length Number of characters
+     * @return A multi-line changelog with characters that need escaping in JSON
+     */
+    public static String text(int length) {
+        StringBuilder sb = new StringBuilder(length + 64);
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append(LINES[i % LINES.length]).append('\n');
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+}
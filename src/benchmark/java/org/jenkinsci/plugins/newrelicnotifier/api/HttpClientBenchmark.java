@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.model.TaskListener;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting the non-blocking HTTP client the notifications are sent with, shared versus built and started for
+ * each call, and of a whole deployment notification against the in-process {@link NewRelicStubServer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HttpClientBenchmark {
+
+    private NewRelicStubServer server;
+
+    private NewRelicClientImpl client;
+
+    private String changelog;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new NewRelicStubServer(0);
+        client = new NewRelicClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        changelog = Changelogs.text(4096);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public CloseableHttpAsyncClient sharedClient() throws IOException {
+        return SharedAsyncHttpClient.get();
+    }
+
+    @Benchmark
+    public CloseableHttpAsyncClient newClient() throws IOException {
+        CloseableHttpAsyncClient httpClient = SharedAsyncHttpClient.build(ProxyRouting.DIRECT,
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                        .setIoThreadCount(SharedAsyncHttpClient.IO_THREADS)
+                        .build())));
+        httpClient.start();
+        httpClient.close();
+        return httpClient;
+    }
+
+    @Benchmark
+    public Deployment createDeployment() throws IOException {
+        return client.createDeployment("benchmark", "1234", "Deployed by Jenkins", "1.0.42", changelog, "jenkins",
+                TaskListener.NULL);
+    }
+}
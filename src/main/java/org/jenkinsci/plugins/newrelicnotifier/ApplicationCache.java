@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.jenkinsci.plugins.newrelicnotifier.api.ApiKeys;
+import org.jenkinsci.plugins.newrelicnotifier.api.Application;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory cache of the applications available for a credential, used when filling the configuration form.
+ * <p>
+ * Entries are keyed by credential ID and hold a fingerprint of the API key, never the key itself, so a changed
+ * key is detected as a miss. The cache is bounded and evicts the least recently used entry. Entries older than
+ * the TTL are still served, while a refresh runs in the background.
+ */
+final class ApplicationCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ApplicationCache.class.getName());
+
+    private final long ttlMillis;
+
+    private final Executor executor;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong staleHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    ApplicationCache(long ttlMillis, final int maxEntries, Executor executor) {
+        this.ttlMillis = ttlMillis;
+        this.executor = executor;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the applications for a credential, loading them if they are not cached yet.
+     *
+     * @param credentialsId ID of the credential holding the API key
+     * @param apiKey New Relic API key
+     * @param client Client used to load the applications
+     * @return The applications available for the credential
+     * @throws IOException if the applications are not cached and could not be loaded
+     */
+    List<Application> get(String credentialsId, String apiKey, NewRelicClient client) throws IOException {
+        String fingerprint = ApiKeys.fingerprint(apiKey);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(credentialsId);
+        }
+        if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+            misses.incrementAndGet();
+            return refresh(credentialsId, apiKey, client);
+        }
+        if (System.currentTimeMillis() - entry.loadedAt >= ttlMillis) {
+            staleHits.incrementAndGet();
+            revalidate(credentialsId, apiKey, client, entry);
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry.applications;
+    }
+
+    /**
+     * Load the applications for a credential and replace any cached entry.
+     *
+     * @param credentialsId ID of the credential holding the API key
+     * @param apiKey New Relic API key
+     * @param client Client used to load the applications
+     * @return The applications available for the credential
+     * @throws IOException if the applications could not be loaded
+     */
+    List<Application> refresh(String credentialsId, String apiKey, NewRelicClient client) throws IOException {
+        List<Application> applications = Collections.unmodifiableList(client.getApplications(apiKey));
+        synchronized (entries) {
+            entries.put(credentialsId, new Entry(ApiKeys.fingerprint(apiKey), applications, System.currentTimeMillis()));
+        }
+        return applications;
+    }
+
+    void invalidate(String credentialsId) {
+        synchronized (entries) {
+            entries.remove(credentialsId);
+        }
+    }
+
+    /**
+     * @return Number of lookups served from a fresh entry
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of lookups served from an expired entry while it was refreshed
+     */
+    long getStaleHits() {
+        return staleHits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Share of lookups served from the cache, between 0 and 1
+     */
+    double getHitRatio() {
+        long served = hits.get() + staleHits.get();
+        long total = served + misses.get();
+        return total > 0 ? served / (double) total : 0;
+    }
+
+    private void revalidate(final String credentialsId, final String apiKey, final NewRelicClient client,
+                            final Entry entry) {
+        synchronized (entry) {
+            if (entry.refreshing) {
+                return;
+            }
+            entry.refreshing = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh(credentialsId, apiKey, client);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to refresh New Relic applications for credentials " + credentialsId, e);
+                } finally {
+                    synchronized (entry) {
+                        entry.refreshing = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final List<Application> applications;
+        private final long loadedAt;
+        private boolean refreshing;
+
+        Entry(String fingerprint, List<Application> applications, long loadedAt) {
+            this.fingerprint = fingerprint;
+            this.applications = applications;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
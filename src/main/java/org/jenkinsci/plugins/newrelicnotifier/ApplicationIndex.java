@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.jenkinsci.plugins.newrelicnotifier.api.ApiKeys;
+import org.jenkinsci.plugins.newrelicnotifier.api.Application;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves application names and patterns to application IDs at build time.
+ * <p>
+ * Each API key has an index of names to IDs, filled from {@code filter[name]} queries to New Relic and kept for a
+ * TTL, so repeated builds resolve without API calls. Patterns may use {@code *} and {@code ?} wildcards; the
+ * longest literal part is sent as the filter and the wildcards are matched locally. A query for an expired or
+ * unknown name runs once per API key and name while concurrent builds wait for it, without holding up builds
+ * resolving other names. Names matching no application, or several, are remembered for a shorter TTL.
+ */
+final class ApplicationIndex {
+
+    private static final long TTL = Long.getLong(ApplicationIndex.class.getName() + ".ttlMillis",
+            TimeUnit.MINUTES.toMillis(10));
+
+    private static final long NEGATIVE_TTL = Long.getLong(ApplicationIndex.class.getName() + ".negativeTtlMillis",
+            TimeUnit.MINUTES.toMillis(1));
+
+    private static final int SIZE = Integer.getInteger(ApplicationIndex.class.getName() + ".size", 100);
+
+    private static final ApplicationIndex INSTANCE = new ApplicationIndex(TTL, NEGATIVE_TTL, SIZE);
+
+    private final long ttlMillis;
+
+    private final long negativeTtlMillis;
+
+    private final Map<String, Index> indexes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    ApplicationIndex(long ttlMillis, final int maxKeys) {
+        this(ttlMillis, Math.min(ttlMillis, NEGATIVE_TTL), maxKeys);
+    }
+
+    ApplicationIndex(long ttlMillis, long negativeTtlMillis, final int maxKeys) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.indexes = new LinkedHashMap<String, Index>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    static ApplicationIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return Whether the application name contains wildcards
+     */
+    static boolean isPattern(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+    }
+
+    /**
+     * Resolve an application name or pattern.
+     *
+     * @param apiKey New Relic API key
+     * @param name Application name, or pattern with {@code *} and {@code ?} wildcards
+     * @param client Client used to query New Relic
+     * @return The ID of the only application matching
+     * @throws IOException if no application or several match, or New Relic could not be queried
+     */
+    String resolve(String apiKey, String name, NewRelicClient client) throws IOException {
+        Index index;
+        synchronized (indexes) {
+            String fingerprint = ApiKeys.fingerprint(apiKey);
+            index = indexes.get(fingerprint);
+            if (index == null) {
+                index = new Index();
+                indexes.put(fingerprint, index);
+            }
+        }
+        while (true) {
+            BasicFuture<Resolution> lookup;
+            boolean leader = false;
+            synchronized (index) {
+                Resolution resolution = index.resolutions.get(name);
+                if (resolution != null && !isExpired(resolution)) {
+                    hits.incrementAndGet();
+                    return resolution.getId();
+                }
+                lookup = index.lookups.get(name);
+                if (lookup == null) {
+                    misses.incrementAndGet();
+                    lookup = new BasicFuture<>(null);
+                    index.lookups.put(name, lookup);
+                    leader = true;
+                }
+            }
+            if (leader) {
+                return query(index, apiKey, name, client, lookup).getId();
+            }
+            // coalesced with the query of another build
+            Resolution shared = await(name, lookup);
+            if (shared != null) {
+                hits.incrementAndGet();
+                return shared.getId();
+            }
+            // that build was interrupted, query again
+        }
+    }
+
+    /**
+     * Query New Relic for a name, outside the lock of the index so other names resolve meanwhile.
+     */
+    private Resolution query(Index index, String apiKey, String name, NewRelicClient client,
+                             BasicFuture<Resolution> lookup) throws IOException {
+        Resolution resolution;
+        try {
+            List<Application> candidates = client.findApplications(apiKey, filter(name));
+            long now = System.currentTimeMillis();
+            Map<String, List<Application>> byName = new HashMap<>();
+            for (Application application : candidates) {
+                List<Application> named = byName.get(application.getName());
+                if (named == null) {
+                    named = new ArrayList<>();
+                    byName.put(application.getName(), named);
+                }
+                named.add(application);
+            }
+            synchronized (index) {
+                for (Map.Entry<String, List<Application>> named : byName.entrySet()) {
+                    index.resolutions.put(named.getKey(), resolution(named.getKey(), named.getValue(), now));
+                }
+                if (isPattern(name)) {
+                    Pattern pattern = toRegex(name);
+                    List<Application> matches = new ArrayList<>();
+                    for (Application application : candidates) {
+                        if (pattern.matcher(application.getName()).matches()) {
+                            matches.add(application);
+                        }
+                    }
+                    resolution = resolution(name, matches, now);
+                    index.resolutions.put(name, resolution);
+                } else if (!byName.containsKey(name)) {
+                    resolution = resolution(name, Collections.<Application>emptyList(), now);
+                    index.resolutions.put(name, resolution);
+                } else {
+                    resolution = index.resolutions.get(name);
+                }
+                index.lookups.remove(name);
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (index) {
+                index.lookups.remove(name);
+            }
+            lookup.failed(e);
+            throw e;
+        }
+        lookup.completed(resolution);
+        return resolution;
+    }
+
+    /**
+     * @return The resolution of the query of another build, null if that build was interrupted
+     */
+    private static Resolution await(String name, BasicFuture<Resolution> lookup) throws IOException {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving New Relic application " + name);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedIOException) {
+                return null;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private boolean isExpired(Resolution resolution) {
+        long age = System.currentTimeMillis() - resolution.resolvedAt;
+        return age >= (resolution.id != null ? ttlMillis : negativeTtlMillis);
+    }
+
+    void invalidateAll() {
+        synchronized (indexes) {
+            indexes.clear();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The longest part of the name without wildcards
+     */
+    static String filter(String name) {
+        String longest = "";
+        for (String part : name.split("[*?]")) {
+            if (part.length() > longest.length()) {
+                longest = part;
+            }
+        }
+        return longest;
+    }
+
+    static Pattern toRegex(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @param name Application name or pattern
+     * @param matches The applications with that name, or matching that pattern
+     */
+    private static Resolution resolution(String name, List<Application> matches, long now) {
+        if (matches.size() == 1) {
+            return new Resolution(matches.get(0).getId(), null, now);
+        }
+        return new Resolution(null, describe(name, matches), now);
+    }
+
+    private static String describe(String name, List<Application> matches) {
+        boolean pattern = isPattern(name);
+        if (matches.isEmpty()) {
+            return (pattern ? "No New Relic application matches " : "No New Relic application named ") + name;
+        }
+        StringBuilder sb = new StringBuilder(pattern ? "Several New Relic applications match "
+                : "Several New Relic applications named ").append(name).append(':');
+        for (Application application : matches) {
+            sb.append(' ').append(application.getName()).append(" (").append(application.getId()).append(')');
+        }
+        return sb.toString();
+    }
+
+    private static final class Index {
+        /**
+         * Application names, and patterns that matched a single application, to IDs.
+         */
+        private final Map<String, Resolution> resolutions = new HashMap<>();
+
+        /**
+         * Queries in flight by name or pattern.
+         */
+        private final Map<String, BasicFuture<Resolution>> lookups = new HashMap<>();
+    }
+
+    /**
+     * The application a name or pattern resolved to, or why it did not resolve.
+     */
+    private static final class Resolution {
+        private final String id;
+        private final String error;
+        private final long resolvedAt;
+
+        Resolution(String id, String error, long resolvedAt) {
+            this.id = id;
+            this.error = error;
+            this.resolvedAt = resolvedAt;
+        }
+
+        String getId() throws IOException {
+            if (id == null) {
+                throw new IOException(error);
+            }
+            return id;
+        }
+    }
+}
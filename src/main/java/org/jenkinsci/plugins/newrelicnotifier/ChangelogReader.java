@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the changelog file of a deployment notification on the node that owns the workspace.
+ * <p>
+ * The file is streamed and never held in memory beyond the New Relic changelog limit. Longer changelogs are
+ * truncated according to a {@link ChangelogTruncation} policy, so only the part that is sent is transferred back
+ * to the controller.
+ */
+final class ChangelogReader extends MasterToSlaveFileCallable<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * New Relic requires the changelog to be shorter than 65535 characters.
+     */
+    static final int MAX_LENGTH = 65534;
+
+    static final String TRUNCATED = "\n[...truncated...]\n";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int MAX_PATH_LENGTH = 4096;
+
+    private final ChangelogTruncation truncation;
+
+    private final int limit;
+
+    private final String path;
+
+    ChangelogReader(ChangelogTruncation truncation, int limit) {
+        this(truncation, limit, null);
+    }
+
+    /**
+     * @param path Path of the changelog file relative to the directory the reader is invoked on, or null to read
+     *             the file it is invoked on
+     */
+    ChangelogReader(ChangelogTruncation truncation, int limit, String path) {
+        this.truncation = truncation != null ? truncation : ChangelogTruncation.HEAD;
+        this.limit = limit;
+        this.path = path;
+    }
+
+    /**
+     * Resolve the changelog of a notification. If the changelog is a relative path naming a file in the workspace,
+     * the contents of that file are used, otherwise the changelog is taken literally. Text that cannot be a
+     * relative path, such as a message with spaces, is used without asking the agent.
+     *
+     * @param workspace The workspace of the build, may be {@code null}
+     * @param changelog The configured changelog, after variable expansion
+     * @param truncation What to keep if the changelog is too long
+     * @return The changelog to send
+     * @throws IOException if the changelog file could not be read
+     * @throws InterruptedException if interrupted while reading the changelog file
+     */
+    static String read(FilePath workspace, String changelog, ChangelogTruncation truncation)
+            throws IOException, InterruptedException {
+        if (changelog == null || changelog.isEmpty()) {
+            return changelog;
+        }
+        if (workspace != null && isRelativePath(changelog)) {
+            String contents = workspace.act(new ChangelogReader(truncation, MAX_LENGTH, changelog));
+            if (contents != null) {
+                return contents;
+            }
+        }
+        return new ChangelogReader(truncation, MAX_LENGTH).read(new StringReader(changelog));
+    }
+
+    /**
+     * @return Whether the changelog may name a file below the workspace: a short relative path without whitespace
+     *         or parent directory references
+     */
+    static boolean isRelativePath(String changelog) {
+        if (changelog.length() >= MAX_PATH_LENGTH || changelog.startsWith("/") || changelog.startsWith("\\")
+                || (changelog.length() > 1 && changelog.charAt(1) == ':')) {
+            return false;
+        }
+        for (int i = 0; i < changelog.length(); i++) {
+            if (Character.isWhitespace(changelog.charAt(i))) {
+                return false;
+            }
+        }
+        for (String segment : changelog.split("[/\\\\]")) {
+            if (segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+        if (path != null) {
+            File root = file.getCanonicalFile();
+            file = new File(root, path).getCanonicalFile();
+            if (!file.toPath().startsWith(root.toPath())) {
+                // a symbolic link pointing out of the workspace
+                return null;
+            }
+        }
+        if (!file.isFile()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return read(reader);
+        }
+    }
+
+    /**
+     * Read at most {@link #limit} characters, truncating according to the policy.
+     */
+    String read(Reader reader) throws IOException {
+        char[] buffer = new char[limit];
+        int length = fill(reader, buffer);
+        char[] chunk = new char[BUFFER_SIZE];
+        int n = reader.read(chunk);
+        if (n < 0) {
+            return new String(buffer, 0, length);
+        }
+
+        int keep = limit - TRUNCATED.length();
+        int headLength;
+        switch (truncation) {
+            case TAIL:
+                headLength = 0;
+                break;
+            case HEAD_AND_TAIL:
+                headLength = keep / 2;
+                break;
+            default:
+                headLength = keep;
+                break;
+        }
+        StringBuilder sb = new StringBuilder(limit);
+        sb.append(buffer, 0, headLength);
+        dropDanglingHighSurrogate(sb);
+        sb.append(TRUNCATED);
+        if (headLength == keep) {
+            return sb.toString();
+        }
+
+        Tail tail = new Tail(keep - headLength);
+        tail.append(buffer, headLength, length - headLength);
+        while (n >= 0) {
+            tail.append(chunk, 0, n);
+            n = reader.read(chunk);
+        }
+        String end = tail.toString();
+        if (!end.isEmpty() && Character.isLowSurrogate(end.charAt(0))) {
+            end = end.substring(1);
+        }
+        return sb.append(end).toString();
+    }
+
+    private static int fill(Reader reader, char[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = reader.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    private static void dropDanglingHighSurrogate(StringBuilder sb) {
+        if (sb.length() > 0 && Character.isHighSurrogate(sb.charAt(sb.length() - 1))) {
+            sb.setLength(sb.length() - 1);
+        }
+    }
+
+    /**
+     * Ring buffer keeping the last characters written to it.
+     */
+    private static final class Tail {
+        private final char[] ring;
+        private int end;
+        private long total;
+
+        Tail(int capacity) {
+            this.ring = new char[capacity];
+        }
+
+        void append(char[] src, int offset, int length) {
+            total += length;
+            if (ring.length == 0 || length == 0) {
+                return;
+            }
+            if (length >= ring.length) {
+                System.arraycopy(src, offset + length - ring.length, ring, 0, ring.length);
+                end = 0;
+                return;
+            }
+            int first = Math.min(length, ring.length - end);
+            System.arraycopy(src, offset, ring, end, first);
+            System.arraycopy(src, offset + first, ring, 0, length - first);
+            end = (end + length) % ring.length;
+        }
+
+        @Override
+        public String toString() {
+            if (total < ring.length) {
+                return new String(ring, 0, end);
+            }
+            return new StringBuilder(ring.length)
+                    .append(ring, end, ring.length - end)
+                    .append(ring, 0, end)
+                    .toString();
+        }
+    }
+}
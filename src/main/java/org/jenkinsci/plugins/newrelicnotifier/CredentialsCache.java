@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+import javax.annotation.CheckForNull;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived cache of resolved credentials, keyed by job and credential ID.
+ * <p>
+ * Looking up credentials walks every credentials store visible to the job, which is slow on deep folder trees.
+ * Only found credentials are cached, so a credential added after a failed lookup is picked up at once. The whole
+ * cache is cleared when the global credentials or a folder are saved, since either may change what a job sees.
+ * Other changes are picked up when entries expire.
+ */
+final class CredentialsCache {
+
+    private static final long TTL = Long.getLong(CredentialsCache.class.getName() + ".ttlMillis",
+            TimeUnit.SECONDS.toMillis(60));
+
+    private static final int SIZE = Integer.getInteger(CredentialsCache.class.getName() + ".size", 500);
+
+    private static final CredentialsCache INSTANCE = new CredentialsCache(TTL, SIZE);
+
+    private final long ttlMillis;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private long generation;
+
+    CredentialsCache(long ttlMillis, final int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static CredentialsCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param owner The job using the credentials
+     * @param source The URI the credentials are used for
+     * @return A resolver looking up each credential ID at most once, for the notifications of one build
+     */
+    Resolver forBuild(Job<?, ?> owner, String source) {
+        return new Resolver(this, owner, source);
+    }
+
+    /**
+     * @see DeploymentNotificationBean#getCredentials(Job, String, String)
+     */
+    @CheckForNull
+    StandardUsernamePasswordCredentials lookup(Job<?, ?> owner, String credentialsId, String source) {
+        String key = owner.getFullName() + '\n' + credentialsId + '\n' + source;
+        long loadedGeneration;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.loadedAt < ttlMillis) {
+                hits.incrementAndGet();
+                return entry.credentials;
+            }
+            loadedGeneration = generation;
+        }
+        misses.incrementAndGet();
+        StandardUsernamePasswordCredentials credentials = DeploymentNotificationBean.getCredentials(owner,
+                credentialsId, source);
+        if (credentials != null) {
+            synchronized (entries) {
+                // skip if the stores changed during the lookup
+                if (generation == loadedGeneration) {
+                    entries.put(key, new Entry(credentials, System.currentTimeMillis()));
+                }
+            }
+        }
+        return credentials;
+    }
+
+    void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            generation++;
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Share of lookups served from the cache, between 0 and 1
+     */
+    double getHitRatio() {
+        long served = hits.get();
+        long total = served + misses.get();
+        return total > 0 ? served / (double) total : 0;
+    }
+
+    /**
+     * Resolves the credentials of one build, each distinct ID once.
+     */
+    static final class Resolver {
+
+        private final CredentialsCache cache;
+        private final Job<?, ?> owner;
+        private final String source;
+        private final Map<String, StandardUsernamePasswordCredentials> resolved = new HashMap<>();
+
+        private Resolver(CredentialsCache cache, Job<?, ?> owner, String source) {
+            this.cache = cache;
+            this.owner = owner;
+            this.source = source;
+        }
+
+        @CheckForNull
+        StandardUsernamePasswordCredentials get(String credentialsId) {
+            if (resolved.containsKey(credentialsId)) {
+                return resolved.get(credentialsId);
+            }
+            StandardUsernamePasswordCredentials credentials = cache.lookup(owner, credentialsId, source);
+            resolved.put(credentialsId, credentials);
+            return credentials;
+        }
+    }
+
+    private static final class Entry {
+        private final StandardUsernamePasswordCredentials credentials;
+        private final long loadedAt;
+
+        Entry(StandardUsernamePasswordCredentials credentials, long loadedAt) {
+            this.credentials = credentials;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Clears the cache when a credentials store may have changed.
+     */
+    @Extension
+    public static final class StoreListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof SystemCredentialsProvider || (o instanceof ItemGroup && o instanceof Item)) {
+                get().invalidateAll();
+            }
+        }
+    }
+}
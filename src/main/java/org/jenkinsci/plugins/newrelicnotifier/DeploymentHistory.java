@@ -0,0 +1,582 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local history of the deployments recorded in New Relic, answering which build last marked an application.
+ * <p>
+ * Deployments are appended as compact JSON lines to a single file under {@code JENKINS_HOME}, in the order they are
+ * recorded. The file is indexed in memory by blocks of {@link #BLOCK_RECORDS} records, each keeping its byte range,
+ * its time range and a Bloom filter of the application IDs and revisions in it, so a query only reads the blocks
+ * that may hold a match. The filters take about 2 bytes per record; blocks are never merged, as a filter sized for
+ * one block would match nearly everything once it covers several. Instead, once the index holds more than
+ * {@link #MAX_BLOCKS} full blocks, the oldest quarter of the records is moved to {@code history.archive.jsonl}, which
+ * is kept for reference but no longer queried. This bounds both the index and the file it covers.
+ * <p>
+ * Recording is serialized, but queries read the last published snapshot of the index and never wait for a build
+ * recording a deployment. A snapshot only covers records fully written to the file, so appends after it are not read.
+ * Only moving records to the archive, which changes the offsets of the remaining ones, waits for running queries.
+ */
+public final class DeploymentHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentHistory.class.getName());
+
+    private static final Gson GSON = new Gson();
+
+    private static final String PREFIX = DeploymentHistory.class.getName();
+
+    static final int BLOCK_RECORDS = 256;
+
+    static final int MAX_BLOCKS = Integer.getInteger(PREFIX + ".maxBlocks", 1024);
+
+    private static final int BLOOM_WORDS = 64;
+
+    private static final int BLOOM_HASHES = 3;
+
+    /**
+     * Number of recently recorded deployment IDs remembered to record each deployment once.
+     */
+    private static final int RECENT_DEPLOYMENTS = 1024;
+
+    private static DeploymentHistory instance;
+
+    private final File file;
+
+    private final File archive;
+
+    private final int maxBlocks;
+
+    /**
+     * Held by queries while they read the file, and exclusively while records are moved to the archive.
+     */
+    private final ReadWriteLock offsets = new ReentrantReadWriteLock();
+
+    /**
+     * Full blocks, oldest first. Only changed by the writer, which publishes copies in {@link #snapshot}.
+     */
+    private final List<Block> blocks = new ArrayList<>();
+
+    /**
+     * Block being filled, or null.
+     */
+    private Block open;
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private long length;
+
+    private boolean partial;
+
+    private long lastTime;
+
+    /**
+     * IDs of the deployments recorded last. Coalesced notifications share one deployment, which the first of them
+     * to finish records.
+     */
+    private final Map<String, Boolean> recent = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_DEPLOYMENTS;
+        }
+    };
+
+    DeploymentHistory(File file) {
+        this(file, MAX_BLOCKS);
+    }
+
+    /**
+     * @param maxBlocks Number of full blocks kept in the index before the oldest records are archived
+     */
+    DeploymentHistory(File file, int maxBlocks) {
+        this.file = file;
+        this.archive = new File(file.getParentFile(), file.getName().replaceFirst("\\.jsonl$", "") + ".archive.jsonl");
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * @return The history of this Jenkins instance, indexed on first use
+     */
+    public static synchronized DeploymentHistory get() {
+        if (instance == null) {
+            File dir = new File(Jenkins.getActiveInstance().getRootDir(), "newrelic-deployment-notifier");
+            DeploymentHistory history = new DeploymentHistory(new File(dir, "history.jsonl"));
+            history.load();
+            instance = history;
+        }
+        return instance;
+    }
+
+    /**
+     * Record a deployment made by a build, once per deployment. Failures are logged, as the deployment itself has
+     * succeeded.
+     */
+    void record(Run<?, ?> run, String applicationId, String revision, String user, Deployment deployment) {
+        record(run.getParent().getFullName(), run.getNumber(), applicationId, revision, user, deployment);
+    }
+
+    /**
+     * Record a deployment made by a build, unless it was recorded already for another build whose notification it
+     * was coalesced with. Failures are logged, as the deployment itself has succeeded.
+     */
+    synchronized void record(String job, int build, String applicationId, String revision, String user,
+                             Deployment deployment) {
+        if (deployment != null && deployment.getId() != null && recent.put(deployment.getId(), Boolean.TRUE) != null) {
+            return;
+        }
+        Entry entry = new Entry();
+        // keep the file in time order even if the clock goes back
+        entry.t = Math.max(System.currentTimeMillis(), lastTime);
+        entry.a = applicationId;
+        entry.r = revision;
+        entry.u = user;
+        entry.d = deployment != null ? deployment.getId() : null;
+        entry.j = job;
+        entry.b = build;
+        try {
+            append(entry);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record New Relic deployment of application " + applicationId
+                    + " in " + file, e);
+        }
+    }
+
+    /**
+     * Find the most recent deployments matching all given criteria.
+     *
+     * @param applicationId Application ID, or null for all applications
+     * @param revision Exact revision, or null for all revisions
+     * @param from Earliest time in milliseconds, inclusive
+     * @param to Latest time in milliseconds, inclusive
+     * @param limit Maximum number of deployments to return
+     * @return The matching deployments, newest first
+     */
+    public List<Entry> query(String applicationId, String revision, long from, long to, int limit) {
+        List<Entry> result = new ArrayList<>();
+        String key = applicationId == null ? null
+                : revision == null ? applicationKey(applicationId) : revisionKey(applicationId, revision);
+        offsets.readLock().lock();
+        try {
+            collect(snapshot, key, applicationId, revision, from, to, limit, result);
+        } finally {
+            offsets.readLock().unlock();
+        }
+        return result;
+    }
+
+    private void collect(Snapshot index, String key, String applicationId, String revision, long from, long to,
+                         int limit, List<Entry> result) {
+        for (int i = index.size() - 1; i >= 0 && result.size() < limit; i--) {
+            Block block = index.get(i);
+            if (block.lastTime < from) {
+                // the blocks are in time order, all older ones are out of range as well
+                break;
+            }
+            if (block.firstTime > to || (key != null && !block.mightContain(key))) {
+                continue;
+            }
+            List<Entry> matches = new ArrayList<>();
+            try {
+                for (Entry entry : read(block)) {
+                    if (entry.t >= from && entry.t <= to
+                            && (applicationId == null || applicationId.equals(entry.a))
+                            && (revision == null || revision.equals(entry.r))) {
+                        matches.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read New Relic deployment history " + file, e);
+                break;
+            }
+            for (int k = matches.size() - 1; k >= 0 && result.size() < limit; k--) {
+                result.add(matches.get(k));
+            }
+        }
+    }
+
+    /**
+     * @return Number of index blocks, for tests and diagnostics
+     */
+    int getBlockCount() {
+        return snapshot.size();
+    }
+
+    synchronized void load() {
+        blocks.clear();
+        open = null;
+        snapshot = Snapshot.EMPTY;
+        length = 0;
+        partial = false;
+        lastTime = 0;
+        if (!file.isFile()) {
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c != '\n') {
+                    line.write(c);
+                    continue;
+                }
+                long start = length;
+                length += line.size() + 1;
+                Entry entry = parse(line.toString("UTF-8"));
+                line.reset();
+                if (entry != null) {
+                    index(entry, start);
+                }
+            }
+            // a record only partially written before a crash is ignored, and ended with a line break on append
+            length += line.size();
+            partial = line.size() > 0;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load New Relic deployment history " + file, e);
+        }
+        publish();
+        archiveIfFull();
+    }
+
+    private void append(Entry entry) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        byte[] bytes = (GSON.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            if (partial) {
+                out.write('\n');
+                length++;
+                partial = false;
+            }
+            out.write(bytes);
+        } catch (IOException e) {
+            // part of the record may have been written, start the next one on a new line
+            length = file.length();
+            partial = true;
+            throw e;
+        }
+        long start = length;
+        length += bytes.length;
+        index(entry, start);
+        publish();
+        archiveIfFull();
+    }
+
+    /**
+     * Move the oldest quarter of the records to the archive once the index holds too many blocks. Failures are
+     * logged, the records then stay in the history until the next attempt.
+     */
+    private void archiveIfFull() {
+        if (blocks.size() <= maxBlocks) {
+            return;
+        }
+        int kept = Math.max(1, maxBlocks - maxBlocks / 4);
+        try {
+            archive(blocks.size() - kept);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to archive old New Relic deployments from " + file + " to " + archive, e);
+        }
+    }
+
+    /**
+     * Move the records of the oldest blocks to the end of the archive, then replace the history with the others.
+     */
+    private void archive(int count) throws IOException {
+        long cut = blocks.get(count).offset;
+        File next = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel in = new FileInputStream(file).getChannel();
+             FileChannel out = new FileOutputStream(archive, true).getChannel();
+             FileChannel rest = new FileOutputStream(next).getChannel()) {
+            transfer(in, 0, cut, out);
+            transfer(in, cut, in.size() - cut, rest);
+            rest.force(false);
+        }
+        offsets.writeLock().lock();
+        try {
+            Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            List<Block> remaining = new ArrayList<>();
+            for (Block block : blocks.subList(count, blocks.size())) {
+                remaining.add(block.shift(cut));
+            }
+            blocks.clear();
+            blocks.addAll(remaining);
+            open = open == null ? null : open.shift(cut);
+            length -= cut;
+            publish();
+        } finally {
+            offsets.writeLock().unlock();
+        }
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        for (long done = 0; done < count; ) {
+            done += in.transferTo(position + done, count - done, out);
+        }
+    }
+
+    /**
+     * Add a record written at the given offset to the index.
+     */
+    private void index(Entry entry, long offset) {
+        if (open == null || open.records >= BLOCK_RECORDS) {
+            if (open != null) {
+                blocks.add(open);
+            }
+            open = new Block(offset, entry.t);
+        }
+        Block block = open;
+        block.records++;
+        block.end = length;
+        block.lastTime = Math.max(block.lastTime, entry.t);
+        lastTime = Math.max(lastTime, entry.t);
+        if (entry.a != null) {
+            block.add(applicationKey(entry.a));
+            block.add(revisionKey(entry.a, entry.r));
+        }
+    }
+
+    /**
+     * Make the records indexed so far visible to queries. The full blocks are only copied when one was added, the
+     * block being filled is copied every time as it keeps changing.
+     */
+    private void publish() {
+        List<Block> full = snapshot.full;
+        if (full.size() != blocks.size()) {
+            full = Collections.unmodifiableList(new ArrayList<>(blocks));
+        }
+        snapshot = new Snapshot(full, open == null ? null : open.copy());
+    }
+
+    private List<Entry> read(Block block) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(block.offset);
+            InputStream stream = new BufferedInputStream(in);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (long pos = block.offset; pos < block.end; pos++) {
+                int c = stream.read();
+                if (c == -1) {
+                    break;
+                }
+                if (c != '\n') {
+                    line.write(c);
+                    continue;
+                }
+                Entry entry = parse(line.toString("UTF-8"));
+                line.reset();
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private Entry parse(String line) {
+        if (line.isEmpty()) {
+            return null;
+        }
+        try {
+            return GSON.fromJson(line, Entry.class);
+        } catch (JsonParseException e) {
+            // most likely a record only partially written before a crash
+            LOGGER.log(Level.FINE, "Skipping malformed record in " + file, e);
+            return null;
+        }
+    }
+
+    private static String applicationKey(String applicationId) {
+        return applicationId;
+    }
+
+    private static String revisionKey(String applicationId, String revision) {
+        return applicationId + '\u0000' + revision;
+    }
+
+    /**
+     * Index of a range of consecutive records.
+     */
+    private static final class Block {
+        private final long offset;
+        private final long firstTime;
+        private final long[] bloom = new long[BLOOM_WORDS];
+        private long end;
+        private long lastTime;
+        private int records;
+
+        Block(long offset, long firstTime) {
+            this.offset = offset;
+            this.firstTime = firstTime;
+            this.lastTime = firstTime;
+        }
+
+        void add(String key) {
+            int h1 = key.hashCode();
+            int h2 = mix(h1);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % (BLOOM_WORDS * 64);
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(String key) {
+            int h1 = key.hashCode();
+            int h2 = mix(h1);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % (BLOOM_WORDS * 64);
+                if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Block copy() {
+            return shift(0);
+        }
+
+        /**
+         * @return A copy of the block for a file whose first bytes were removed
+         */
+        Block shift(long removed) {
+            Block block = new Block(offset - removed, firstTime);
+            block.end = end - removed;
+            block.lastTime = lastTime;
+            block.records = records;
+            System.arraycopy(bloom, 0, block.bloom, 0, BLOOM_WORDS);
+            return block;
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            return (h ^ (h >>> 16)) | 1;
+        }
+    }
+
+    /**
+     * Index as seen by queries, never modified once published.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.<Block>emptyList(), null);
+
+        private final List<Block> full;
+        private final Block open;
+
+        Snapshot(List<Block> full, Block open) {
+            this.full = full;
+            this.open = open;
+        }
+
+        int size() {
+            return open == null ? full.size() : full.size() + 1;
+        }
+
+        /**
+         * @return The block at the given index, oldest first
+         */
+        Block get(int index) {
+            return index < full.size() ? full.get(index) : open;
+        }
+    }
+
+    /**
+     * A deployment recorded in New Relic. The short field names keep the history file compact.
+     */
+    public static final class Entry {
+        private long t;
+        private String a;
+        private String r;
+        private String d;
+        private String j;
+        private int b;
+        private String u;
+
+        public Date getTime() {
+            return new Date(t);
+        }
+
+        public long getTimeMillis() {
+            return t;
+        }
+
+        public String getApplicationId() {
+            return a;
+        }
+
+        public String getRevision() {
+            return r;
+        }
+
+        public String getDeploymentId() {
+            return d;
+        }
+
+        /**
+         * @return Full name of the job whose build made the deployment
+         */
+        public String getJob() {
+            return j;
+        }
+
+        public int getBuild() {
+            return b;
+        }
+
+        public String getUser() {
+            return u;
+        }
+    }
+}
@@ -32,23 +32,31 @@ import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.Job;
+import hudson.model.Run;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
+import jenkins.util.Timer;
 import org.jenkinsci.plugins.newrelicnotifier.api.Application;
 import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
 import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
+import org.jenkinsci.plugins.newrelicnotifier.api.RetryPolicy;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.annotation.CheckForNull;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Bean to hold each deployment notification configuration.
@@ -61,6 +69,10 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
     private final String revision;
     private final String changelog;
     private final String user;
+    private ChangelogTruncation changelogTruncation;
+    private ChangelogSource changelogSource;
+    private String changelogFormat;
+    private String applicationName;
 
     @DataBoundConstructor
     public DeploymentNotificationBean(String apiKey, String applicationId, String description, String revision, String changelog, String user) {
@@ -97,6 +109,87 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
         return user;
     }
 
+    public ChangelogTruncation getChangelogTruncation() {
+        return changelogTruncation != null ? changelogTruncation : ChangelogTruncation.HEAD;
+    }
+
+    @DataBoundSetter
+    public void setChangelogTruncation(ChangelogTruncation changelogTruncation) {
+        this.changelogTruncation = changelogTruncation;
+    }
+
+    /**
+     * @return Name or pattern of the application, resolved at build time instead of the application ID if set
+     */
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    @DataBoundSetter
+    public void setApplicationName(String applicationName) {
+        this.applicationName = applicationName;
+    }
+
+    /**
+     * Resolve the application to notify. If an application name or pattern is set, it is looked up at build time,
+     * otherwise the selected application ID is used.
+     *
+     * @param env The environment of the build
+     * @param client Client used to look up application names
+     * @param apiKey New Relic API key
+     * @return The ID of the application to notify
+     * @throws IOException if the name does not match exactly one application or could not be looked up
+     */
+    public String resolveApplicationId(EnvVars env, NewRelicClient client, String apiKey) throws IOException {
+        String name = applicationName != null ? env.expand(applicationName).trim() : "";
+        if (name.isEmpty()) {
+            return getApplicationId();
+        }
+        return ApplicationIndex.get().resolve(apiKey, name, client);
+    }
+
+    public ChangelogSource getChangelogSource() {
+        return changelogSource != null ? changelogSource : ChangelogSource.TEXT;
+    }
+
+    @DataBoundSetter
+    public void setChangelogSource(ChangelogSource changelogSource) {
+        this.changelogSource = changelogSource;
+    }
+
+    public String getChangelogFormat() {
+        return changelogFormat != null && !changelogFormat.isEmpty() ? changelogFormat : ScmChangelog.DEFAULT_FORMAT;
+    }
+
+    @DataBoundSetter
+    public void setChangelogFormat(String changelogFormat) {
+        this.changelogFormat = changelogFormat;
+    }
+
+    /**
+     * Resolve the changelog to send, from the SCM changes recorded for the build or from the configured text or
+     * workspace file. Builds that do not record SCM changes, like Pipeline runs, use the configured changelog.
+     *
+     * @param env The environment of the build
+     * @param run The build being notified
+     * @param workspace The workspace of the build, may be {@code null}
+     * @param applicationId The application being notified
+     * @return The changelog to send
+     * @throws IOException if the changelog could not be read
+     * @throws InterruptedException if interrupted while reading the changelog file
+     */
+    public String readChangelog(EnvVars env, Run<?, ?> run, FilePath workspace, String applicationId)
+            throws IOException, InterruptedException {
+        if (getChangelogSource() != ChangelogSource.TEXT) {
+            String changelog = ScmChangelog.read(run, applicationId, getChangelogSource(),
+                    getChangelogFormat(), getChangelogTruncation());
+            if (changelog != null) {
+                return changelog;
+            }
+        }
+        return ChangelogReader.read(workspace, getChangelog(env), getChangelogTruncation());
+    }
+
     public String getDescription(EnvVars env) {
         return env.expand(getDescription());
     }
@@ -128,6 +221,23 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
     @Extension
     public static final class DescriptorImpl extends Descriptor<DeploymentNotificationBean> {
 
+        private static final long CACHE_TTL = Long.getLong(DescriptorImpl.class.getName() + ".cacheTtlMillis",
+                TimeUnit.MINUTES.toMillis(10));
+
+        private static final int CACHE_SIZE = Integer.getInteger(DescriptorImpl.class.getName() + ".cacheSize", 100);
+
+        private final transient ApplicationCache applications = new ApplicationCache(CACHE_TTL, CACHE_SIZE,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        Timer.get().submit(command);
+                    }
+                });
+
+        ApplicationCache getApplicationCache() {
+            return applications;
+        }
+
         public ListBoxModel doFillApiKeyItems(@AncestorInPath Job<?,?> owner) {
             if (owner == null || !owner.hasPermission(Item.CONFIGURE)) {
                 return new ListBoxModel();
@@ -151,7 +261,7 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
                 NewRelicClient client = getClient();
                 UsernamePasswordCredentials credentials = getCredentials(owner, apiKey, client.getApiEndpoint());
                 if (credentials != null) {
-                    for (Application application : client.getApplications(Secret.toString(credentials.getPassword()))) {
+                    for (Application application : applications.get(apiKey, Secret.toString(credentials.getPassword()), client)) {
                         items.add(application.getName(), application.getId());
                     }
                 }
@@ -159,8 +269,32 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
             return items;
         }
 
-        public FormValidation doCheckApplicationId(@QueryParameter("applicationId") String applicationId) {
-            if (applicationId == null || applicationId.length() == 0) {
+        @RequirePOST
+        public FormValidation doRefreshApplications(@AncestorInPath Job<?,?> owner, @QueryParameter("apiKey") final String apiKey) {
+            if (owner == null || !owner.hasPermission(Item.CONFIGURE)) {
+                return FormValidation.ok();
+            }
+            if (apiKey == null || apiKey.length() == 0) {
+                return FormValidation.error("Missing API Key");
+            }
+            NewRelicClient client = getClient();
+            UsernamePasswordCredentials credentials = getCredentials(owner, apiKey, client.getApiEndpoint());
+            if (credentials == null) {
+                applications.invalidate(apiKey);
+                return FormValidation.error("Invalid credentials");
+            }
+            try {
+                int count = applications.refresh(apiKey, Secret.toString(credentials.getPassword()), client).size();
+                return FormValidation.ok("Found " + count + " applications. Reselect the API key to update the list.");
+            } catch (IOException e) {
+                return FormValidation.error(e, "Failed to refresh applications");
+            }
+        }
+
+        public FormValidation doCheckApplicationId(@QueryParameter("applicationId") String applicationId,
+                                                   @QueryParameter("applicationName") String applicationName) {
+            if ((applicationId == null || applicationId.length() == 0)
+                    && (applicationName == null || applicationName.trim().length() == 0)) {
                 return FormValidation.error("No applications!");
             }
             return FormValidation.ok();
@@ -173,7 +307,7 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
 
         // help testing
         public NewRelicClient getClient() {
-            return new NewRelicClientImpl();
+            return new NewRelicClientImpl(RetryPolicy.DEFAULT, NewRelicGlobalConfiguration.timeouts());
         }
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable queue of deployment notifications waiting to be delivered asynchronously.
+ * <p>
+ * The queue is an append-only journal of JSON lines under {@code JENKINS_HOME}. Queued notifications are written
+ * as {@code add} records, failed delivery attempts as {@code attempt} records and delivered ones as {@code done}
+ * records, so the pending notifications and their attempt counts can be replayed after a restart. The journal is
+ * compacted once it holds more delivered than pending notifications.
+ */
+final class DeploymentOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentOutbox.class.getName());
+
+    private static final Gson GSON = new Gson();
+
+    private static final int COMPACT_THRESHOLD = 100;
+
+    private static DeploymentOutbox instance;
+
+    private final File file;
+
+    private final Map<String, QueuedNotification> pending = new LinkedHashMap<>();
+
+    private int delivered;
+
+    DeploymentOutbox(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The outbox of this Jenkins instance, loaded from disk on first use
+     */
+    static synchronized DeploymentOutbox get() {
+        if (instance == null) {
+            File dir = new File(Jenkins.getActiveInstance().getRootDir(), "newrelic-deployment-notifier");
+            DeploymentOutbox outbox = new DeploymentOutbox(new File(dir, "outbox.jsonl"));
+            outbox.load();
+            instance = outbox;
+        }
+        return instance;
+    }
+
+    synchronized void add(QueuedNotification notification) throws IOException {
+        append(Record.add(notification));
+        pending.put(notification.getId(), notification);
+    }
+
+    /**
+     * Mark a notification as delivered, or as given up on, and remove it from the queue.
+     */
+    synchronized void remove(String id) throws IOException {
+        if (pending.remove(id) == null) {
+            return;
+        }
+        append(Record.done(id));
+        delivered++;
+        if (delivered >= COMPACT_THRESHOLD && delivered > pending.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Record a failed attempt to deliver a notification.
+     *
+     * @return The number of failed attempts so far, 0 if the notification is no longer queued
+     */
+    synchronized int failed(String id) throws IOException {
+        QueuedNotification notification = pending.get(id);
+        if (notification == null) {
+            return 0;
+        }
+        int attempts = notification.getAttempts() + 1;
+        append(Record.attempt(id, attempts));
+        notification.setAttempts(attempts);
+        return attempts;
+    }
+
+    /**
+     * @param max Maximum number of notifications to return
+     * @return The oldest pending notifications
+     */
+    synchronized List<QueuedNotification> peek(int max) {
+        List<QueuedNotification> result = new ArrayList<>(Math.min(max, pending.size()));
+        for (QueuedNotification notification : pending.values()) {
+            if (result.size() >= max) {
+                break;
+            }
+            result.add(notification);
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    synchronized void load() {
+        pending.clear();
+        delivered = 0;
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Record record = GSON.fromJson(line, Record.class);
+                    if (Record.ADD.equals(record.op) && record.notification != null) {
+                        pending.put(record.notification.getId(), record.notification);
+                    } else if (Record.DONE.equals(record.op) && pending.remove(record.id) != null) {
+                        delivered++;
+                    } else if (Record.ATTEMPT.equals(record.op) && record.attempts != null
+                            && pending.containsKey(record.id)) {
+                        pending.get(record.id).setAttempts(record.attempts);
+                    }
+                } catch (JsonParseException e) {
+                    // most likely a record only partially written before a crash
+                    LOGGER.log(Level.WARNING, "Skipping malformed record in " + file, e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load New Relic deployment outbox " + file, e);
+        }
+    }
+
+    private void append(Record record) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write((GSON.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getChannel().force(false);
+        }
+    }
+
+    private void compact() throws IOException {
+        AtomicFileWriter writer = new AtomicFileWriter(file, "UTF-8");
+        try {
+            for (QueuedNotification notification : pending.values()) {
+                writer.write(GSON.toJson(Record.add(notification)));
+                writer.write('\n');
+            }
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+        delivered = 0;
+    }
+
+    private static final class Record {
+        private static final String ADD = "add";
+        private static final String DONE = "done";
+        private static final String ATTEMPT = "attempt";
+
+        private String op;
+        private String id;
+        private QueuedNotification notification;
+        private Integer attempts;
+
+        static Record add(QueuedNotification notification) {
+            Record record = new Record();
+            record.op = ADD;
+            record.id = notification.getId();
+            record.notification = notification;
+            return record;
+        }
+
+        static Record done(String id) {
+            Record record = new Record();
+            record.op = DONE;
+            record.id = id;
+            return record;
+        }
+
+        static Record attempt(String id, int attempts) {
+            Record record = new Record();
+            record.op = ATTEMPT;
+            record.id = id;
+            record.attempts = attempts;
+            return record;
+        }
+    }
+}
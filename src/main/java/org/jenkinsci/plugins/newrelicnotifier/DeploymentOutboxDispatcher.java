@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.BuildListener;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.CircuitOpenException;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentRejectedException;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClientImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the notifications queued in the {@link DeploymentOutbox} in the background.
+ * <p>
+ * Each run takes a batch of the oldest notifications and sends them concurrently. Failed notifications stay in
+ * the outbox and are retried on the next run until {@link #MAX_ATTEMPTS} is reached, counting the attempts made
+ * before a restart. Notifications New Relic rejects as invalid are given up at once. The outcome is recorded on
+ * the {@link DeploymentStatusAction} of the build that queued the notification.
+ * <p>
+ * Besides the periodic runs, a run is started whenever a notification is queued. Runs never overlap, a
+ * notification queued during a run is delivered by another run right after it. Runs wait for their batches on
+ * the thread of this periodic work, never on the {@link NotificationDispatcher} pool sending the notifications.
+ */
+@Extension
+public class DeploymentOutboxDispatcher extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentOutboxDispatcher.class.getName());
+
+    private static final int BATCH_SIZE = 50;
+
+    private static final int CONCURRENCY = 4;
+
+    private static final long BATCH_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * Runs requested since the run in progress started its last pass over the outbox.
+     */
+    private final AtomicInteger requested = new AtomicInteger();
+
+    public DeploymentOutboxDispatcher() {
+        super("New Relic deployment outbox");
+    }
+
+    /**
+     * Deliver queued notifications now rather than on the next scheduled run.
+     */
+    static void trigger() {
+        DeploymentOutboxDispatcher dispatcher = PeriodicWork.all().get(DeploymentOutboxDispatcher.class);
+        if (dispatcher != null && dispatcher.requested.getAndIncrement() == 0) {
+            // skipped while a run is in progress, which then runs again; one just ending leaves the
+            // notification for the next scheduled run
+            dispatcher.doAperiodicRun();
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(30);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        drain(listener);
+    }
+
+    /**
+     * Deliver until no run was requested during the last one.
+     */
+    private synchronized void drain(TaskListener listener) {
+        do {
+            requested.set(0);
+            try {
+                deliverAll(listener);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to deliver queued New Relic deployment notifications", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        } while (requested.get() > 0);
+    }
+
+    private void deliverAll(TaskListener listener) throws IOException, InterruptedException {
+        DeploymentOutbox outbox = DeploymentOutbox.get();
+        List<QueuedNotification> batch = outbox.peek(BATCH_SIZE);
+        while (!batch.isEmpty()) {
+            if (!deliver(outbox, batch, new StreamBuildListener(listener.getLogger()))) {
+                // something failed, leave the rest for the next run
+                return;
+            }
+            batch = outbox.peek(BATCH_SIZE);
+        }
+    }
+
+    private boolean deliver(DeploymentOutbox outbox, List<QueuedNotification> batch, final BuildListener listener)
+            throws IOException, InterruptedException {
+        final NewRelicAsyncClient client = getClient();
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        List<QueuedNotification> sent = new ArrayList<>();
+        List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+        for (final QueuedNotification n : batch) {
+            Job<?, ?> job = jenkins.getItemByFullName(n.getJob(), Job.class);
+            UsernamePasswordCredentials credentials = job == null ? null
+                    : CredentialsCache.get().lookup(job, n.getCredentialsId(), client.getApiEndpoint());
+            if (credentials == null) {
+                giveUp(outbox, n, "Job or credentials no longer available");
+                continue;
+            }
+            final String apiKey = Secret.toString(credentials.getPassword());
+            sent.add(n);
+            final String key = SingleFlight.key(apiKey, n.getApplicationId(), n.getRevision(), n.getDescription());
+            tasks.add(new NotificationDispatcher.Task() {
+                @Override
+                public Future<Deployment> start(FutureCallback<Deployment> callback) {
+                    SingleFlight.Seat seat = SingleFlight.join(key, new NotificationDispatcher.Task() {
+                        @Override
+                        public Future<Deployment> start(FutureCallback<Deployment> callback) {
+                            return client.createDeployment(apiKey, n.getApplicationId(), n.getDescription(),
+                                    n.getRevision(), n.getChangelog(), n.getUser(), listener, callback);
+                        }
+                    }, callback);
+                    if (seat.isCoalesced()) {
+                        listener.getLogger().println("New Relic notification coalesced with an identical one in "
+                                + "flight. Application ID: " + n.getApplicationId());
+                    }
+                    return seat;
+                }
+            });
+        }
+
+        boolean allDelivered = true;
+        List<NotificationDispatcher.Outcome> outcomes = NotificationDispatcher.dispatch(tasks, CONCURRENCY, BATCH_TIMEOUT);
+        for (int i = 0; i < outcomes.size(); i++) {
+            QueuedNotification n = sent.get(i);
+            NotificationDispatcher.Outcome outcome = outcomes.get(i);
+            if (outcome.isSuccess()) {
+                outbox.remove(n.getId());
+                updateStatus(n, DeploymentStatusAction.Status.DELIVERED, null);
+                DeploymentHistory.get().record(n.getJob(), n.getBuild(), n.getApplicationId(), n.getRevision(),
+                        n.getUser(), outcome.getDeployment());
+                continue;
+            }
+            allDelivered = false;
+            if (outcome.getCause() instanceof CircuitOpenException) {
+                // New Relic is known to be unavailable, this does not count as an attempt
+                updateStatus(n, DeploymentStatusAction.Status.PENDING, outcome.getCause().getMessage());
+                continue;
+            }
+            DeploymentRejectedException rejection = outcome.getRejection();
+            String message = outcome.isTimedOut() ? "Batch deadline expired"
+                    : rejection != null ? "Rejected by New Relic: " + rejection.getMessage()
+                    : outcome.getCause() != null ? outcome.getCause().toString() : "Rejected by New Relic";
+            if (outcome.getCause() instanceof RuntimeException || (rejection != null && rejection.isPermanent())) {
+                // invalid notifications will not get any better by retrying
+                giveUp(outbox, n, message);
+                continue;
+            }
+            int attempt = outbox.failed(n.getId());
+            if (attempt >= MAX_ATTEMPTS) {
+                giveUp(outbox, n, message);
+            } else {
+                updateStatus(n, DeploymentStatusAction.Status.PENDING, "Attempt " + attempt + " failed: " + message);
+            }
+        }
+        return allDelivered;
+    }
+
+    private void giveUp(DeploymentOutbox outbox, QueuedNotification n, String message) throws IOException {
+        LOGGER.log(Level.WARNING, "Giving up New Relic deployment notification for application {0} from {1} #{2}: {3}",
+                new Object[]{n.getApplicationId(), n.getJob(), n.getBuild(), message});
+        outbox.remove(n.getId());
+        updateStatus(n, DeploymentStatusAction.Status.FAILED, message);
+    }
+
+    private static void updateStatus(QueuedNotification n, DeploymentStatusAction.Status status, String message) {
+        Job<?, ?> job = Jenkins.getActiveInstance().getItemByFullName(n.getJob(), Job.class);
+        Run<?, ?> run = job != null ? job.getBuildByNumber(n.getBuild()) : null;
+        DeploymentStatusAction action = run != null ? run.getAction(DeploymentStatusAction.class) : null;
+        if (action == null) {
+            return;
+        }
+        action.update(n.getId(), status, message);
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save deployment status of " + run, e);
+        }
+    }
+
+    // help testing
+    public NewRelicAsyncClient getClient() {
+        NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl(NewRelicGlobalConfiguration.retryPolicy(),
+                NewRelicGlobalConfiguration.timeouts());
+        client.setCompressionThreshold(NewRelicGlobalConfiguration.compressionThreshold());
+        return client;
+    }
+}
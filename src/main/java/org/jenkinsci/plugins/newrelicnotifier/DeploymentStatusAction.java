@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delivery status of the deployment notifications of a build. Notifications queued for asynchronous delivery are
+ * updated as the outbox delivers them.
+ */
+public class DeploymentStatusAction implements Action {
+
+    public enum Status {
+        PENDING, DELIVERED, FAILED
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    synchronized void add(String id, String applicationId) {
+        entries.add(new Entry(id, applicationId));
+    }
+
+    synchronized void add(String id, String applicationId, Status status, String message) {
+        Entry entry = new Entry(id, applicationId);
+        entry.status = status;
+        entry.message = message;
+        entries.add(entry);
+    }
+
+    /**
+     * @return Whether a notification of the application was delivered
+     */
+    synchronized boolean isDelivered(String applicationId) {
+        for (Entry entry : entries) {
+            if (entry.status == Status.DELIVERED && entry.applicationId.equals(applicationId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void update(String id, Status status, String message) {
+        for (Entry entry : entries) {
+            if (entry.id.equals(id)) {
+                entry.status = status;
+                entry.message = message;
+                entry.timestamp = System.currentTimeMillis();
+            }
+        }
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "New Relic Deployments";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    public static final class Entry {
+        private final String id;
+        private final String applicationId;
+        private Status status = Status.PENDING;
+        private String message;
+        private long timestamp = System.currentTimeMillis();
+
+        Entry(String id, String applicationId) {
+            this.id = id;
+            this.applicationId = applicationId;
+        }
+
+        public String getApplicationId() {
+            return applicationId;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -32,25 +32,63 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
+import hudson.util.FormValidation;
 import hudson.util.Secret;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.ApiKeys;
+import org.jenkinsci.plugins.newrelicnotifier.api.CircuitBreaker;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentRequest;
+import org.jenkinsci.plugins.newrelicnotifier.api.NerdGraphClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClientImpl;
 import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
 import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
+import org.jenkinsci.plugins.newrelicnotifier.api.Timeouts;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Notifies a New Relic instance about deployment.
  */
 public class NewRelicDeploymentNotifier extends Notifier {
 
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    public static final int DEFAULT_TIMEOUT = 300;
+
     private final List<DeploymentNotificationBean> notifications;
 
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    private int timeout;
+
+    private int connectTimeout;
+
+    private int socketTimeout;
+
+    private int connectionRequestTimeout;
+
+    private boolean async;
+
+    private boolean batch;
+
     @DataBoundConstructor
     public NewRelicDeploymentNotifier(List<DeploymentNotificationBean> notifications) {
         super();
@@ -61,8 +99,100 @@ public class NewRelicDeploymentNotifier extends Notifier {
         return notifications;
     }
 
+    /**
+     * @return Maximum number of notifications sent at the same time
+     */
+    public int getConcurrency() {
+        return concurrency > 0 ? concurrency : DEFAULT_CONCURRENCY;
+    }
+
+    @DataBoundSetter
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return Deadline in seconds for sending all notifications, defaults to the global deadline
+     */
+    public int getTimeout() {
+        return timeout > 0 ? timeout : NewRelicGlobalConfiguration.deadline();
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return Connect timeout in seconds, or 0 to use the global timeout
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return Socket timeout in seconds, or 0 to use the global timeout
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    @DataBoundSetter
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @return Connection pool timeout in seconds, or 0 to use the global timeout
+     */
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    /**
+     * @return The timeouts of this notifier, falling back to the global timeouts
+     */
+    public Timeouts getTimeouts() {
+        return Timeouts.override(NewRelicGlobalConfiguration.timeouts(), TimeUnit.SECONDS.toMillis(connectTimeout),
+                TimeUnit.SECONDS.toMillis(socketTimeout), TimeUnit.SECONDS.toMillis(connectionRequestTimeout));
+    }
+
+    /**
+     * @return Whether notifications are queued and delivered in the background instead of during the build
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    @DataBoundSetter
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * @return Whether the notifications sharing an API key are sent together through the GraphQL API
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    @DataBoundSetter
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
     @Override
-    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, final BuildListener listener) throws InterruptedException, IOException {
         boolean result = true;
 
         if (build.getResult() == Result.FAILURE ||
@@ -79,38 +209,176 @@ public class NewRelicDeploymentNotifier extends Notifier {
         EnvVars envVars = build.getEnvironment(listener);
         envVars.overrideAll(build.getBuildVariables());
 
-        NewRelicClient client = getClient();
+        final NewRelicAsyncClient client = getClient();
+        // application names are looked up while the build waits anyway
+        NewRelicClient lookups = new NewRelicClientImpl(client);
 
         //Get Current Workspace Path
-        FilePath workspacePath = build.getWorkspace();
+        final FilePath workspacePath = build.getWorkspace();
 
+        boolean queued = false;
+        List<String> applicationIds = new ArrayList<>();
+        List<DeploymentNotificationBean> dispatched = new ArrayList<>();
+        List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+        Map<String, NotificationBatch> batches = new LinkedHashMap<>();
+        CredentialsCache.Resolver resolver = CredentialsCache.get().forBuild(build.getProject(),
+                client.getApiEndpoint());
         for (DeploymentNotificationBean n : getNotifications()) {
-            UsernamePasswordCredentials credentials = DeploymentNotificationBean.getCredentials(build.getProject(), n.getApiKey(), client.getApiEndpoint());
+            UsernamePasswordCredentials credentials = resolver.get(n.getApiKey());
             if (credentials == null) {
                 listener.error("Invalid credentials for Application ID: %s", n.getApplicationId());
                 result = false;
+                continue;
+            }
+            String apiKey = Secret.toString(credentials.getPassword());
+            String applicationId;
+            try {
+                applicationId = n.resolveApplicationId(envVars, lookups, apiKey);
+            } catch (IOException e) {
+                listener.error("Failed to resolve New Relic application %s (%s)", n.getApplicationName(), e.getMessage());
+                result = false;
+                continue;
+            }
+            if (isAsync() || isDeferred(client, credentials)) {
+                enqueue(build, new QueuedNotification(build.getParent().getFullName(), build.getNumber(),
+                        n.getApiKey(), applicationId, n.getDescription(envVars), n.getRevision(envVars),
+                        n.readChangelog(envVars, build, workspacePath, applicationId),
+                        n.getUser(envVars)));
+                if (!isAsync()) {
+                    listener.getLogger().println("New Relic circuit breaker is open, delivering in the background.");
+                }
+                listener.getLogger().println("Queued New Relic notification. Application ID: " + applicationId);
+                queued = true;
+            } else if (isBatch() && ApiKeys.isUserKey(apiKey)) {
+                NotificationBatch notifications = batches.get(apiKey);
+                if (notifications == null) {
+                    notifications = new NotificationBatch(getBatchClient(), apiKey, listener);
+                    batches.put(apiKey, notifications);
+                }
+                applicationIds.add(applicationId);
+                dispatched.add(n);
+                tasks.add(notifications.add(new DeploymentRequest(applicationId, n.getDescription(envVars),
+                        n.getRevision(envVars), n.readChangelog(envVars, build, workspacePath, applicationId),
+                        n.getUser(envVars))));
             } else {
-                if (client.sendNotification(Secret.toString(credentials.getPassword()),
-                                            n.getApplicationId(),
-                                            n.getDescription(envVars),
-                                            n.getRevision(envVars),
-                                            n.getChangelog(envVars),
-                                            n.getUser(envVars),
-                                            listener,
-                                            workspacePath)) {
-                    listener.getLogger().println("Notified New Relic. Application ID: " + n.getApplicationId());
-                } else {
-                    listener.error("Failed to notify New Relic. Application ID: %s", n.getApplicationId());
-                    result = false;
+                if (isBatch()) {
+                    listener.getLogger().println("New Relic GraphQL API needs a User API key (NRAK-...), notifying "
+                            + "through the REST API instead. Application ID: " + applicationId);
                 }
+                applicationIds.add(applicationId);
+                dispatched.add(n);
+                tasks.add(newTask(client, apiKey, applicationId, n, envVars, build, workspacePath, listener));
+            }
+        }
+
+        if (queued) {
+            DeploymentOutboxDispatcher.trigger();
+        }
+
+        List<NotificationDispatcher.Outcome> outcomes = NotificationDispatcher.dispatch(tasks, getConcurrency(),
+                TimeUnit.SECONDS.toMillis(getTimeout()));
+        for (int i = 0; i < outcomes.size(); i++) {
+            NotificationDispatcher.Outcome outcome = outcomes.get(i);
+            String applicationId = applicationIds.get(i);
+            if (outcome.isSuccess()) {
+                listener.getLogger().println("Notified New Relic. Application ID: " + applicationId);
+                record(build, applicationId, DeploymentStatusAction.Status.DELIVERED, null);
+                DeploymentNotificationBean n = dispatched.get(i);
+                DeploymentHistory.get().record(build, applicationId, n.getRevision(envVars), n.getUser(envVars),
+                        outcome.getDeployment());
+            } else if (outcome.isTimedOut()) {
+                listener.error("Deadline of %d seconds for notifying New Relic expired. Application ID: %s", getTimeout(), applicationId);
+                record(build, applicationId, DeploymentStatusAction.Status.FAILED, "Deadline expired");
+                result = false;
+            } else if (outcome.getCause() != null) {
+                listener.error("Failed to notify New Relic. Application ID: %s (%s)", applicationId, outcome.getCause());
+                record(build, applicationId, DeploymentStatusAction.Status.FAILED, outcome.getCause().toString());
+                result = false;
+            } else {
+                listener.error("Failed to notify New Relic. Application ID: %s", applicationId);
+                record(build, applicationId, DeploymentStatusAction.Status.FAILED, "Rejected by New Relic");
+                result = false;
             }
         }
         return result;
     }
 
+    /**
+     * Create the task sending a notification. The changelog is read when the task starts and identical
+     * notifications in flight at the same time are coalesced.
+     */
+    static NotificationDispatcher.Task newTask(final NewRelicAsyncClient client, final String apiKey,
+                                               final String applicationId, final DeploymentNotificationBean n,
+                                               final EnvVars envVars, final Run<?, ?> run, final FilePath workspace,
+                                               final TaskListener listener) {
+        final String description = n.getDescription(envVars);
+        final String revision = n.getRevision(envVars);
+        final String user = n.getUser(envVars);
+        final String key = SingleFlight.key(apiKey, applicationId, revision, description);
+        return new NotificationDispatcher.Task() {
+            @Override
+            public Future<Deployment> start(FutureCallback<Deployment> callback) {
+                SingleFlight.Seat seat = SingleFlight.join(key, new NotificationDispatcher.Task() {
+                    @Override
+                    public Future<Deployment> start(FutureCallback<Deployment> callback) throws Exception {
+                        String changelogContent = n.readChangelog(envVars, run, workspace, applicationId);
+                        return client.createDeployment(apiKey, applicationId, description, revision,
+                                changelogContent, user, listener, callback);
+                    }
+                }, callback);
+                if (seat.isCoalesced()) {
+                    listener.getLogger().println("New Relic notification coalesced with an identical one in "
+                            + "flight. Application ID: " + applicationId);
+                }
+                return seat;
+            }
+        };
+    }
+
+    /**
+     * Notifications are deferred to the background while the circuit breaker of the endpoint is open, if enabled.
+     */
+    private static boolean isDeferred(NewRelicAsyncClient client, UsernamePasswordCredentials credentials) {
+        NewRelicGlobalConfiguration config = NewRelicGlobalConfiguration.get();
+        return config != null && config.isDeferWhenOpen() && CircuitBreaker.forEndpoint(client.getApiEndpoint(),
+                Secret.toString(credentials.getPassword())).isOpen();
+    }
+
+    private static void enqueue(AbstractBuild<?, ?> build, QueuedNotification notification) throws IOException {
+        statusAction(build).add(notification.getId(), notification.getApplicationId());
+        DeploymentOutbox.get().add(notification);
+    }
+
+    /**
+     * Record the outcome of a notification, so later builds can tell which changes were notified.
+     */
+    private static void record(AbstractBuild<?, ?> build, String applicationId, DeploymentStatusAction.Status status,
+                               String message) {
+        statusAction(build).add(UUID.randomUUID().toString(), applicationId, status, message);
+    }
+
+    private static DeploymentStatusAction statusAction(AbstractBuild<?, ?> build) {
+        synchronized (build) {
+            DeploymentStatusAction action = build.getAction(DeploymentStatusAction.class);
+            if (action == null) {
+                action = new DeploymentStatusAction();
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+
     // help testing
-    public NewRelicClient getClient() {
-        return new NewRelicClientImpl();
+    public NewRelicAsyncClient getClient() {
+        NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl(NewRelicGlobalConfiguration.retryPolicy(),
+                getTimeouts());
+        client.setCompressionThreshold(NewRelicGlobalConfiguration.compressionThreshold());
+        return client;
+    }
+
+    // help testing
+    public NerdGraphClient getBatchClient() {
+        return new NerdGraphClient(NewRelicGlobalConfiguration.retryPolicy(), getTimeouts());
     }
 
     @Override
@@ -131,6 +399,34 @@ public class NewRelicDeploymentNotifier extends Notifier {
             return true;
         }
 
+        public FormValidation doCheckConcurrency(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckTimeout(@QueryParameter String value) {
+            return validateOptionalSeconds(value);
+        }
+
+        public FormValidation doCheckConnectTimeout(@QueryParameter String value) {
+            return validateOptionalSeconds(value);
+        }
+
+        public FormValidation doCheckSocketTimeout(@QueryParameter String value) {
+            return validateOptionalSeconds(value);
+        }
+
+        public FormValidation doCheckConnectionRequestTimeout(@QueryParameter String value) {
+            return validateOptionalSeconds(value);
+        }
+
+        /**
+         * Empty or 0 uses the global setting.
+         */
+        static FormValidation validateOptionalSeconds(String value) {
+            return value == null || value.trim().isEmpty() ? FormValidation.ok()
+                    : FormValidation.validateNonNegativeInteger(value);
+        }
+
         @Override
         public String getDisplayName() {
             return "New Relic Deployment Notifications";
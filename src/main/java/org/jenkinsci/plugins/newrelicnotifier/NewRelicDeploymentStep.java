@@ -0,0 +1,348 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClientImpl;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pipeline step notifying New Relic about deployment.
+ * <p>
+ * The notifications are sent in the background with the non-blocking client, so the step neither needs a node nor
+ * holds an executor, the CPS thread or any other thread while waiting for New Relic. It returns a map with the ID of
+ * the first recorded deployment as {@code deploymentId} and a list of per application {@code results}, each with
+ * {@code applicationId}, {@code success}, {@code deploymentId} and {@code message}.
+ */
+public class NewRelicDeploymentStep extends AbstractStepImpl {
+
+    private final List<DeploymentNotificationBean> notifications;
+
+    private int concurrency = NewRelicDeploymentNotifier.DEFAULT_CONCURRENCY;
+
+    private int timeout;
+
+    private boolean failOnError = true;
+
+    @DataBoundConstructor
+    public NewRelicDeploymentStep(List<DeploymentNotificationBean> notifications) {
+        this.notifications = notifications;
+    }
+
+    public List<DeploymentNotificationBean> getNotifications() {
+        return notifications;
+    }
+
+    /**
+     * @return Maximum number of notifications sent at the same time
+     */
+    public int getConcurrency() {
+        return concurrency > 0 ? concurrency : NewRelicDeploymentNotifier.DEFAULT_CONCURRENCY;
+    }
+
+    @DataBoundSetter
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return Deadline in seconds for sending all notifications, defaults to the global deadline
+     */
+    public int getTimeout() {
+        return timeout > 0 ? timeout : NewRelicGlobalConfiguration.deadline();
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return Whether the step fails if any notification failed, otherwise the failures are only in the results
+     */
+    public boolean isFailOnError() {
+        return failOnError;
+    }
+
+    @DataBoundSetter
+    public void setFailOnError(boolean failOnError) {
+        this.failOnError = failOnError;
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "newRelicDeployment";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Notify New Relic about deployment";
+        }
+
+        public FormValidation doCheckConcurrency(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckTimeout(@QueryParameter String value) {
+            return NewRelicDeploymentNotifier.DescriptorImpl.validateOptionalSeconds(value);
+        }
+    }
+
+    public static final class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Base URL of the New Relic API, replaced by tests with a stand-in server.
+         */
+        static volatile String apiUrl = NewRelicAsyncClientImpl.API_URL;
+
+        @Inject
+        private transient NewRelicDeploymentStep step;
+
+        @StepContextParameter
+        private transient Run<?, ?> run;
+
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        private transient volatile NotificationDispatcher.Batch batch;
+
+        /**
+         * Set once the step completed. Stopping the step races with the notifications completing, only the first
+         * of them may complete the step.
+         */
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        @Override
+        public boolean start() throws Exception {
+            if (step.getNotifications() == null || step.getNotifications().isEmpty()) {
+                throw new AbortException("Missing notifications!");
+            }
+            EnvVars envVars = getContext().get(EnvVars.class);
+            if (envVars == null) {
+                envVars = new EnvVars();
+            }
+            // only available inside node, otherwise changelogs are used as given
+            final FilePath workspace = getContext().get(FilePath.class);
+            final EnvVars env = envVars;
+            final NewRelicAsyncClient client = getClient();
+            final NewRelicClient lookups = new NewRelicClientImpl(client);
+
+            final List<Map<String, Object>> results = new ArrayList<>();
+            final List<Map<String, Object>> dispatched = new ArrayList<>();
+            final List<DeploymentNotificationBean> sent = new ArrayList<>();
+            List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+            CredentialsCache.Resolver resolver = CredentialsCache.get().forBuild(run.getParent(),
+                    client.getApiEndpoint());
+            for (final DeploymentNotificationBean n : step.getNotifications()) {
+                final Map<String, Object> result = new LinkedHashMap<>();
+                result.put("applicationId", n.getApplicationId());
+                results.add(result);
+                UsernamePasswordCredentials credentials = resolver.get(n.getApiKey());
+                if (credentials == null) {
+                    listener.error("Invalid credentials for Application ID: %s", n.getApplicationId());
+                    completed(result, null, "Invalid credentials");
+                    continue;
+                }
+                final String apiKey = Secret.toString(credentials.getPassword());
+                dispatched.add(result);
+                sent.add(n);
+                tasks.add(new NotificationDispatcher.Task() {
+                    @Override
+                    public Future<Deployment> start(FutureCallback<Deployment> callback) throws Exception {
+                        // application names are resolved here to keep lookups off the Pipeline thread
+                        String applicationId;
+                        try {
+                            applicationId = n.resolveApplicationId(env, lookups, apiKey);
+                        } catch (IOException e) {
+                            listener.error("Failed to resolve New Relic application %s (%s)",
+                                    n.getApplicationName(), e.getMessage());
+                            completed(result, null, e.getMessage());
+                            throw e;
+                        }
+                        result.put("applicationId", applicationId);
+                        return NewRelicDeploymentNotifier.newTask(client, apiKey, applicationId, n, env, run,
+                                workspace, listener).start(callback);
+                    }
+                });
+            }
+
+            batch = NotificationDispatcher.start(tasks, step.getConcurrency(),
+                    TimeUnit.SECONDS.toMillis(step.getTimeout()),
+                    new FutureCallback<List<NotificationDispatcher.Outcome>>() {
+                        @Override
+                        public void completed(List<NotificationDispatcher.Outcome> outcomes) {
+                            try {
+                                for (int i = 0; i < outcomes.size(); i++) {
+                                    NotificationDispatcher.Outcome outcome = outcomes.get(i);
+                                    report(dispatched.get(i), outcome);
+                                    if (outcome.isSuccess()) {
+                                        DeploymentNotificationBean n = sent.get(i);
+                                        DeploymentHistory.get().record(run,
+                                                (String) dispatched.get(i).get("applicationId"),
+                                                n.getRevision(env), n.getUser(env), outcome.getDeployment());
+                                    }
+                                }
+                                finish(results);
+                            } catch (RuntimeException e) {
+                                fail(e);
+                            }
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            fail(e);
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            // stopped, the failure is reported by stop
+                        }
+                    });
+            if (done.get()) {
+                // stopped before the batch was known to stop
+                batch.cancel(true);
+            }
+            return false;
+        }
+
+        private void report(Map<String, Object> result, NotificationDispatcher.Outcome outcome) {
+            if (result.containsKey("success")) {
+                // already failed before it was sent, e.g. the application could not be resolved
+                return;
+            }
+            Object applicationId = result.get("applicationId");
+            if (outcome.isSuccess()) {
+                listener.getLogger().println("Notified New Relic. Application ID: " + applicationId);
+                completed(result, outcome.getDeployment(), null);
+            } else if (outcome.isTimedOut()) {
+                listener.error("Deadline of %d seconds for notifying New Relic expired. Application ID: %s",
+                        step.getTimeout(), applicationId);
+                completed(result, null, "Deadline expired");
+            } else if (outcome.getCause() != null) {
+                listener.error("Failed to notify New Relic. Application ID: %s (%s)", applicationId, outcome.getCause());
+                completed(result, null, outcome.getCause().toString());
+            } else {
+                listener.error("Failed to notify New Relic. Application ID: %s", applicationId);
+                completed(result, null, "Rejected by New Relic");
+            }
+        }
+
+        private static void completed(Map<String, Object> result, Deployment deployment, String message) {
+            result.put("success", deployment != null);
+            result.put("deploymentId", deployment != null ? deployment.getId() : null);
+            result.put("message", message);
+        }
+
+        private void finish(List<Map<String, Object>> results) {
+            int failed = 0;
+            String deploymentId = null;
+            for (Map<String, Object> result : results) {
+                if (!Boolean.TRUE.equals(result.get("success"))) {
+                    failed++;
+                } else if (deploymentId == null) {
+                    deploymentId = (String) result.get("deploymentId");
+                }
+            }
+            if (failed > 0 && step.isFailOnError()) {
+                fail(new AbortException("Failed to notify New Relic for " + failed + " of "
+                        + results.size() + " application(s)"));
+                return;
+            }
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("deploymentId", deploymentId);
+            value.put("results", results);
+            if (done.compareAndSet(false, true)) {
+                getContext().onSuccess(value);
+            }
+        }
+
+        private void fail(Throwable cause) {
+            if (done.compareAndSet(false, true)) {
+                getContext().onFailure(cause);
+            }
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            NotificationDispatcher.Batch running = batch;
+            if (running != null) {
+                // aborts the notifications in flight
+                running.cancel(true);
+            }
+            fail(cause);
+        }
+
+        @Override
+        public void onResume() {
+            fail(new AbortException("Jenkins was restarted while notifying New Relic, "
+                    + "the deployment may or may not have been recorded"));
+        }
+
+        // help testing
+        NewRelicAsyncClient getClient() {
+            NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl(NewRelicGlobalConfiguration.retryPolicy(),
+                    NewRelicGlobalConfiguration.timeouts(), apiUrl);
+            client.setCompressionThreshold(NewRelicGlobalConfiguration.compressionThreshold());
+            return client;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.newrelicnotifier.api.CircuitBreaker;
+import org.jenkinsci.plugins.newrelicnotifier.api.RetryPolicy;
+import org.jenkinsci.plugins.newrelicnotifier.api.Timeouts;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Global settings of the New Relic deployment notifier.
+ */
+@Extension
+public class NewRelicGlobalConfiguration extends GlobalConfiguration {
+
+    private int retryAttempts = RetryPolicy.DEFAULT.getMaxAttempts();
+    private long retryBaseDelay = RetryPolicy.DEFAULT.getBaseDelayMillis();
+    private long retryMaxDelay = RetryPolicy.DEFAULT.getMaxDelayMillis();
+    private String retryStatusCodes = join(RetryPolicy.DEFAULT.getRetryableStatusCodes());
+    private long retryBudget = RetryPolicy.DEFAULT.getBudgetMillis() / 1000;
+    private int breakerWindow = 20;
+    private int breakerMinimumCalls = 10;
+    private int breakerFailureRate = 50;
+    private int breakerOpenDuration = 30;
+    private boolean deferWhenOpen;
+    private int connectTimeout = (int) TimeUnit.MILLISECONDS.toSeconds(Timeouts.DEFAULT.getConnectTimeoutMillis());
+    private int socketTimeout = (int) TimeUnit.MILLISECONDS.toSeconds(Timeouts.DEFAULT.getSocketTimeoutMillis());
+    private int connectionRequestTimeout = (int) TimeUnit.MILLISECONDS.toSeconds(
+            Timeouts.DEFAULT.getConnectionRequestTimeoutMillis());
+    private int deadline = NewRelicDeploymentNotifier.DEFAULT_TIMEOUT;
+    private int compressionThreshold;
+
+    public NewRelicGlobalConfiguration() {
+        load();
+        configureCircuitBreakers();
+    }
+
+    /**
+     * @return The global configuration, or {@code null} if Jenkins is not running
+     */
+    public static NewRelicGlobalConfiguration get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null ? jenkins.getDescriptorByType(NewRelicGlobalConfiguration.class) : null;
+    }
+
+    /**
+     * @return The retry policy of the global configuration, or the default policy if Jenkins is not running
+     */
+    public static RetryPolicy retryPolicy() {
+        NewRelicGlobalConfiguration config = get();
+        return config != null ? config.getRetryPolicy() : RetryPolicy.DEFAULT;
+    }
+
+    /**
+     * @return The timeouts of the global configuration, or the default timeouts if Jenkins is not running
+     */
+    public static Timeouts timeouts() {
+        NewRelicGlobalConfiguration config = get();
+        return config != null ? config.getTimeouts() : Timeouts.DEFAULT;
+    }
+
+    /**
+     * @return The deadline in seconds for sending all notifications of a build, unless configured otherwise by the job
+     */
+    public static int deadline() {
+        NewRelicGlobalConfiguration config = get();
+        return config != null ? config.getDeadline() : NewRelicDeploymentNotifier.DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * @return The size in characters from which deployment bodies are gzip compressed, 0 if they are never compressed
+     */
+    public static int compressionThreshold() {
+        NewRelicGlobalConfiguration config = get();
+        return config != null ? config.getCompressionThreshold() * 1024 : 0;
+    }
+
+    public Timeouts getTimeouts() {
+        return new Timeouts(TimeUnit.SECONDS.toMillis(connectTimeout), TimeUnit.SECONDS.toMillis(socketTimeout),
+                TimeUnit.SECONDS.toMillis(connectionRequestTimeout));
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return new RetryPolicy(retryAttempts, retryBaseDelay, retryMaxDelay,
+                RetryPolicy.parseStatusCodes(retryStatusCodes), retryBudget * 1000);
+    }
+
+    public int getRetryAttempts() {
+        return retryAttempts;
+    }
+
+    public void setRetryAttempts(int retryAttempts) {
+        this.retryAttempts = retryAttempts;
+    }
+
+    public long getRetryBaseDelay() {
+        return retryBaseDelay;
+    }
+
+    public void setRetryBaseDelay(long retryBaseDelay) {
+        this.retryBaseDelay = retryBaseDelay;
+    }
+
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public void setRetryMaxDelay(long retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    public String getRetryStatusCodes() {
+        return retryStatusCodes;
+    }
+
+    public void setRetryStatusCodes(String retryStatusCodes) {
+        this.retryStatusCodes = retryStatusCodes;
+    }
+
+    public long getRetryBudget() {
+        return retryBudget;
+    }
+
+    public void setRetryBudget(long retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    public int getBreakerWindow() {
+        return breakerWindow;
+    }
+
+    public void setBreakerWindow(int breakerWindow) {
+        this.breakerWindow = breakerWindow;
+    }
+
+    public int getBreakerMinimumCalls() {
+        return breakerMinimumCalls;
+    }
+
+    public void setBreakerMinimumCalls(int breakerMinimumCalls) {
+        this.breakerMinimumCalls = breakerMinimumCalls;
+    }
+
+    public int getBreakerFailureRate() {
+        return breakerFailureRate;
+    }
+
+    public void setBreakerFailureRate(int breakerFailureRate) {
+        this.breakerFailureRate = breakerFailureRate;
+    }
+
+    public int getBreakerOpenDuration() {
+        return breakerOpenDuration;
+    }
+
+    public void setBreakerOpenDuration(int breakerOpenDuration) {
+        this.breakerOpenDuration = breakerOpenDuration;
+    }
+
+    /**
+     * @return Whether notifications are delivered in the background instead of failing while the circuit breaker
+     * is open
+     */
+    public boolean isDeferWhenOpen() {
+        return deferWhenOpen;
+    }
+
+    public void setDeferWhenOpen(boolean deferWhenOpen) {
+        this.deferWhenOpen = deferWhenOpen;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public int getDeadline() {
+        return deadline > 0 ? deadline : NewRelicDeploymentNotifier.DEFAULT_TIMEOUT;
+    }
+
+    public void setDeadline(int deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return The size in kilobytes from which deployment bodies are gzip compressed, 0 if they are never compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        configureCircuitBreakers();
+        return true;
+    }
+
+    private void configureCircuitBreakers() {
+        CircuitBreaker.configure(breakerWindow, breakerMinimumCalls, breakerFailureRate,
+                TimeUnit.SECONDS.toMillis(breakerOpenDuration));
+    }
+
+    public FormValidation doCheckRetryAttempts(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckRetryBaseDelay(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckRetryMaxDelay(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckRetryBudget(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckBreakerWindow(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckBreakerMinimumCalls(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckBreakerFailureRate(@QueryParameter String value) {
+        FormValidation validation = FormValidation.validatePositiveInteger(value);
+        if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(value) > 100) {
+            return FormValidation.error("Must be at most 100");
+        }
+        return validation;
+    }
+
+    public FormValidation doCheckBreakerOpenDuration(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckConnectTimeout(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckSocketTimeout(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckConnectionRequestTimeout(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckDeadline(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckCompressionThreshold(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "New Relic Deployment Notifier";
+    }
+
+    private static String join(Set<Integer> codes) {
+        StringBuilder sb = new StringBuilder();
+        for (Integer code : codes) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(code);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.ManagementLink;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.newrelicnotifier.api.AdaptiveLimiter;
+import org.jenkinsci.plugins.newrelicnotifier.api.CircuitBreaker;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentAuditLog;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Management page showing the runtime state of the New Relic deployment notifier.
+ */
+@Extension
+public class NewRelicManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "newrelic-deployment-notifier";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "New Relic Deployment Notifier";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Metrics, concurrency limits, queues, circuit breakers, audit log and deployment history of the New Relic "
+                + "deployment notifier.";
+    }
+
+    public NotificationMetrics getMetrics() {
+        return NotificationMetrics.get();
+    }
+
+    public String formatMillis(double millis) {
+        return String.format("%.1f", millis);
+    }
+
+    public List<AdaptiveLimiter> getLimiters() {
+        return AdaptiveLimiter.all();
+    }
+
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return CircuitBreaker.all();
+    }
+
+    public DeploymentAuditLog getAuditLog() {
+        return DeploymentAuditLog.get();
+    }
+
+    /**
+     * Query the audit log from the parameters of the {@code audit} view.
+     *
+     * @param status {@code failed}, {@code recorded} or empty for all deployments
+     * @param limit Maximum number of entries, defaults to 50
+     */
+    public List<DeploymentAuditLog.Entry> queryAuditLog(String applicationId, String revision, String status,
+                                                        String limit) {
+        Boolean failed = "failed".equals(status) ? Boolean.TRUE : "recorded".equals(status) ? Boolean.FALSE : null;
+        return DeploymentAuditLog.get().query(trim(applicationId), trim(revision), failed, limit(limit, 50));
+    }
+
+    /**
+     * Query the deployment history from the parameters of the {@code history} view.
+     *
+     * @param from Earliest day as {@code yyyy-MM-dd} or time in milliseconds, empty for no limit
+     * @param to Latest day as {@code yyyy-MM-dd} or time in milliseconds, empty for no limit
+     * @param limit Maximum number of deployments, defaults to 50
+     * @throws IllegalArgumentException if a time is malformed
+     */
+    public List<DeploymentHistory.Entry> queryHistory(String applicationId, String revision, String from, String to,
+                                                      String limit) {
+        return DeploymentHistory.get().query(trim(applicationId), trim(revision), time(from, 0, false),
+                time(to, Long.MAX_VALUE, true), limit(limit, 50));
+    }
+
+    /**
+     * Answer a deployment history query with JSON, for scripts asking when an application was last deployed.
+     */
+    public void doDeployments(StaplerResponse rsp, @QueryParameter String application,
+                              @QueryParameter String revision, @QueryParameter String from,
+                              @QueryParameter String to, @QueryParameter String limit) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        List<DeploymentHistory.Entry> entries;
+        try {
+            entries = queryHistory(application, revision, from, to, limit);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(400, e.getMessage());
+            return;
+        }
+        JsonArray deployments = new JsonArray();
+        for (DeploymentHistory.Entry entry : entries) {
+            JsonObject deployment = new JsonObject();
+            deployment.addProperty("time", entry.getTimeMillis());
+            deployment.addProperty("applicationId", entry.getApplicationId());
+            deployment.addProperty("revision", entry.getRevision());
+            deployment.addProperty("deploymentId", entry.getDeploymentId());
+            deployment.addProperty("user", entry.getUser());
+            deployment.addProperty("job", entry.getJob());
+            deployment.addProperty("build", entry.getBuild());
+            deployments.add(deployment);
+        }
+        JsonObject result = new JsonObject();
+        result.add("deployments", deployments);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(result.toString());
+    }
+
+    /**
+     * @return URL of the build that made a deployment relative to the root URL, null if it no longer exists
+     */
+    public String getBuildUrl(DeploymentHistory.Entry entry) {
+        Job<?, ?> job = Jenkins.getActiveInstance().getItemByFullName(entry.getJob(), Job.class);
+        Run<?, ?> run = job != null ? job.getBuildByNumber(entry.getBuild()) : null;
+        return run != null ? run.getUrl() : null;
+    }
+
+    private static String trim(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private static int limit(String value, int defaultValue) {
+        try {
+            if (value != null && !value.trim().isEmpty()) {
+                return Math.max(1, Math.min(Integer.parseInt(value.trim()), 1000));
+            }
+        } catch (NumberFormatException e) {
+            // keep the default
+        }
+        return defaultValue;
+    }
+
+    private static long time(String value, long defaultValue, boolean endOfDay) {
+        value = trim(value);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.matches("\\d{9,}")) {
+            return Long.parseLong(value);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT);
+        format.setLenient(false);
+        try {
+            long day = format.parse(value).getTime();
+            return endOfDay ? day + TimeUnit.DAYS.toMillis(1) - 1 : day;
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Not a date (yyyy-MM-dd) or time in milliseconds: " + value);
+        }
+    }
+}
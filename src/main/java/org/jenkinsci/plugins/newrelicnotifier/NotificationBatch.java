@@ -0,0 +1,358 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.model.TaskListener;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentRequest;
+import org.jenkinsci.plugins.newrelicnotifier.api.NerdGraphClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * The notifications of a build sharing an API key, sent together through NerdGraph.
+ * <p>
+ * Each notification is dispatched as a task of its own, so the batch is subject to the same deadline, concurrency
+ * limit and cancellation as notifications sent through the REST API. Whichever task starts first sends the whole
+ * batch without waiting for New Relic, the other tasks pick up their outcome. Before sending, every notification
+ * joins its {@link SingleFlight}, an identical notification already in flight through either API is waited for
+ * rather than sent again.
+ */
+final class NotificationBatch {
+
+    private final NerdGraphClient client;
+
+    private final String apiKey;
+
+    private final TaskListener listener;
+
+    private final List<Slot> slots = new ArrayList<>();
+
+    private boolean started;
+
+    private boolean abandoned;
+
+    private Future<List<NerdGraphClient.Outcome>> exchange;
+
+    NotificationBatch(NerdGraphClient client, String apiKey, TaskListener listener) {
+        this.client = client;
+        this.apiKey = apiKey;
+        this.listener = listener;
+    }
+
+    /**
+     * Add a notification, all notifications must be added before the first task starts.
+     *
+     * @return The task to dispatch for the notification
+     */
+    NotificationDispatcher.Task add(DeploymentRequest request) {
+        final Slot slot = new Slot(request);
+        slots.add(slot);
+        return new NotificationDispatcher.Task() {
+            @Override
+            public Future<Deployment> start(FutureCallback<Deployment> callback) {
+                Relay relay = new Relay(callback);
+                slot.attach(relay);
+                send();
+                return relay;
+            }
+        };
+    }
+
+    /**
+     * Send the notifications not in flight yet, once. Returns as soon as the requests are on their way.
+     */
+    private void send() {
+        Pending pending = new Pending();
+        synchronized (this) {
+            if (started || abandoned) {
+                return;
+            }
+            started = true;
+            // joined under the lock, so that abandoning the batch finds every seat
+            for (Slot slot : slots) {
+                DeploymentRequest request = slot.request;
+                SingleFlight.Seat seat = SingleFlight.join(SingleFlight.key(apiKey, request.getApplicationId(),
+                        request.getRevision(), request.getDescription()), pending.task(request), slot);
+                slot.seat = seat;
+                if (seat.isCoalesced()) {
+                    listener.getLogger().println("New Relic notification coalesced with an identical one in "
+                            + "flight. Application ID: " + request.getApplicationId());
+                }
+            }
+        }
+        Future<List<NerdGraphClient.Outcome>> sent = pending.flush();
+        synchronized (this) {
+            if (!abandoned) {
+                exchange = sent;
+                return;
+            }
+        }
+        // the dispatch closed while the batch was being sent
+        if (sent != null) {
+            sent.cancel(true);
+        }
+    }
+
+    /**
+     * The dispatcher only cancels tasks when the whole dispatch closes, so all notifications are given up, including
+     * those whose task did not start, and the requests in flight are aborted.
+     */
+    private void abandon() {
+        List<SingleFlight.Seat> seats = new ArrayList<>();
+        Future<List<NerdGraphClient.Outcome>> sent;
+        synchronized (this) {
+            if (abandoned) {
+                return;
+            }
+            abandoned = true;
+            for (Slot slot : slots) {
+                if (slot.seat != null) {
+                    seats.add(slot.seat);
+                }
+            }
+            sent = exchange;
+        }
+        for (SingleFlight.Seat seat : seats) {
+            seat.cancel(true);
+        }
+        if (sent != null) {
+            sent.cancel(true);
+        }
+    }
+
+    /**
+     * The notifications this batch sends itself, those that were not already in flight.
+     */
+    private final class Pending {
+
+        private final List<DeploymentRequest> requests = new ArrayList<>();
+
+        private final List<Call> calls = new ArrayList<>();
+
+        private boolean sent;
+
+        /**
+         * @return The task of the flight of the notification, adding it to the batch
+         */
+        private NotificationDispatcher.Task task(final DeploymentRequest request) {
+            return new NotificationDispatcher.Task() {
+                @Override
+                public Future<Deployment> start(FutureCallback<Deployment> callback) {
+                    Call call = new Call(callback);
+                    if (!add(request, call)) {
+                        // started again after the batch was sent, as the notification it waited for was aborted
+                        call.sending(send(Collections.singletonList(request), Collections.singletonList(call)));
+                    }
+                    return call;
+                }
+            };
+        }
+
+        /**
+         * @return Whether the notification was added, false if the batch was already sent
+         */
+        private synchronized boolean add(DeploymentRequest request, Call call) {
+            if (sent) {
+                return false;
+            }
+            requests.add(request);
+            calls.add(call);
+            return true;
+        }
+
+        /**
+         * @return The pending deployments, null if all notifications were coalesced
+         */
+        private Future<List<NerdGraphClient.Outcome>> flush() {
+            synchronized (this) {
+                sent = true;
+            }
+            return requests.isEmpty() ? null : send(requests, calls);
+        }
+
+        private Future<List<NerdGraphClient.Outcome>> send(List<DeploymentRequest> requests, final List<Call> calls) {
+            return client.createDeployments(apiKey, requests, listener,
+                    new FutureCallback<List<NerdGraphClient.Outcome>>() {
+                        @Override
+                        public void completed(List<NerdGraphClient.Outcome> outcomes) {
+                            for (int i = 0; i < calls.size(); i++) {
+                                NerdGraphClient.Outcome outcome = outcomes.get(i);
+                                if (outcome.isSuccess()) {
+                                    calls.get(i).completed(outcome.getDeployment());
+                                } else {
+                                    calls.get(i).failed(new IOException(outcome.getError()));
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            for (Call call : calls) {
+                                call.failed(e);
+                            }
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            // land the flights, notifications waiting for them try again on their own
+                            for (Call call : calls) {
+                                call.cancel();
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * The flight of a notification sent by the batch. A notification sent on its own aborts its request when
+     * cancelled, the requests of the whole batch are only aborted with the batch.
+     */
+    private static final class Call extends BasicFuture<Deployment> {
+
+        private volatile Future<?> exchange;
+
+        private Call(FutureCallback<Deployment> callback) {
+            super(callback);
+        }
+
+        private void sending(Future<?> exchange) {
+            this.exchange = exchange;
+            if (isCancelled()) {
+                exchange.cancel(true);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<?> current = exchange;
+            if (cancelled && current != null) {
+                current.cancel(true);
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * A notification of the batch, holding its outcome until its task started.
+     */
+    private static final class Slot implements FutureCallback<Deployment> {
+
+        private final DeploymentRequest request;
+
+        /**
+         * Guarded by the batch.
+         */
+        private SingleFlight.Seat seat;
+
+        private Relay relay;
+
+        private boolean done;
+
+        private boolean cancelled;
+
+        private Deployment deployment;
+
+        private Exception failure;
+
+        private Slot(DeploymentRequest request) {
+            this.request = request;
+        }
+
+        private void attach(Relay relay) {
+            synchronized (this) {
+                this.relay = relay;
+                if (!done) {
+                    return;
+                }
+            }
+            deliver(relay);
+        }
+
+        @Override
+        public void completed(Deployment deployment) {
+            settle(deployment, null, false);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            settle(null, e, false);
+        }
+
+        @Override
+        public void cancelled() {
+            settle(null, null, true);
+        }
+
+        private void settle(Deployment deployment, Exception failure, boolean cancelled) {
+            Relay current;
+            synchronized (this) {
+                done = true;
+                this.cancelled = cancelled;
+                this.deployment = deployment;
+                this.failure = failure;
+                current = relay;
+            }
+            if (current != null) {
+                deliver(current);
+            }
+        }
+
+        private void deliver(Relay target) {
+            if (cancelled) {
+                target.cancel();
+            } else if (failure != null) {
+                target.failed(failure);
+            } else {
+                target.completed(deployment);
+            }
+        }
+    }
+
+    /**
+     * The future of a task, cancelling it gives up the seats of all notifications.
+     */
+    private final class Relay extends BasicFuture<Deployment> {
+
+        private Relay(FutureCallback<Deployment> callback) {
+            super(callback);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                abandon();
+            }
+            return cancelled;
+        }
+    }
+}
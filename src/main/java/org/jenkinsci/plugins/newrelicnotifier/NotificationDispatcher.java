@@ -0,0 +1,407 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentRejectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches deployment notifications concurrently.
+ * <p>
+ * At most {@code concurrency} notifications of a batch are in flight at a time and the whole batch shares one
+ * deadline. Notifications still running when the deadline passes, or when the batch is cancelled (e.g. the build
+ * is aborted), are cancelled.
+ * <p>
+ * Each notification is prepared on a pool of at most {@link #MAX_THREADS} threads shared by all builds, e.g. to
+ * read its changelog, and then sent with the non-blocking client, so no thread waits for New Relic. Notifications
+ * beyond that wait in a queue of at most {@link #MAX_QUEUED} entries, and fail right away once that is full too
+ * rather than piling up threads.
+ */
+final class NotificationDispatcher {
+
+    private static final String PREFIX = NotificationDispatcher.class.getName();
+
+    static final int MAX_THREADS = Integer.getInteger(PREFIX + ".maxThreads", 32);
+
+    static final int MAX_QUEUED = Integer.getInteger(PREFIX + ".maxQueued", 1000);
+
+    private static final ExecutorService EXECUTOR = newExecutor();
+
+    private static final AtomicLong EXPIRED = new AtomicLong();
+
+    private NotificationDispatcher() {
+    }
+
+    private static ExecutorService newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+                new NamingThreadFactory(new DaemonThreadFactory(), "NewRelicDeploymentNotifier"));
+        // the threads only exist while there are notifications to send
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Run the tasks and wait for them to complete.
+     *
+     * @param tasks The notifications to send
+     * @param concurrency Maximum number of notifications in flight at the same time
+     * @param timeoutMillis Deadline for the whole batch in milliseconds
+     * @return The outcome of each task in the same order as the tasks
+     * @throws InterruptedException if interrupted while waiting, in which case all pending tasks are cancelled
+     */
+    static List<Outcome> dispatch(List<? extends Task> tasks, int concurrency, long timeoutMillis)
+            throws InterruptedException {
+        Batch batch = start(tasks, concurrency, timeoutMillis, null);
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            batch.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            // the outcomes of a batch include the failures, the batch itself does not fail
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Run the tasks without waiting for them.
+     *
+     * @param tasks The notifications to send
+     * @param concurrency Maximum number of notifications in flight at the same time
+     * @param timeoutMillis Deadline for the whole batch in milliseconds
+     * @param callback Completed with the outcome of each task in the same order as the tasks, on a notification
+     *                 thread. May be null.
+     * @return The pending batch, cancelling it cancels all pending tasks
+     */
+    static Batch start(List<? extends Task> tasks, int concurrency, long timeoutMillis,
+                       FutureCallback<List<Outcome>> callback) {
+        Batch batch = new Batch(tasks, concurrency, callback);
+        batch.begin(timeoutMillis);
+        return batch;
+    }
+
+    /**
+     * @return Number of notifications cancelled because the deadline of their batch expired
+     */
+    static long getExpired() {
+        return EXPIRED.get();
+    }
+
+    /**
+     * Run a task on the notification threads, e.g. to continue with blocking work from a callback.
+     *
+     * @param task The task to run
+     * @return The pending task, cancelling it interrupts the thread running it
+     * @throws RejectedExecutionException if the pool and its queue are full
+     */
+    static Future<?> submit(Runnable task) {
+        return EXECUTOR.submit(task);
+    }
+
+    /**
+     * A notification to dispatch.
+     */
+    interface Task {
+
+        /**
+         * Prepare the notification and start sending it. Runs on a notification thread, so it may block while
+         * preparing, e.g. to read the changelog, but must leave waiting for New Relic to the returned future.
+         *
+         * @param callback Notified of the outcome
+         * @return The pending notification, cancelling it aborts the notification
+         * @throws Exception if the notification could not be prepared
+         */
+        Future<Deployment> start(FutureCallback<Deployment> callback) throws Exception;
+    }
+
+    /**
+     * A batch of notifications in flight.
+     */
+    static final class Batch extends BasicFuture<List<Outcome>> {
+
+        private final List<? extends Task> tasks;
+        private final int concurrency;
+        private final Outcome[] outcomes;
+        private final List<Future<?>> started = new ArrayList<>();
+        private int next;
+        private int running;
+        private int completed;
+        private boolean closed;
+        private ScheduledFuture<?> expiry;
+
+        private Batch(List<? extends Task> tasks, int concurrency, FutureCallback<List<Outcome>> callback) {
+            super(callback);
+            this.tasks = tasks;
+            this.concurrency = Math.max(concurrency, 1);
+            this.outcomes = new Outcome[tasks.size()];
+        }
+
+        private void begin(long timeoutMillis) {
+            if (tasks.isEmpty()) {
+                completed(Collections.<Outcome>emptyList());
+                return;
+            }
+            ScheduledFuture<?> scheduled = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    close(true);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                expiry = scheduled;
+            }
+            startMore();
+        }
+
+        /**
+         * Start tasks until the concurrency limit is reached or no tasks are left.
+         */
+        private void startMore() {
+            while (true) {
+                final int index;
+                synchronized (this) {
+                    if (closed || next >= tasks.size() || running >= concurrency) {
+                        return;
+                    }
+                    index = next++;
+                    running++;
+                }
+                Future<?> preparing;
+                try {
+                    preparing = EXECUTOR.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            prepare(index);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    finish(index, new Outcome(null, false, e), false);
+                    continue;
+                }
+                track(preparing);
+            }
+        }
+
+        private void prepare(final int index) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                track(tasks.get(index).start(new FutureCallback<Deployment>() {
+                    @Override
+                    public void completed(Deployment deployment) {
+                        finish(index, new Outcome(deployment, false, null), true);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        finish(index, new Outcome(null, false, e), true);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        finish(index, Outcome.TIMED_OUT, true);
+                    }
+                }));
+            } catch (Exception e) {
+                finish(index, new Outcome(null, false, e), true);
+            }
+        }
+
+        /**
+         * Keep a started task, so it can be cancelled when the batch closes before it completed.
+         */
+        private void track(Future<?> future) {
+            synchronized (this) {
+                if (!closed) {
+                    started.add(future);
+                    return;
+                }
+            }
+            future.cancel(true);
+        }
+
+        /**
+         * @param more Whether to start the next task, unless called from {@link #startMore()} anyway
+         */
+        private void finish(int index, Outcome outcome, boolean more) {
+            List<Outcome> result = null;
+            ScheduledFuture<?> scheduled;
+            synchronized (this) {
+                if (closed || outcomes[index] != null) {
+                    return;
+                }
+                outcomes[index] = outcome;
+                running--;
+                completed++;
+                if (completed == tasks.size()) {
+                    closed = true;
+                    result = Arrays.asList(outcomes);
+                }
+                scheduled = expiry;
+            }
+            if (result == null) {
+                if (more) {
+                    startMore();
+                }
+                return;
+            }
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            deliver(result);
+        }
+
+        /**
+         * Close the batch, cancelling the tasks that did not complete yet.
+         *
+         * @param expired Whether the deadline expired, otherwise the batch was cancelled
+         * @return Whether the batch was still open
+         */
+        private boolean close(boolean expired) {
+            List<Future<?>> pending;
+            List<Outcome> result;
+            ScheduledFuture<?> scheduled;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                closed = true;
+                for (int i = 0; i < outcomes.length; i++) {
+                    if (outcomes[i] == null) {
+                        outcomes[i] = Outcome.TIMED_OUT;
+                        if (expired) {
+                            EXPIRED.incrementAndGet();
+                        }
+                    }
+                }
+                result = Arrays.asList(outcomes);
+                pending = new ArrayList<>(started);
+                scheduled = expiry;
+            }
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            for (Future<?> future : pending) {
+                future.cancel(true);
+            }
+            if (expired) {
+                deliver(result);
+            }
+            return true;
+        }
+
+        /**
+         * Complete the batch on a notification thread rather than on the thread of whichever call completed last,
+         * which may be an I/O thread of the HTTP client.
+         */
+        private void deliver(final List<Outcome> result) {
+            try {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completed(result);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                completed(result);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            close(false);
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * The outcome of a single notification.
+     */
+    static final class Outcome {
+
+        static final Outcome TIMED_OUT = new Outcome(null, true, null);
+
+        private final Deployment deployment;
+        private final boolean timedOut;
+        private final Throwable cause;
+
+        private Outcome(Deployment deployment, boolean timedOut, Throwable cause) {
+            this.deployment = deployment;
+            this.timedOut = timedOut;
+            this.cause = cause;
+        }
+
+        boolean isSuccess() {
+            return deployment != null;
+        }
+
+        /**
+         * @return The recorded deployment, or null if the notification was not successful
+         */
+        Deployment getDeployment() {
+            return deployment;
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * @return Why the notification failed, null if it succeeded, timed out or was rejected by New Relic
+         */
+        Throwable getCause() {
+            return cause instanceof DeploymentRejectedException ? null : cause;
+        }
+
+        /**
+         * @return The error status New Relic answered with, or null if it did not reject the notification
+         */
+        DeploymentRejectedException getRejection() {
+            return cause instanceof DeploymentRejectedException ? (DeploymentRejectedException) cause : null;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+import org.jenkinsci.plugins.newrelicnotifier.api.ClientMetrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exports the {@link NotificationMetrics} through the Metrics plugin, if installed.
+ */
+@Extension(optional = true)
+public class NotificationMetricProvider extends MetricProvider {
+
+    private static final String PREFIX = "newrelic-deployment-notifier";
+
+    private final MetricSet metrics;
+
+    public NotificationMetricProvider() {
+        final NotificationMetrics source = NotificationMetrics.get();
+        final Map<String, Metric> gauges = new LinkedHashMap<>();
+        operation(gauges, "deployments", source.getDeployments());
+        operation(gauges, "applications", source.getApplicationLists());
+        statuses(gauges, "2xx", 200, 299);
+        statuses(gauges, "4xx", 400, 499);
+        statuses(gauges, "429", 429, 429);
+        statuses(gauges, "5xx", 500, 599);
+        gauges.put(name("responses", "none"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.getConnectionErrors();
+            }
+        });
+        gauges.put(name("retries"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.getRetries();
+            }
+        });
+        gauges.put(name("timeouts"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.getTimeouts();
+            }
+        });
+        gauges.put(name("deadlines", "expired"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.getExpiredDeadlines();
+            }
+        });
+        gauges.put(name("pool", "leased"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return source.getLeasedConnections();
+            }
+        });
+        gauges.put(name("pool", "available"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return source.getAvailableConnections();
+            }
+        });
+        gauges.put(name("pool", "pending"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return source.getPendingConnections();
+            }
+        });
+        gauges.put(name("calls", "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return source.getQueuedCalls();
+            }
+        });
+        gauges.put(name("calls", "inflight"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return source.getInFlightCalls();
+            }
+        });
+        gauges.put(name("outbox", "size"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return source.getOutboxSize();
+            }
+        });
+        gauges.put(name("cache", "applications", "hitratio"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return source.getApplicationCacheHitRatio();
+            }
+        });
+        gauges.put(name("cache", "credentials", "hitratio"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return source.getCredentialsCacheHitRatio();
+            }
+        });
+        metrics = new MetricSet() {
+            @Override
+            public Map<String, Metric> getMetrics() {
+                return Collections.unmodifiableMap(gauges);
+            }
+        };
+    }
+
+    @Override
+    public MetricSet getMetricSet() {
+        return metrics;
+    }
+
+    private static void operation(Map<String, Metric> gauges, String operation, final ClientMetrics.Operation source) {
+        gauges.put(name(operation, "calls"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.getCalls();
+            }
+        });
+        gauges.put(name(operation, "failures"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.getFailures();
+            }
+        });
+        gauges.put(name(operation, "latency", "p50"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return source.getP50Millis();
+            }
+        });
+        gauges.put(name(operation, "latency", "p95"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return source.getP95Millis();
+            }
+        });
+        gauges.put(name(operation, "latency", "p99"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return source.getP99Millis();
+            }
+        });
+    }
+
+    private static void statuses(Map<String, Metric> gauges, String name, final int from, final int to) {
+        final NotificationMetrics source = NotificationMetrics.get();
+        gauges.put(name("responses", name), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return source.getStatusCount(from, to);
+            }
+        });
+    }
+
+    private static String name(String... names) {
+        return MetricRegistry.name(PREFIX, names);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.newrelicnotifier.api.ClientMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller wide metrics of the New Relic deployment notifier.
+ * <p>
+ * Combines the metrics of the New Relic client with those of the notifier itself. They are exported through JMX
+ * as {@value #OBJECT_NAME}, through the Metrics plugin if installed, and shown on the {@link NewRelicManagementLink}.
+ */
+public final class NotificationMetrics implements NotificationMetricsMXBean {
+
+    static final String OBJECT_NAME = "org.jenkinsci.plugins.newrelicnotifier:type=NotificationMetrics";
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationMetrics.class.getName());
+
+    private static final NotificationMetrics INSTANCE = new NotificationMetrics(ClientMetrics.get());
+
+    private final ClientMetrics client;
+
+    NotificationMetrics(ClientMetrics client) {
+        this.client = client;
+    }
+
+    public static NotificationMetrics get() {
+        return INSTANCE;
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to register New Relic deployment notifier metrics with JMX", e);
+        }
+    }
+
+    @Terminator
+    public static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to unregister New Relic deployment notifier metrics from JMX", e);
+        }
+    }
+
+    /**
+     * @return Deployment notifications, including their retries
+     */
+    public ClientMetrics.Operation getDeployments() {
+        return client.getDeployments();
+    }
+
+    /**
+     * @return Application list requests, including all pages
+     */
+    public ClientMetrics.Operation getApplicationLists() {
+        return client.getApplications();
+    }
+
+    @Override
+    public long getDeploymentCalls() {
+        return client.getDeployments().getCalls();
+    }
+
+    @Override
+    public long getDeploymentFailures() {
+        return client.getDeployments().getFailures();
+    }
+
+    @Override
+    public double getDeploymentLatencyP50Millis() {
+        return client.getDeployments().getP50Millis();
+    }
+
+    @Override
+    public double getDeploymentLatencyP95Millis() {
+        return client.getDeployments().getP95Millis();
+    }
+
+    @Override
+    public double getDeploymentLatencyP99Millis() {
+        return client.getDeployments().getP99Millis();
+    }
+
+    @Override
+    public long getApplicationListCalls() {
+        return client.getApplications().getCalls();
+    }
+
+    @Override
+    public long getApplicationListFailures() {
+        return client.getApplications().getFailures();
+    }
+
+    @Override
+    public double getApplicationListLatencyP50Millis() {
+        return client.getApplications().getP50Millis();
+    }
+
+    @Override
+    public double getApplicationListLatencyP95Millis() {
+        return client.getApplications().getP95Millis();
+    }
+
+    @Override
+    public double getApplicationListLatencyP99Millis() {
+        return client.getApplications().getP99Millis();
+    }
+
+    @Override
+    public Map<Integer, Long> getStatusCounts() {
+        return client.getStatusCounts();
+    }
+
+    /**
+     * @param from First status of the range, inclusive
+     * @param to Last status of the range, inclusive
+     * @return Number of responses with a status in the range
+     */
+    public long getStatusCount(int from, int to) {
+        return client.getStatusCount(from, to);
+    }
+
+    /**
+     * @return Number of calls that failed without a response
+     */
+    public long getConnectionErrors() {
+        return client.getConnectionErrors();
+    }
+
+    @Override
+    public long getRetries() {
+        return client.getRetries();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return client.getTimeouts();
+    }
+
+    @Override
+    public long getExpiredDeadlines() {
+        return NotificationDispatcher.getExpired();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return client.getLeasedConnections();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        return client.getAvailableConnections();
+    }
+
+    @Override
+    public int getPendingConnections() {
+        return client.getPendingConnections();
+    }
+
+    @Override
+    public int getQueuedCalls() {
+        return client.getQueuedCalls();
+    }
+
+    @Override
+    public int getInFlightCalls() {
+        return client.getInFlightCalls();
+    }
+
+    @Override
+    public int getOutboxSize() {
+        return Jenkins.getInstance() != null ? DeploymentOutbox.get().size() : 0;
+    }
+
+    @Override
+    public double getApplicationCacheHitRatio() {
+        ApplicationCache cache = getApplicationCache();
+        return cache != null ? cache.getHitRatio() : 0;
+    }
+
+    public long getApplicationCacheHits() {
+        ApplicationCache cache = getApplicationCache();
+        return cache != null ? cache.getHits() + cache.getStaleHits() : 0;
+    }
+
+    public long getApplicationCacheMisses() {
+        ApplicationCache cache = getApplicationCache();
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    @Override
+    public double getCredentialsCacheHitRatio() {
+        return CredentialsCache.get().getHitRatio();
+    }
+
+    public long getCredentialsCacheHits() {
+        return CredentialsCache.get().getHits();
+    }
+
+    public long getCredentialsCacheMisses() {
+        return CredentialsCache.get().getMisses();
+    }
+
+    public long getApplicationIndexHits() {
+        return ApplicationIndex.get().getHits();
+    }
+
+    public long getApplicationIndexMisses() {
+        return ApplicationIndex.get().getMisses();
+    }
+
+    private static ApplicationCache getApplicationCache() {
+        Jenkins jenkins = Jenkins.getInstance();
+        DeploymentNotificationBean.DescriptorImpl descriptor = jenkins != null
+                ? jenkins.getDescriptorByType(DeploymentNotificationBean.DescriptorImpl.class) : null;
+        return descriptor != null ? descriptor.getApplicationCache() : null;
+    }
+}
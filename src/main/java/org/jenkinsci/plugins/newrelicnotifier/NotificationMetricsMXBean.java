@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import java.util.Map;
+
+/**
+ * Metrics of the New Relic deployment notifier exported through JMX.
+ */
+public interface NotificationMetricsMXBean {
+
+    long getDeploymentCalls();
+
+    long getDeploymentFailures();
+
+    double getDeploymentLatencyP50Millis();
+
+    double getDeploymentLatencyP95Millis();
+
+    double getDeploymentLatencyP99Millis();
+
+    long getApplicationListCalls();
+
+    long getApplicationListFailures();
+
+    double getApplicationListLatencyP50Millis();
+
+    double getApplicationListLatencyP95Millis();
+
+    double getApplicationListLatencyP99Millis();
+
+    Map<Integer, Long> getStatusCounts();
+
+    long getRetries();
+
+    long getTimeouts();
+
+    long getExpiredDeadlines();
+
+    int getLeasedConnections();
+
+    int getAvailableConnections();
+
+    int getPendingConnections();
+
+    int getQueuedCalls();
+
+    int getInFlightCalls();
+
+    int getOutboxSize();
+
+    double getApplicationCacheHitRatio();
+
+    double getCredentialsCacheHitRatio();
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import java.util.UUID;
+
+/**
+ * A fully resolved deployment notification waiting in the {@link DeploymentOutbox}.
+ * <p>
+ * Only the credential ID is kept, the API key is looked up again when the notification is delivered. The number of
+ * failed delivery attempts is the only mutable state, it is updated and persisted by the outbox.
+ */
+final class QueuedNotification {
+
+    private final String id;
+    private final String job;
+    private final int build;
+    private final String credentialsId;
+    private final String applicationId;
+    private final String description;
+    private final String revision;
+    private final String changelog;
+    private final String user;
+    private final long queuedAt;
+    private int attempts;
+
+    QueuedNotification(String job, int build, String credentialsId, String applicationId, String description,
+                       String revision, String changelog, String user) {
+        this.id = UUID.randomUUID().toString();
+        this.job = job;
+        this.build = build;
+        this.credentialsId = credentialsId;
+        this.applicationId = applicationId;
+        this.description = description;
+        this.revision = revision;
+        this.changelog = changelog;
+        this.user = user;
+        this.queuedAt = System.currentTimeMillis();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getJob() {
+        return job;
+    }
+
+    int getBuild() {
+        return build;
+    }
+
+    String getCredentialsId() {
+        return credentialsId;
+    }
+
+    String getApplicationId() {
+        return applicationId;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    String getRevision() {
+        return revision;
+    }
+
+    String getChangelog() {
+        return changelog;
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * @return Number of failed delivery attempts
+     */
+    int getAttempts() {
+        return attempts;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Builds the changelog of a deployment notification from the SCM changes recorded by Jenkins.
+ * <p>
+ * Entries are formatted one at a time while the {@link ChangelogReader} consumes them, so with the default
+ * truncation no entries are formatted past the New Relic changelog limit. The format may contain {@code %r} for the
+ * commit ID, {@code %m} for the message, {@code %a} for the author, {@code %d} for the date and {@code %%} for a
+ * percent sign.
+ */
+final class ScmChangelog {
+
+    static final String DEFAULT_FORMAT = "%r %m (%a)";
+
+    /**
+     * Upper bound of builds looked at for changes since the last notified build.
+     */
+    static final int MAX_BUILDS = 100;
+
+    private ScmChangelog() {
+    }
+
+    /**
+     * @param run The build being notified
+     * @param applicationId The application being notified
+     * @param source {@link ChangelogSource#SCM} or {@link ChangelogSource#SCM_SINCE_LAST_NOTIFIED}
+     * @param format The format of each entry
+     * @param truncation What to keep if the changelog is too long
+     * @return The changelog, {@code null} if the build does not record SCM changes
+     */
+    static String read(Run<?, ?> run, String applicationId, ChangelogSource source, String format,
+                       ChangelogTruncation truncation) throws IOException {
+        if (!(run instanceof AbstractBuild)) {
+            return null;
+        }
+        Iterator<ChangeLogSet.Entry> entries = new Entries((AbstractBuild<?, ?>) run, applicationId,
+                source == ChangelogSource.SCM_SINCE_LAST_NOTIFIED);
+        return new ChangelogReader(truncation, ChangelogReader.MAX_LENGTH).read(new EntryReader(entries, format));
+    }
+
+    /**
+     * @return One formatted entry
+     */
+    static String format(String format, String commitId, String message, String author, long timestamp) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c != '%' || i + 1 == format.length()) {
+                sb.append(c);
+                continue;
+            }
+            char token = format.charAt(++i);
+            switch (token) {
+                case 'r':
+                    append(sb, commitId);
+                    break;
+                case 'm':
+                    append(sb, message != null ? message.trim() : null);
+                    break;
+                case 'a':
+                    append(sb, author);
+                    break;
+                case 'd':
+                    if (timestamp >= 0) {
+                        sb.append(new SimpleDateFormat("yyyy-MM-dd").format(new Date(timestamp)));
+                    }
+                    break;
+                case '%':
+                    sb.append('%');
+                    break;
+                default:
+                    sb.append(c).append(token);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String value) {
+        if (value != null) {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * @return Whether the application was notified by the build
+     */
+    private static boolean isNotified(Run<?, ?> run, String applicationId) {
+        DeploymentStatusAction action = run.getAction(DeploymentStatusAction.class);
+        return action != null && action.isDelivered(applicationId);
+    }
+
+    /**
+     * The change set entries of a build, followed by those of earlier builds back to the last one that notified
+     * the application if requested.
+     */
+    private static final class Entries implements Iterator<ChangeLogSet.Entry> {
+
+        private final String applicationId;
+        private final boolean sinceLastNotified;
+        private AbstractBuild<?, ?> build;
+        private Iterator<? extends ChangeLogSet.Entry> current;
+        private int builds;
+
+        Entries(AbstractBuild<?, ?> build, String applicationId, boolean sinceLastNotified) {
+            this.applicationId = applicationId;
+            this.sinceLastNotified = sinceLastNotified;
+            this.build = build;
+            this.current = build.getChangeSet().iterator();
+            this.builds = 1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (!sinceLastNotified || builds >= MAX_BUILDS) {
+                    return false;
+                }
+                build = build.getPreviousBuild();
+                if (build == null || isNotified(build, applicationId)) {
+                    return false;
+                }
+                current = build.getChangeSet().iterator();
+                builds++;
+            }
+            return true;
+        }
+
+        @Override
+        public ChangeLogSet.Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Formats entries into lines as they are read.
+     */
+    static final class EntryReader extends Reader {
+
+        private final Iterator<? extends ChangeLogSet.Entry> entries;
+        private final String format;
+        private String line = "";
+        private int position;
+        private boolean first = true;
+
+        EntryReader(Iterator<? extends ChangeLogSet.Entry> entries, String format) {
+            this.entries = entries;
+            this.format = format != null && !format.isEmpty() ? format : DEFAULT_FORMAT;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read < length) {
+                if (position == line.length()) {
+                    if (!entries.hasNext()) {
+                        break;
+                    }
+                    ChangeLogSet.Entry entry = entries.next();
+                    User author = entry.getAuthor();
+                    String formatted = format(format, entry.getCommitId(), entry.getMsg(),
+                            author != null ? author.getFullName() : null, entry.getTimestamp());
+                    line = first ? formatted : "\n" + formatted;
+                    position = 0;
+                    first = false;
+                    continue;
+                }
+                int n = Math.min(length - read, line.length() - position);
+                line.getChars(position, position + n, buffer, offset + read);
+                position += n;
+                read += n;
+            }
+            return read > 0 ? read : -1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
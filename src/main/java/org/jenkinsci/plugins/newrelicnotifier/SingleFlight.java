@@ -0,0 +1,261 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.jenkinsci.plugins.newrelicnotifier.api.ApiKeys;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Coalesces identical deployment notifications that are in flight at the same time.
+ * <p>
+ * Matrix and fan-in builds often notify the same application about the same revision within seconds. The first
+ * notification for a key is sent, concurrent duplicates wait for it and share its result instead of creating
+ * another deployment marker. Keys are only held while the notification is in flight.
+ */
+final class SingleFlight {
+
+    private static final ConcurrentMap<String, Flight> FLIGHTS = new ConcurrentHashMap<>();
+
+    private SingleFlight() {
+    }
+
+    /**
+     * @return Key identifying a notification, without holding on to the API key itself
+     */
+    static String key(String apiKey, String applicationId, String revision, String description) {
+        return ApiKeys.fingerprint(apiKey) + '/' + applicationId + '/' + revision + '/' + ApiKeys.fingerprint(description);
+    }
+
+    /**
+     * Join the notification in flight for the key, or start a new one.
+     *
+     * @param key Key from {@link #key(String, String, String, String)}
+     * @param task Sends the notification, only started if no identical notification is in flight, in which case it
+     *             is started on the calling thread
+     * @param callback Notified of the outcome, may be null
+     * @return The seat on the flight to wait on
+     */
+    static Seat join(String key, NotificationDispatcher.Task task, FutureCallback<Deployment> callback) {
+        Seat seat = new Seat(key, task, callback);
+        seat.board();
+        return seat;
+    }
+
+    /**
+     * @return Number of notifications in flight
+     */
+    static int size() {
+        return FLIGHTS.size();
+    }
+
+    /**
+     * Timeouts are interrupted I/O as well, but unlike an aborted build they are worth sharing.
+     */
+    private static boolean isInterruption(Throwable cause) {
+        return cause instanceof InterruptedException || (cause instanceof InterruptedIOException
+                && !(cause instanceof SocketTimeoutException) && !(cause instanceof ConnectTimeoutException));
+    }
+
+    /**
+     * A notification waiting for the outcome of a flight. Cancelling the seat of the notification that started the
+     * flight cancels the flight, the other notifications then start a flight of their own.
+     */
+    static final class Seat extends BasicFuture<Deployment> {
+
+        private final String key;
+
+        private final NotificationDispatcher.Task task;
+
+        private volatile Flight flight;
+
+        private volatile boolean coalesced;
+
+        private Seat(String key, NotificationDispatcher.Task task, FutureCallback<Deployment> callback) {
+            super(callback);
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * @return Whether another notification was already in flight and this one waits for its result
+         */
+        boolean isCoalesced() {
+            return coalesced;
+        }
+
+        private void board() {
+            while (true) {
+                Flight created = new Flight(key, this);
+                Flight existing = FLIGHTS.putIfAbsent(key, created);
+                if (existing == null) {
+                    coalesced = false;
+                    flight = created;
+                    created.start(task);
+                    return;
+                }
+                if (existing.add(this)) {
+                    coalesced = true;
+                    flight = existing;
+                    return;
+                }
+                // the flight landed in the meantime, try again
+            }
+        }
+
+        /**
+         * The build sending the notification was aborted, that says nothing about this one.
+         */
+        private void rebook() {
+            try {
+                // starting a flight may block, which callbacks must not
+                NotificationDispatcher.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isDone()) {
+                            board();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed(e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Flight current = flight;
+            if (cancelled && current != null) {
+                current.leave(this);
+            }
+            return cancelled;
+        }
+    }
+
+    private static final class Flight implements FutureCallback<Deployment> {
+
+        private final String key;
+
+        private final Seat leader;
+
+        private final List<Seat> seats = new ArrayList<>();
+
+        private Future<Deployment> call;
+
+        private boolean landed;
+
+        private Flight(String key, Seat leader) {
+            this.key = key;
+            this.leader = leader;
+            seats.add(leader);
+        }
+
+        private void start(NotificationDispatcher.Task task) {
+            Future<Deployment> started;
+            try {
+                started = task.start(this);
+            } catch (Exception e) {
+                failed(e);
+                return;
+            }
+            synchronized (this) {
+                call = started;
+            }
+            if (leader.isCancelled()) {
+                started.cancel(true);
+            }
+        }
+
+        /**
+         * @return Whether the seat was added, false if the flight already landed
+         */
+        private synchronized boolean add(Seat seat) {
+            if (landed) {
+                return false;
+            }
+            seats.add(seat);
+            return true;
+        }
+
+        private void leave(Seat seat) {
+            Future<Deployment> pending;
+            synchronized (this) {
+                seats.remove(seat);
+                pending = seat == leader ? call : null;
+            }
+            if (pending != null) {
+                pending.cancel(true);
+            }
+        }
+
+        private List<Seat> land() {
+            FLIGHTS.remove(key, this);
+            synchronized (this) {
+                landed = true;
+                return new ArrayList<>(seats);
+            }
+        }
+
+        @Override
+        public void completed(Deployment deployment) {
+            for (Seat seat : land()) {
+                seat.completed(deployment);
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            for (Seat seat : land()) {
+                if (seat != leader && isInterruption(e)) {
+                    seat.rebook();
+                } else {
+                    seat.failed(e);
+                }
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            for (Seat seat : land()) {
+                if (seat != leader) {
+                    seat.rebook();
+                } else {
+                    seat.cancel();
+                }
+            }
+        }
+    }
+}
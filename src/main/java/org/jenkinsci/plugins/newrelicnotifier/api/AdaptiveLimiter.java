@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller wide limit on the number of concurrent New Relic API calls made with the same API key.
+ * <p>
+ * The limit adapts to the responses (AIMD): it grows by one for every {@code limit} healthy calls and is cut
+ * multiplicatively when New Relic answers 429 or the latency rises well above its moving average. Callers waiting
+ * for a slot are served in arrival order, whether they block or asked to be called back.
+ */
+public final class AdaptiveLimiter {
+
+    private static final String PREFIX = AdaptiveLimiter.class.getName();
+
+    static final int INITIAL_LIMIT = Integer.getInteger(PREFIX + ".initialLimit", 4);
+
+    static final int MIN_LIMIT = Integer.getInteger(PREFIX + ".minLimit", 1);
+
+    static final int MAX_LIMIT = Integer.getInteger(PREFIX + ".maxLimit", 32);
+
+    private static final double THROTTLED_DECREASE = 0.5;
+
+    private static final double LATENCY_DECREASE = 0.75;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final long LATENCY_FLOOR_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private static final ConcurrentMap<String, AdaptiveLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private final String key;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final Deque<Object> waiting = new ArrayDeque<>();
+
+    private double limit;
+
+    private int inFlight;
+
+    private double averageLatencyNanos;
+
+    AdaptiveLimiter(String key, int initialLimit, int minLimit, int maxLimit) {
+        this.key = key;
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+    }
+
+    /**
+     * @param apiKey New Relic API key
+     * @return The limiter shared by all calls made with the API key
+     */
+    public static AdaptiveLimiter forApiKey(String apiKey) {
+        String fingerprint = ApiKeys.fingerprint(apiKey);
+        AdaptiveLimiter limiter = LIMITERS.get(fingerprint);
+        if (limiter == null) {
+            AdaptiveLimiter created = new AdaptiveLimiter(fingerprint.substring(0, 12), INITIAL_LIMIT, MIN_LIMIT, MAX_LIMIT);
+            limiter = LIMITERS.putIfAbsent(fingerprint, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * @return All limiters, ordered by key
+     */
+    public static List<AdaptiveLimiter> all() {
+        Map<String, AdaptiveLimiter> sorted = new TreeMap<>();
+        for (AdaptiveLimiter limiter : LIMITERS.values()) {
+            sorted.put(limiter.getKey(), limiter);
+        }
+        return Collections.unmodifiableList(new ArrayList<>(sorted.values()));
+    }
+
+    /**
+     * Wait for a slot.
+     *
+     * @param timeoutMillis Maximum time to wait
+     * @return {@code true} if a slot was acquired, {@code false} if the timeout expired first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(long timeoutMillis) throws InterruptedException {
+        Object ticket = new Object();
+        List<Runnable> admitted = Collections.emptyList();
+        try {
+            synchronized (this) {
+                waiting.addLast(ticket);
+                try {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                    while (waiting.peekFirst() != ticket || inFlight >= (int) limit) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    inFlight++;
+                    return true;
+                } finally {
+                    waiting.remove(ticket);
+                    admitted = admit();
+                    notifyAll();
+                }
+            }
+        } finally {
+            run(admitted);
+        }
+    }
+
+    /**
+     * Ask for a slot without blocking. If a slot is free and nobody is waiting, it is taken and {@code onSlot} runs
+     * right away. Otherwise {@code onSlot} waits in line with the blocking callers and runs on the thread that
+     * frees up the slot.
+     *
+     * @param onSlot Called once the slot was taken, must not block
+     * @return {@code true} if {@code onSlot} already ran, {@code false} if it is waiting
+     * @see #cancel(Runnable)
+     */
+    public boolean acquire(Runnable onSlot) {
+        synchronized (this) {
+            if (!waiting.isEmpty() || inFlight >= (int) limit) {
+                waiting.addLast(onSlot);
+                return false;
+            }
+            inFlight++;
+        }
+        onSlot.run();
+        return true;
+    }
+
+    /**
+     * Stop waiting for a slot asked for with {@link #acquire(Runnable)}.
+     *
+     * @param onSlot The waiting callback
+     * @return {@code true} if the callback was still waiting and will not run
+     */
+    public boolean cancel(Runnable onSlot) {
+        List<Runnable> admitted;
+        boolean removed;
+        synchronized (this) {
+            removed = waiting.remove(onSlot);
+            admitted = admit();
+            notifyAll();
+        }
+        run(admitted);
+        return removed;
+    }
+
+    /**
+     * Give back a slot and adapt the limit to the outcome of the call.
+     *
+     * @param latencyNanos How long the call took
+     * @param throttled Whether New Relic answered the call with 429
+     */
+    public void release(long latencyNanos, boolean throttled) {
+        List<Runnable> admitted;
+        synchronized (this) {
+            inFlight--;
+            if (throttled) {
+                limit = Math.max(minLimit, limit * THROTTLED_DECREASE);
+            } else if (averageLatencyNanos > 0 && latencyNanos > LATENCY_FLOOR_NANOS
+                    && latencyNanos > averageLatencyNanos * LATENCY_TOLERANCE) {
+                limit = Math.max(minLimit, limit * LATENCY_DECREASE);
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            averageLatencyNanos = averageLatencyNanos == 0 ? latencyNanos
+                    : averageLatencyNanos + LATENCY_SMOOTHING * (latencyNanos - averageLatencyNanos);
+            admitted = admit();
+            notifyAll();
+        }
+        run(admitted);
+    }
+
+    /**
+     * Give back a slot without adapting the limit, e.g. when the call failed before reaching New Relic.
+     */
+    public void release() {
+        List<Runnable> admitted;
+        synchronized (this) {
+            inFlight--;
+            admitted = admit();
+            notifyAll();
+        }
+        run(admitted);
+    }
+
+    /**
+     * Hand free slots to the non-blocking callers at the head of the line. The returned callbacks must be run
+     * after leaving the monitor.
+     */
+    private List<Runnable> admit() {
+        List<Runnable> admitted = Collections.emptyList();
+        while (waiting.peekFirst() instanceof Runnable && inFlight < (int) limit) {
+            if (admitted.isEmpty()) {
+                admitted = new ArrayList<>();
+            }
+            inFlight++;
+            admitted.add((Runnable) waiting.pollFirst());
+        }
+        return admitted;
+    }
+
+    private static void run(List<Runnable> admitted) {
+        for (Runnable onSlot : admitted) {
+            onSlot.run();
+        }
+    }
+
+    /**
+     * @return Abbreviated fingerprint of the API key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueueDepth() {
+        return waiting.size();
+    }
+
+    public synchronized long getAverageLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((long) averageLatencyNanos);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pull parser for pages of the {@code /v2/applications.json} endpoint.
+ * <p>
+ * Only the {@code id} and {@code name} of each application are kept, everything else is skipped without building
+ * an object tree. The parser reads a page body the client has already received in full, it does not parse while
+ * the page is still arriving.
+ */
+final class ApplicationListReader {
+
+    private static final Pattern NEXT_LINK = Pattern.compile("<([^>]+)>\\s*;\\s*rel=\"?next\"?");
+
+    private ApplicationListReader() {
+    }
+
+    /**
+     * Read one page of applications.
+     *
+     * @param reader The response body
+     * @param applications Collection the applications are added to
+     * @throws IOException if the body could not be read or is malformed
+     */
+    static void read(Reader reader, Collection<Application> applications) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("applications".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    applications.add(readApplication(json));
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    /**
+     * Get the link to the next page from the {@code Link} response header.
+     *
+     * @param response The response of the current page
+     * @param base The URL of the current page, used to resolve relative links
+     * @return The URL of the next page or {@code null} if this is the last page
+     */
+    static URI nextLink(HttpResponse response, URI base) {
+        for (Header header : response.getHeaders("Link")) {
+            Matcher matcher = NEXT_LINK.matcher(header.getValue());
+            if (matcher.find()) {
+                return base.resolve(matcher.group(1));
+            }
+        }
+        return null;
+    }
+
+    private static Application readApplication(JsonReader json) throws IOException {
+        String id = null;
+        String name = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if ("id".equals(field)) {
+                id = readString(json);
+            } else if ("name".equals(field)) {
+                name = readString(json);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return new Application(id, name);
+    }
+
+    private static String readString(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        return json.nextString();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller wide circuit breaker for the calls made to a New Relic endpoint with one API key.
+ * <p>
+ * The outcome of the last calls is tracked in a sliding window. Once enough calls have been made and the share of
+ * failed ones reaches the failure rate, the breaker opens and calls fail fast with a {@link CircuitOpenException}.
+ * After the open period one probe call at a time is let through (half-open); a successful probe closes the
+ * breaker, a failed one opens it again.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private static volatile Settings settings = new Settings(20, 10, 50, TimeUnit.SECONDS.toMillis(30));
+
+    private final String key;
+
+    private final String endpoint;
+
+    private boolean[] window = new boolean[0];
+
+    private int position;
+
+    private int calls;
+
+    private int failures;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    private boolean probing;
+
+    CircuitBreaker(String key, String endpoint) {
+        this.key = key;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @param endpoint The New Relic endpoint
+     * @param apiKey New Relic API key
+     * @return The breaker shared by all calls to the endpoint made with the API key
+     */
+    public static CircuitBreaker forEndpoint(String endpoint, String apiKey) {
+        String fingerprint = ApiKeys.fingerprint(apiKey);
+        String id = endpoint + "#" + fingerprint;
+        CircuitBreaker breaker = BREAKERS.get(id);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(fingerprint.substring(0, 12), endpoint);
+            breaker = BREAKERS.putIfAbsent(id, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @return All breakers, ordered by endpoint and key
+     */
+    public static List<CircuitBreaker> all() {
+        Map<String, CircuitBreaker> sorted = new TreeMap<>();
+        for (CircuitBreaker breaker : BREAKERS.values()) {
+            sorted.put(breaker.getEndpoint() + "#" + breaker.getKey(), breaker);
+        }
+        return Collections.unmodifiableList(new ArrayList<>(sorted.values()));
+    }
+
+    /**
+     * Change the settings of all breakers.
+     *
+     * @param windowSize Number of calls in the sliding window
+     * @param minimumCalls Number of calls in the window before the breaker may open
+     * @param failureRatePercent Share of failed calls in the window that opens the breaker
+     * @param openMillis How long the breaker stays open before letting a probe through
+     */
+    public static void configure(int windowSize, int minimumCalls, int failureRatePercent, long openMillis) {
+        settings = new Settings(windowSize, minimumCalls, failureRatePercent, openMillis);
+    }
+
+    /**
+     * Get permission to make a call.
+     *
+     * @throws CircuitOpenException if the breaker is open, or half-open with a probe already in flight
+     */
+    public synchronized void acquirePermission() throws CircuitOpenException {
+        Settings current = settings;
+        if (state == State.OPEN) {
+            long remaining = openedAt + current.openMillis - System.currentTimeMillis();
+            if (remaining > 0) {
+                throw new CircuitOpenException("New Relic circuit breaker is open after " + failures + " of "
+                        + calls + " calls failed, retrying in " + TimeUnit.MILLISECONDS.toSeconds(remaining) + " s");
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                throw new CircuitOpenException("New Relic circuit breaker is half-open and waiting for a probe call");
+            }
+            probing = true;
+        }
+    }
+
+    /**
+     * Record the outcome of a call made after {@link #acquirePermission()}.
+     *
+     * @param success Whether New Relic handled the call, regardless of whether the call itself was valid
+     */
+    public synchronized void record(boolean success) {
+        Settings current = settings;
+        if (state == State.HALF_OPEN && probing) {
+            probing = false;
+            if (success) {
+                reset(current);
+                state = State.CLOSED;
+            } else {
+                open();
+            }
+            return;
+        }
+        if (window.length != current.windowSize) {
+            reset(current);
+        }
+        if (calls == window.length) {
+            if (!window[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = success;
+        if (!success) {
+            failures++;
+        }
+        position = (position + 1) % window.length;
+        if (state == State.CLOSED && calls >= current.minimumCalls
+                && failures * 100 >= current.failureRatePercent * calls) {
+            open();
+        }
+    }
+
+    /**
+     * Give back the permission of a call that was cancelled before it had an outcome.
+     */
+    synchronized void cancel() {
+        if (state == State.HALF_OPEN) {
+            // let the next call probe instead
+            probing = false;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void reset(Settings current) {
+        window = new boolean[current.windowSize];
+        position = 0;
+        calls = 0;
+        failures = 0;
+    }
+
+    /**
+     * @return Abbreviated fingerprint of the API key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openedAt + settings.openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized boolean isOpen() {
+        return getState() == State.OPEN;
+    }
+
+    public synchronized int getCalls() {
+        return calls;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    private static final class Settings {
+        private final int windowSize;
+        private final int minimumCalls;
+        private final int failureRatePercent;
+        private final long openMillis;
+
+        Settings(int windowSize, int minimumCalls, int failureRatePercent, long openMillis) {
+            this.windowSize = Math.max(windowSize, 1);
+            this.minimumCalls = Math.min(Math.max(minimumCalls, 1), this.windowSize);
+            this.failureRatePercent = Math.min(Math.max(failureRatePercent, 1), 100);
+            this.openMillis = Math.max(openMillis, 0);
+        }
+    }
+}
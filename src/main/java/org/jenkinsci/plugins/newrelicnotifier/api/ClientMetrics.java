@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.pool.PoolStats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller wide metrics of the calls made by {@link NewRelicAsyncClientImpl} and {@link NerdGraphClient}.
+ * <p>
+ * Latency percentiles are computed over the most recent {@link Operation#SAMPLES} calls of each operation, all
+ * other values count since Jenkins was started.
+ */
+public final class ClientMetrics {
+
+    private static final ClientMetrics INSTANCE = new ClientMetrics();
+
+    private final Operation deployments = new Operation();
+
+    private final Operation applications = new Operation();
+
+    private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    ClientMetrics() {
+    }
+
+    public static ClientMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param status HTTP status of a response, or -1 if no response was received
+     */
+    void recordStatus(int status) {
+        AtomicLong counter = statuses.get(status);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = statuses.putIfAbsent(status, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * @return Deployment notifications, including their retries
+     */
+    public Operation getDeployments() {
+        return deployments;
+    }
+
+    /**
+     * @return Application list requests, including all pages
+     */
+    public Operation getApplications() {
+        return applications;
+    }
+
+    /**
+     * @return Number of responses by HTTP status, -1 counts calls without a response
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @param from First status of the range, inclusive
+     * @param to Last status of the range, inclusive
+     * @return Number of responses with a status in the range
+     */
+    public long getStatusCount(int from, int to) {
+        long count = 0;
+        for (Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+            if (entry.getKey() >= from && entry.getKey() <= to) {
+                count += entry.getValue().get();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of calls that failed without a response
+     */
+    public long getConnectionErrors() {
+        return getStatusCount(-1, -1);
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return Number of calls that failed because a connect, socket or connection pool timeout expired
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public int getLeasedConnections() {
+        int leased = 0;
+        for (PoolStats stats : poolStats()) {
+            leased += stats.getLeased();
+        }
+        return leased;
+    }
+
+    public int getAvailableConnections() {
+        int available = 0;
+        for (PoolStats stats : poolStats()) {
+            available += stats.getAvailable();
+        }
+        return available;
+    }
+
+    /**
+     * @return Number of calls waiting for a connection from the pool
+     */
+    public int getPendingConnections() {
+        int pending = 0;
+        for (PoolStats stats : poolStats()) {
+            pending += stats.getPending();
+        }
+        return pending;
+    }
+
+    /**
+     * @return Statistics of the blocking and the non-blocking connection pool, of those built so far
+     */
+    private static List<PoolStats> poolStats() {
+        List<PoolStats> pools = new ArrayList<>(2);
+        PoolStats stats = SharedHttpClient.poolStats();
+        if (stats != null) {
+            pools.add(stats);
+        }
+        stats = SharedAsyncHttpClient.poolStats();
+        if (stats != null) {
+            pools.add(stats);
+        }
+        return pools;
+    }
+
+    /**
+     * @return Number of calls waiting for the concurrency limit of their API key
+     */
+    public int getQueuedCalls() {
+        int queued = 0;
+        for (AdaptiveLimiter limiter : AdaptiveLimiter.all()) {
+            queued += limiter.getQueueDepth();
+        }
+        return queued;
+    }
+
+    public int getInFlightCalls() {
+        int inFlight = 0;
+        for (AdaptiveLimiter limiter : AdaptiveLimiter.all()) {
+            inFlight += limiter.getInFlight();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Calls and latency of one kind of call.
+     */
+    public static final class Operation {
+
+        static final int SAMPLES = 1024;
+
+        private final AtomicLong calls = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final long[] samples = new long[SAMPLES];
+
+        private int size;
+
+        private int position;
+
+        Operation() {
+        }
+
+        /**
+         * @param startNanos {@link System#nanoTime()} when the call started
+         * @param success Whether the call succeeded
+         */
+        void record(long startNanos, boolean success) {
+            long elapsed = System.nanoTime() - startNanos;
+            calls.incrementAndGet();
+            if (!success) {
+                failures.incrementAndGet();
+            }
+            synchronized (samples) {
+                samples[position] = elapsed;
+                position = (position + 1) % SAMPLES;
+                size = Math.min(size + 1, SAMPLES);
+            }
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public double getP50Millis() {
+            return percentile(0.50);
+        }
+
+        public double getP95Millis() {
+            return percentile(0.95);
+        }
+
+        public double getP99Millis() {
+            return percentile(0.99);
+        }
+
+        public double getMaxMillis() {
+            return percentile(1.0);
+        }
+
+        /**
+         * @param quantile Between 0 and 1
+         * @return The latency in milliseconds below which the quantile of the recent calls completed, 0 if none
+         */
+        double percentile(double quantile) {
+            long[] sorted;
+            synchronized (samples) {
+                sorted = Arrays.copyOf(samples, size);
+            }
+            if (sorted.length == 0) {
+                return 0;
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            long nanos = sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A deployment recorded by New Relic.
+ */
+public class Deployment implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final String applicationId;
+
+    public Deployment(String id, String applicationId) {
+        this.id = id;
+        this.applicationId = applicationId;
+    }
+
+    /**
+     * @return The ID New Relic assigned to the deployment, or null if the response did not contain one
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getApplicationId() {
+        return applicationId;
+    }
+
+    /**
+     * Read the deployment from the response to a successful deployment request.
+     *
+     * @param applicationId The application the deployment was recorded for
+     * @param entity The response body, e.g. <code>{"deployment": {"id": 1234, ...}}</code>
+     * @return The deployment, without an ID if the body cannot be read
+     */
+    static Deployment read(String applicationId, HttpEntity entity) {
+        String id = null;
+        if (entity != null) {
+            try {
+                JsonElement json = new JsonParser().parse(EntityUtils.toString(entity, StandardCharsets.UTF_8));
+                JsonElement deployment = json.isJsonObject() ? json.getAsJsonObject().get("deployment") : null;
+                JsonElement value = deployment != null && deployment.isJsonObject()
+                        ? deployment.getAsJsonObject().get("id") : null;
+                if (value != null && value.isJsonPrimitive()) {
+                    id = value.getAsString();
+                }
+            } catch (IOException | JsonParseException e) {
+                // the deployment was recorded, only its ID is unknown
+            }
+        }
+        return new Deployment(id, applicationId);
+    }
+}
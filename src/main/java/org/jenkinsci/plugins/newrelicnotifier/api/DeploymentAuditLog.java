@@ -0,0 +1,592 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller side audit log of the deployments sent to New Relic, including their full payloads.
+ * <p>
+ * The build console only gets a one line {@link Entry#summary() summary} of each deployment. Entries are queued and
+ * written as JSON lines by a background thread, in batches. The current file is rotated once it reaches
+ * {@link #MAX_FILE_BYTES} or when a new {@link #ROTATE_MILLIS} period starts, and only the newest
+ * {@link #MAX_FILES} rotated files are kept. Entries are dropped rather than blocking the caller if the writer
+ * falls behind by more than {@link #QUEUE_CAPACITY} entries.
+ */
+public final class DeploymentAuditLog {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentAuditLog.class.getName());
+
+    private static final String PREFIX = DeploymentAuditLog.class.getName();
+
+    static final long MAX_FILE_BYTES = Long.getLong(PREFIX + ".maxFileBytes", 10 * 1024 * 1024);
+
+    static final long ROTATE_MILLIS = Long.getLong(PREFIX + ".rotateMillis", TimeUnit.DAYS.toMillis(1));
+
+    static final int MAX_FILES = Integer.getInteger(PREFIX + ".maxFiles", 10);
+
+    static final int QUEUE_CAPACITY = 10000;
+
+    static final String CURRENT = "audit.jsonl";
+
+    private static final String ROTATED_PREFIX = "audit-";
+
+    private static final Gson GSON = new Gson();
+
+    private static DeploymentAuditLog instance;
+
+    private final File dir;
+
+    private final long maxFileBytes;
+
+    private final long rotateMillis;
+
+    private final int maxFiles;
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "DeploymentAuditLog.writer"));
+
+    /**
+     * @param dir Directory of the log, or null to discard all entries
+     */
+    DeploymentAuditLog(File dir, long maxFileBytes, long rotateMillis, int maxFiles) {
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.rotateMillis = rotateMillis;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * @return The audit log of this Jenkins instance, which discards entries when Jenkins is not running
+     */
+    public static synchronized DeploymentAuditLog get() {
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                return new DeploymentAuditLog(null, MAX_FILE_BYTES, ROTATE_MILLIS, MAX_FILES);
+            }
+            instance = new DeploymentAuditLog(new File(new File(jenkins.getRootDir(), "newrelic-deployment-notifier"),
+                    "audit"), MAX_FILE_BYTES, ROTATE_MILLIS, MAX_FILES);
+        }
+        return instance;
+    }
+
+    /**
+     * Queue an entry to be written in the background. Later changes to the entry are not written.
+     */
+    public void write(Entry entry) {
+        if (dir == null) {
+            return;
+        }
+        if (!queue.offer(entry.copy())) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (draining.compareAndSet(false, true)) {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Number of entries dropped because the writer fell behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Wait until the entries queued so far are written.
+     */
+    void flush() throws InterruptedException {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // runs after the drain scheduled before it
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void drain() {
+        List<Entry> batch = new ArrayList<>();
+        for (;;) {
+            queue.drainTo(batch);
+            if (batch.isEmpty()) {
+                draining.set(false);
+                // an entry may have been queued after draining the queue but before clearing the flag
+                if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                append(batch);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to write " + batch.size() + " New Relic deployment audit entries", e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void append(List<Entry> batch) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        File file = new File(dir, CURRENT);
+        rotate(file, System.currentTimeMillis());
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8))) {
+            for (Entry entry : batch) {
+                out.write(GSON.toJson(entry));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Rotate the current file if it is too large or was last written in an earlier period.
+     */
+    private void rotate(File file, long now) throws IOException {
+        long modified = file.lastModified();
+        if (!file.isFile() || (file.length() < maxFileBytes && modified / rotateMillis == now / rotateMillis)) {
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        File rotated = new File(dir, ROTATED_PREFIX + format.format(new Date(modified)) + ".jsonl");
+        // keep names unique when rotating more than once within a millisecond
+        for (long t = modified + 1; rotated.exists(); t++) {
+            rotated = new File(dir, ROTATED_PREFIX + format.format(new Date(t)) + ".jsonl");
+        }
+        if (!file.renameTo(rotated)) {
+            throw new IOException("Failed to rotate " + file + " to " + rotated);
+        }
+        List<File> files = rotatedFiles();
+        for (int i = maxFiles; i < files.size(); i++) {
+            if (!files.get(i).delete()) {
+                LOGGER.log(Level.WARNING, "Failed to delete old New Relic deployment audit log {0}", files.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return The rotated files, newest first
+     */
+    private List<File> rotatedFiles() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(ROTATED_PREFIX) && name.endsWith(".jsonl");
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        // the names sort by time
+        Arrays.sort(files, Collections.reverseOrder());
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Find the most recent entries matching all given criteria.
+     * <p>
+     * The files are read backwards, newest first as ordered by their rotation date, and reading stops as soon as
+     * {@code limit} entries are found, so older files are not opened at all. Lines of other applications are
+     * skipped without being parsed.
+     *
+     * @param applicationId Application ID, or null or empty for all applications
+     * @param revision Text the revision must contain, or null or empty for all revisions
+     * @param failed {@code Boolean.TRUE} for failed deployments only, {@code Boolean.FALSE} for recorded ones only,
+     *               null for both
+     * @param limit Maximum number of entries to return
+     * @return The matching entries, newest first
+     */
+    public List<Entry> query(String applicationId, String revision, Boolean failed, int limit) {
+        List<Entry> result = new ArrayList<>();
+        if (dir == null) {
+            return result;
+        }
+        if (applicationId != null && applicationId.isEmpty()) {
+            applicationId = null;
+        }
+        if (revision != null && revision.isEmpty()) {
+            revision = null;
+        }
+        String applicationField = applicationId != null ? "\"applicationId\":" + GSON.toJson(applicationId) : null;
+        List<File> files = new ArrayList<>();
+        files.add(new File(dir, CURRENT));
+        files.addAll(rotatedFiles());
+        for (File file : files) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (!file.isFile()) {
+                continue;
+            }
+            try (ReverseLineReader reader = new ReverseLineReader(file)) {
+                String line;
+                while (result.size() < limit && (line = reader.readLine()) != null) {
+                    if (line.isEmpty() || (applicationField != null && !line.contains(applicationField))) {
+                        continue;
+                    }
+                    Entry entry;
+                    try {
+                        entry = GSON.fromJson(line, Entry.class);
+                    } catch (JsonParseException e) {
+                        // most likely an entry only partially written before a crash, or being written now
+                        LOGGER.log(Level.FINE, "Skipping malformed entry in " + file, e);
+                        continue;
+                    }
+                    if ((applicationId == null || applicationId.equals(entry.applicationId))
+                            && (revision == null || (entry.revision != null && entry.revision.contains(revision)))
+                            && (failed == null || failed == entry.isFailed())) {
+                        result.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read New Relic deployment audit log " + file, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One deployment sent to New Relic, filled in while it is sent.
+     * <p>
+     * The threads sending the deployment update it under its lock. The log writes a {@link #copy() copy} taken when
+     * the entry is queued.
+     */
+    public static final class Entry {
+        private long time;
+        private String via;
+        private String endpoint;
+        private String key;
+        private String applicationId;
+        private String revision;
+        private String description;
+        private String changelog;
+        private String user;
+        private long bytes = -1;
+        private long compressedBytes = -1;
+        private int status = Permit.NO_RESPONSE;
+        private int attempts;
+        private long latencyMillis;
+        private String deploymentId;
+        private String error;
+        private transient long started;
+
+        Entry() {
+        }
+
+        /**
+         * Start an entry for a deployment about to be sent.
+         *
+         * @param via How the deployment is sent, {@code rest} or {@code graphql}
+         */
+        static Entry start(String via, String endpoint, String apiKey, String applicationId, String revision,
+                           String description, String changelog, String user) {
+            Entry entry = new Entry();
+            entry.time = System.currentTimeMillis();
+            entry.started = System.nanoTime();
+            entry.via = via;
+            entry.endpoint = endpoint;
+            entry.key = ApiKeys.fingerprint(apiKey).substring(0, 12);
+            entry.applicationId = applicationId;
+            entry.revision = revision;
+            entry.description = description;
+            entry.changelog = changelog;
+            entry.user = user;
+            return entry;
+        }
+
+        synchronized void setBytes(long bytes, long compressedBytes) {
+            this.bytes = bytes;
+            this.compressedBytes = compressedBytes;
+        }
+
+        /**
+         * Record an attempt and the status New Relic answered it with.
+         */
+        synchronized void attempted(int status) {
+            this.status = status;
+            attempts++;
+        }
+
+        synchronized void setError(String error) {
+            this.error = error;
+        }
+
+        /**
+         * @param deployment The recorded deployment, or null if it failed
+         */
+        synchronized void finish(Deployment deployment) {
+            latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            if (deployment != null) {
+                deploymentId = deployment.getId();
+                error = null;
+            } else if (error == null) {
+                error = "Rejected by New Relic";
+            }
+        }
+
+        /**
+         * @return A copy of the entry as it is now
+         */
+        synchronized Entry copy() {
+            Entry copy = new Entry();
+            copy.time = time;
+            copy.via = via;
+            copy.endpoint = endpoint;
+            copy.key = key;
+            copy.applicationId = applicationId;
+            copy.revision = revision;
+            copy.description = description;
+            copy.changelog = changelog;
+            copy.user = user;
+            copy.bytes = bytes;
+            copy.compressedBytes = compressedBytes;
+            copy.status = status;
+            copy.attempts = attempts;
+            copy.latencyMillis = latencyMillis;
+            copy.deploymentId = deploymentId;
+            copy.error = error;
+            copy.started = started;
+            return copy;
+        }
+
+        /**
+         * @return One line for the build console, without the payload
+         */
+        public synchronized String summary() {
+            StringBuilder sb = new StringBuilder("New Relic deployment: application ").append(applicationId)
+                    .append(", revision ").append(revision);
+            if (bytes >= 0) {
+                sb.append(", ").append(bytes).append(" bytes");
+                if (compressedBytes >= 0) {
+                    sb.append(" (").append(compressedBytes).append(" gzipped)");
+                }
+            }
+            sb.append(", ").append(latencyMillis).append(" ms, ")
+                    .append(status == Permit.NO_RESPONSE ? "no response" : "status " + status);
+            if (attempts > 1) {
+                sb.append(" after ").append(attempts).append(" attempts");
+            }
+            if (error != null) {
+                sb.append(", failed: ").append(error);
+            }
+            return sb.toString();
+        }
+
+        public Date getTime() {
+            return new Date(time);
+        }
+
+        public String getVia() {
+            return via;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return Abbreviated fingerprint of the API key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public String getApplicationId() {
+            return applicationId;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getChangelog() {
+            return changelog;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * @return Size of the payload in bytes, -1 if it was not serialized
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return Size of the gzip compressed payload in bytes, -1 if it was not compressed
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * @return Status of the last response, -1 if there was none
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        public String getDeploymentId() {
+            return deploymentId;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isFailed() {
+            return error != null;
+        }
+    }
+
+    /**
+     * Reads the lines of a file from the last one to the first.
+     */
+    private static final class ReverseLineReader implements Closeable {
+        private final RandomAccessFile file;
+        private final byte[] chunk = new byte[8192];
+        /**
+         * Offset in the file of the start of the chunk.
+         */
+        private long chunkStart;
+        /**
+         * End of the bytes of the chunk not returned yet.
+         */
+        private int end;
+
+        ReverseLineReader(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            chunkStart = this.file.length();
+        }
+
+        /**
+         * @return The previous line, or null once the first line was returned
+         */
+        String readLine() throws IOException {
+            byte[] tail = new byte[0];
+            for (;;) {
+                for (int i = end - 1; i >= 0; i--) {
+                    if (chunk[i] == '\n') {
+                        String line = decode(i + 1, tail);
+                        end = i;
+                        return line;
+                    }
+                }
+                if (chunkStart == 0) {
+                    String line = end > 0 || tail.length > 0 ? decode(0, tail) : null;
+                    end = 0;
+                    return line;
+                }
+                // the line starts in an earlier chunk
+                byte[] longer = new byte[end + tail.length];
+                System.arraycopy(chunk, 0, longer, 0, end);
+                System.arraycopy(tail, 0, longer, end, tail.length);
+                tail = longer;
+                int length = (int) Math.min(chunk.length, chunkStart);
+                chunkStart -= length;
+                file.seek(chunkStart);
+                file.readFully(chunk, 0, length);
+                end = length;
+            }
+        }
+
+        private String decode(int start, byte[] tail) {
+            byte[] line = new byte[end - start + tail.length];
+            System.arraycopy(chunk, start, line, 0, end - start);
+            System.arraycopy(tail, 0, line, end - start, tail.length);
+            return new String(line, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Repeatable entity writing a {@link DeploymentPayload} straight to the connection, optionally gzip compressed.
+ * <p>
+ * The asynchronous client reads the body through {@link #getContent()}, which serializes it as it is read.
+ */
+final class DeploymentEntity extends AbstractHttpEntity {
+
+    private final DeploymentPayload payload;
+
+    private final boolean gzip;
+
+    DeploymentEntity(DeploymentPayload payload) {
+        this(payload, false);
+    }
+
+    DeploymentEntity(DeploymentPayload payload, boolean gzip) {
+        this.payload = payload;
+        this.gzip = gzip;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        if (gzip) {
+            setContentEncoding("gzip");
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return gzip ? payload.getCompressedLength() : payload.getContentLength();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return gzip ? new ByteArrayInputStream(payload.toGzipByteArray()) : payload.openStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (gzip) {
+            payload.writeGzipTo(out);
+        } else {
+            payload.writeTo(out);
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
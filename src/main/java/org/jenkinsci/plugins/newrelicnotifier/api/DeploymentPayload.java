@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The JSON body of a deployment request.
+ *
+ * The body is never held in memory as a whole. {@link #openStream} serializes it as it is read, escaping the fields a
+ * buffer at a time, so every attempt streams it from the fields straight to the connection. Only the gzip
+ * compressed form, which has to be complete to be sent with a length, is kept for the retries of the request.
+ */
+final class DeploymentPayload {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_CHARS = 1024;
+
+    /**
+     * Length of the longest escape sequence.
+     */
+    private static final int MAX_ESCAPE = 6;
+
+    private static final String[] REPLACEMENTS = new String[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            REPLACEMENTS[c] = String.format("\\u%04x", c);
+        }
+        REPLACEMENTS['"'] = "\\\"";
+        REPLACEMENTS['\\'] = "\\\\";
+        REPLACEMENTS['\t'] = "\\t";
+        REPLACEMENTS['\b'] = "\\b";
+        REPLACEMENTS['\n'] = "\\n";
+        REPLACEMENTS['\r'] = "\\r";
+        REPLACEMENTS['\f'] = "\\f";
+    }
+
+    /**
+     * Raw JSON at even indexes, the string values to escape between them.
+     */
+    private final String[] parts;
+
+    private volatile long contentLength = -1;
+
+    private volatile byte[] gzipBytes;
+
+    DeploymentPayload(String revision, String changelog, String description, String user) {
+        List<String> json = new ArrayList<>();
+        StringBuilder raw = new StringBuilder("{\"deployment\":{");
+        append(json, raw, "revision", revision);
+        append(json, raw.append(','), "changelog", changelog);
+        append(json, raw.append(','), "description", description);
+        append(json, raw.append(','), "user", user);
+        json.add(raw.append("}}").toString());
+        parts = json.toArray(new String[json.size()]);
+    }
+
+    private static void append(List<String> json, StringBuilder raw, String name, String value) {
+        raw.append('"').append(name).append("\":");
+        if (value == null) {
+            raw.append("null");
+            return;
+        }
+        json.add(raw.append('"').toString());
+        json.add(value);
+        raw.setLength(0);
+        raw.append('"');
+    }
+
+    /**
+     * @return The number of characters in the fields, an estimate of the length before it is serialized
+     */
+    long getCharCount() {
+        long count = 0;
+        for (int i = 1; i < parts.length; i += 2) {
+            count += parts[i].length();
+        }
+        return count;
+    }
+
+    /**
+     * @return The length in bytes, counted by serializing the payload once without keeping it
+     */
+    long getContentLength() {
+        long length = contentLength;
+        if (length < 0) {
+            length = 0;
+            Serializer in = openStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer, 0, buffer.length)) != -1; ) {
+                length += n;
+            }
+            contentLength = length;
+        }
+        return length;
+    }
+
+    /**
+     * @return The compressed length in bytes, or -1 if the payload has not been compressed yet
+     */
+    long getCompressedLength() {
+        byte[] b = gzipBytes;
+        return b != null ? b.length : -1;
+    }
+
+    /**
+     * @return A stream serializing the payload as it is read
+     */
+    Serializer openStream() {
+        return new Serializer();
+    }
+
+    /**
+     * Write the payload, serializing it while it is written.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        Serializer in = openStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer, 0, buffer.length)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Write the gzip compressed payload, compressing it on the first call.
+     */
+    void writeGzipTo(OutputStream out) throws IOException {
+        out.write(toGzipByteArray());
+    }
+
+    /**
+     * @return The gzip compressed payload
+     */
+    byte[] toGzipByteArray() throws IOException {
+        byte[] b = gzipBytes;
+        if (b == null) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                writeTo(gzip);
+            }
+            b = compressed.toByteArray();
+            gzipBytes = b;
+        }
+        return b;
+    }
+
+    /**
+     * Escapes the fields into a char buffer and encodes that into a byte buffer whenever the bytes are used up.
+     */
+    final class Serializer extends InputStream {
+
+        private final CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_CHARS);
+
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_CHARS * 4);
+
+        private int part;
+
+        private int position;
+
+        private boolean done;
+
+        Serializer() {
+            bytes.flip();
+        }
+
+        @Override
+        public int read() {
+            return fill() ? bytes.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * @return Whether there are bytes left to read
+         */
+        private boolean fill() {
+            while (!bytes.hasRemaining() && !done) {
+                boolean more = escape();
+                chars.flip();
+                bytes.clear();
+                encoder.encode(chars, bytes, !more);
+                if (!more && !chars.hasRemaining()) {
+                    encoder.flush(bytes);
+                    done = true;
+                }
+                chars.compact();
+                bytes.flip();
+            }
+            return bytes.hasRemaining();
+        }
+
+        /**
+         * Append the next characters of the body until the buffer is full.
+         *
+         * @return Whether there are characters left to append
+         */
+        private boolean escape() {
+            for (; part < parts.length; part++, position = 0) {
+                String text = parts[part];
+                if (part % 2 == 0) {
+                    // raw JSON between the values is short
+                    if (chars.remaining() < text.length()) {
+                        return true;
+                    }
+                    chars.put(text);
+                    continue;
+                }
+                for (; position < text.length(); position++) {
+                    if (chars.remaining() < MAX_ESCAPE) {
+                        return true;
+                    }
+                    char c = text.charAt(position);
+                    String replacement = c < 128 ? REPLACEMENTS[c]
+                            : c == '\u2028' ? "\\u2028" : c == '\u2029' ? "\\u2029" : null;
+                    if (replacement != null) {
+                        chars.put(replacement);
+                    } else {
+                        chars.put(c);
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
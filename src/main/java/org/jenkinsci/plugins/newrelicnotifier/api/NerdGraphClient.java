@@ -0,0 +1,804 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Records the deployments of several applications with few requests to the New Relic GraphQL API (NerdGraph).
+ * <p>
+ * The applications are looked up by ID to get their entity GUIDs, then the deployments are sent as aliased
+ * {@code changeTrackingCreateDeployment} mutations. Deployments are split into requests of at most
+ * {@link #MAX_MUTATIONS} mutations and about {@link #MAX_BODY_BYTES} bytes. A deployment rejected by New Relic
+ * does not affect the others in the same request.
+ * <p>
+ * NerdGraph only accepts User API keys, see {@link ApiKeys#isUserKey(String)}.
+ */
+public class NerdGraphClient {
+
+    private static final String PREFIX = NerdGraphClient.class.getName();
+
+    static final int MAX_MUTATIONS = Integer.getInteger(PREFIX + ".maxMutations", 25);
+
+    static final int MAX_BODY_BYTES = Integer.getInteger(PREFIX + ".maxBodyBytes", 256 * 1024);
+
+    static final int GUID_CACHE_SIZE = Integer.getInteger(PREFIX + ".guidCacheSize", 1000);
+
+    static final long GUID_TTL_MILLIS = Long.getLong(PREFIX + ".guidTtlMillis", TimeUnit.HOURS.toMillis(1));
+
+    static final String GRAPHQL_ENDPOINT = "/graphql";
+
+    private static final String SEARCH = "query($query: String!) { actor { entitySearch(query: $query) "
+            + "{ results { entities { guid ... on ApmApplicationEntityOutline { applicationId } } } } } }";
+
+    private static final String INPUT_TYPE = "ChangeTrackingDeploymentInput!";
+
+    private static final String MUTATION = "changeTrackingCreateDeployment";
+
+    private static final String MUTATION_RESULT = "{ deploymentId entityGuid }";
+
+    /**
+     * Bytes added to the request for each mutation besides its variables.
+     */
+    private static final int MUTATION_OVERHEAD = 128;
+
+    private static final Pattern APPLICATION_ID = Pattern.compile("\\d+");
+
+    /**
+     * Entity GUIDs by API key fingerprint and application ID. The GUID of an application never changes, but the
+     * application may be deleted or the key revoked, so entries expire and the least recently used are evicted.
+     */
+    private static final Map<String, CachedGuid> GUIDS = new LinkedHashMap<String, CachedGuid>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedGuid> eldest) {
+            return size() > GUID_CACHE_SIZE;
+        }
+    };
+
+    private final RetryPolicy retryPolicy;
+
+    private final Timeouts timeouts;
+
+    private final String apiUrl;
+
+    private int maxMutations = MAX_MUTATIONS;
+
+    private int maxBodyBytes = MAX_BODY_BYTES;
+
+    public NerdGraphClient() {
+        this(RetryPolicy.DEFAULT, Timeouts.DEFAULT);
+    }
+
+    /**
+     * @param retryPolicy How failed requests are retried
+     * @param timeouts Timeouts of each call to New Relic
+     */
+    public NerdGraphClient(RetryPolicy retryPolicy, Timeouts timeouts) {
+        this(retryPolicy, timeouts, NewRelicAsyncClientImpl.API_URL);
+    }
+
+    /**
+     * @param retryPolicy How failed requests are retried
+     * @param timeouts Timeouts of each call to New Relic
+     * @param apiUrl Base URL of the New Relic API, e.g. of a stand-in server for testing
+     */
+    public NerdGraphClient(RetryPolicy retryPolicy, Timeouts timeouts, String apiUrl) {
+        this.retryPolicy = retryPolicy;
+        this.timeouts = timeouts;
+        this.apiUrl = apiUrl;
+    }
+
+    // visible for testing
+    void setChunkLimits(int maxMutations, int maxBodyBytes) {
+        this.maxMutations = maxMutations;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * @return The base URL of the New Relic API, for looking up credentials
+     */
+    public String getApiEndpoint() {
+        return apiUrl;
+    }
+
+    /**
+     * Record deployments of several applications and wait for their outcome.
+     *
+     * @param apiKey New Relic API key
+     * @param deployments The deployments to record
+     * @param listener Used for logging
+     * @return The outcome of each deployment, in the order of the deployments
+     * @throws InterruptedIOException if interrupted, the request in flight is aborted and the outcomes of the
+     *                                deployments are unknown then
+     */
+    public List<Outcome> createDeployments(String apiKey, List<DeploymentRequest> deployments, TaskListener listener)
+            throws InterruptedIOException {
+        Future<List<Outcome>> future = createDeployments(apiKey, deployments, listener, null);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for New Relic");
+        } catch (ExecutionException e) {
+            // failed requests are outcomes of their deployments, the call itself does not fail
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Record deployments of several applications without blocking the calling thread. The searches and the requests
+     * of mutations are sent one after the other by the {@link SharedAsyncHttpClient}, retries wait on a timer.
+     *
+     * @param apiKey New Relic API key
+     * @param deployments The deployments to record
+     * @param listener Used for logging
+     * @param callback Completed with the outcome of each deployment, in the order of the deployments. May be null.
+     * @return The pending deployments, cancelling it aborts the request in flight
+     */
+    public Future<List<Outcome>> createDeployments(String apiKey, List<DeploymentRequest> deployments,
+                                                   TaskListener listener, FutureCallback<List<Outcome>> callback) {
+        Exchange exchange = new Exchange(apiKey, deployments, listener, callback);
+        exchange.search(0);
+        return exchange;
+    }
+
+    private static JsonObject input(DeploymentRequest d, String guid) {
+        JsonObject input = new JsonObject();
+        input.addProperty("entityGuid", guid);
+        input.addProperty("version", d.getRevision());
+        if (!d.getChangelog().isEmpty()) {
+            input.addProperty("changelog", d.getChangelog());
+        }
+        if (d.getDescription() != null && !d.getDescription().isEmpty()) {
+            input.addProperty("description", d.getDescription());
+        }
+        if (d.getUser() != null && !d.getUser().isEmpty()) {
+            input.addProperty("user", d.getUser());
+        }
+        return input;
+    }
+
+    /**
+     * Split the deployments into requests within the limits. A deployment larger than the size limit is sent alone.
+     */
+    private List<List<Integer>> chunk(List<Integer> pending, JsonObject[] inputs) {
+        List<List<Integer>> chunks = new ArrayList<>();
+        List<Integer> current = new ArrayList<>();
+        long bytes = 0;
+        for (Integer i : pending) {
+            int size = inputs[i].toString().getBytes(StandardCharsets.UTF_8).length + MUTATION_OVERHEAD;
+            if (!current.isEmpty() && (current.size() >= maxMutations || bytes + size > maxBodyBytes)) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                bytes = 0;
+            }
+            current.add(i);
+            bytes += size;
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    /**
+     * The deployments of one call. The GUIDs not cached yet are looked up, then the deployments are sent, each step
+     * started from the callback of the request before it.
+     */
+    private final class Exchange extends BasicFuture<List<Outcome>> {
+        private final String apiKey;
+        private final String fingerprint;
+        private final List<DeploymentRequest> deployments;
+        private final TaskListener listener;
+        private final Outcome[] outcomes;
+        private final DeploymentAuditLog.Entry[] audits;
+        private final JsonObject[] inputs;
+        private final List<String> applicationIds = new ArrayList<>();
+        private final List<String> unknown = new ArrayList<>();
+        private final Map<String, String> guids = new HashMap<>();
+        private final Map<String, String> errors = new HashMap<>();
+        private List<List<Integer>> chunks;
+        private volatile Post inFlight;
+
+        Exchange(String apiKey, List<DeploymentRequest> deployments, TaskListener listener,
+                 FutureCallback<List<Outcome>> callback) {
+            super(callback);
+            this.apiKey = apiKey;
+            this.fingerprint = ApiKeys.fingerprint(apiKey);
+            this.deployments = deployments;
+            this.listener = listener;
+            this.outcomes = new Outcome[deployments.size()];
+            this.audits = new DeploymentAuditLog.Entry[outcomes.length];
+            this.inputs = new JsonObject[outcomes.length];
+            Set<String> valid = new LinkedHashSet<>();
+            for (int i = 0; i < outcomes.length; i++) {
+                DeploymentRequest d = deployments.get(i);
+                audits[i] = DeploymentAuditLog.Entry.start("graphql", apiUrl, apiKey, d.getApplicationId(),
+                        d.getRevision(), d.getDescription(), d.getChangelog(), d.getUser());
+                if (d.getApplicationId() == null || !APPLICATION_ID.matcher(d.getApplicationId()).matches()) {
+                    outcomes[i] = new Outcome(d.getApplicationId(), null, "Not a New Relic application ID");
+                    continue;
+                }
+                try {
+                    NewRelicAsyncClientImpl.checkLimits(d.getRevision(), d.getChangelog(), d.getDescription(),
+                            d.getUser());
+                } catch (InvalidParameterException e) {
+                    outcomes[i] = new Outcome(d.getApplicationId(), null, e.getMessage());
+                    continue;
+                }
+                valid.add(d.getApplicationId());
+            }
+            for (String id : valid) {
+                String guid = cachedGuid(fingerprint + ':' + id);
+                if (guid != null) {
+                    guids.put(id, guid);
+                } else {
+                    unknown.add(id);
+                }
+            }
+            applicationIds.addAll(valid);
+        }
+
+        /**
+         * Look up the entity GUIDs not cached yet with one search per chunk, starting with the given application.
+         */
+        void search(final int from) {
+            if (isDone()) {
+                return;
+            }
+            if (from >= unknown.size()) {
+                mutate();
+                return;
+            }
+            final List<String> chunk = unknown.subList(from, Math.min(from + maxMutations, unknown.size()));
+            StringBuilder query = new StringBuilder("domain = 'APM' AND type = 'APPLICATION' AND domainId IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                query.append(i > 0 ? ", '" : "'").append(chunk.get(i)).append('\'');
+            }
+            query.append(')');
+            JsonObject variables = new JsonObject();
+            variables.addProperty("query", query.toString());
+            final long start = System.nanoTime();
+            post(SEARCH, variables, true, Collections.<DeploymentAuditLog.Entry>emptyList(),
+                    new FutureCallback<JsonObject>() {
+                        @Override
+                        public void completed(JsonObject response) {
+                            try {
+                                found(chunk, response);
+                                ClientMetrics.get().getApplications().record(start, true);
+                            } catch (IOException | RuntimeException e) {
+                                failed(e);
+                                return;
+                            }
+                            search(from + maxMutations);
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            ClientMetrics.get().getApplications().record(start, false);
+                            for (String id : chunk) {
+                                errors.put(id, "Failed to look up the application: " + e.getMessage());
+                            }
+                            search(from + maxMutations);
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            // only the exchange is cancelled
+                        }
+                    });
+        }
+
+        private void found(List<String> chunk, JsonObject response) throws IOException {
+            JsonArray entities = array(response, "data", "actor", "entitySearch", "results", "entities");
+            if (entities == null) {
+                throw new IOException(firstError(response, "No search results from New Relic"));
+            }
+            for (JsonElement entity : entities) {
+                String guid = string(entity, "guid");
+                String id = string(entity, "applicationId");
+                if (guid != null && id != null && chunk.contains(id)) {
+                    cacheGuid(fingerprint + ':' + id, guid);
+                    guids.put(id, guid);
+                }
+            }
+        }
+
+        private void mutate() {
+            List<Integer> pending = new ArrayList<>();
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i] != null) {
+                    continue;
+                }
+                DeploymentRequest d = deployments.get(i);
+                String guid = guids.get(d.getApplicationId());
+                if (guid == null) {
+                    String error = errors.get(d.getApplicationId());
+                    outcomes[i] = new Outcome(d.getApplicationId(), null,
+                            error != null ? error : "No APM application with this ID is available for the API key");
+                    continue;
+                }
+                inputs[i] = input(d, guid);
+                pending.add(i);
+            }
+            chunks = chunk(pending, inputs);
+            if (!chunks.isEmpty()) {
+                listener.getLogger().println(String.format("Sending %d deployments to New Relic in %d GraphQL "
+                        + "request(s).", pending.size(), chunks.size()));
+            }
+            send(0);
+        }
+
+        /**
+         * Send the request of aliased mutations of a chunk and map the result of each alias back to its deployment.
+         */
+        private void send(final int index) {
+            if (isDone()) {
+                return;
+            }
+            if (index >= chunks.size()) {
+                finish();
+                return;
+            }
+            final List<Integer> chunk = chunks.get(index);
+            StringBuilder query = new StringBuilder("mutation(");
+            JsonObject variables = new JsonObject();
+            List<DeploymentAuditLog.Entry> chunkAudits = new ArrayList<>();
+            for (int k = 0; k < chunk.size(); k++) {
+                int i = chunk.get(k);
+                query.append(k > 0 ? ", $d" : "$d").append(k).append(": ").append(INPUT_TYPE);
+                variables.add("d" + k, inputs[i]);
+                audits[i].setBytes(inputs[i].toString().getBytes(StandardCharsets.UTF_8).length, -1);
+                chunkAudits.add(audits[i]);
+            }
+            query.append(") {");
+            for (int k = 0; k < chunk.size(); k++) {
+                query.append(" d").append(k).append(": ").append(MUTATION).append("(deployment: $d").append(k)
+                        .append(") ").append(MUTATION_RESULT);
+            }
+            query.append(" }");
+
+            final long start = System.nanoTime();
+            post(query.toString(), variables, false, chunkAudits, new FutureCallback<JsonObject>() {
+                @Override
+                public void completed(JsonObject response) {
+                    try {
+                        ClientMetrics.get().getDeployments().record(start, applied(chunk, response));
+                    } catch (RuntimeException e) {
+                        failed(e);
+                        return;
+                    }
+                    send(index + 1);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    ClientMetrics.get().getDeployments().record(start, false);
+                    String cause = e instanceof IOException && timeouts.describe((IOException) e) != null
+                            ? timeouts.describe((IOException) e) : e.toString();
+                    listener.error("New Relic GraphQL request for %d deployment(s) failed: %s", chunk.size(), cause);
+                    for (Integer i : chunk) {
+                        outcomes[i] = new Outcome(deployments.get(i).getApplicationId(), null, cause);
+                    }
+                    send(index + 1);
+                }
+
+                @Override
+                public void cancelled() {
+                    // only the exchange is cancelled
+                }
+            });
+        }
+
+        /**
+         * @return Whether all deployments of the chunk were recorded
+         */
+        private boolean applied(List<Integer> chunk, JsonObject response) {
+            Map<String, String> rejections = new HashMap<>();
+            JsonElement errorList = response.get("errors");
+            if (errorList != null && errorList.isJsonArray()) {
+                for (JsonElement error : errorList.getAsJsonArray()) {
+                    JsonElement path = error.isJsonObject() ? error.getAsJsonObject().get("path") : null;
+                    String alias = path != null && path.isJsonArray() && path.getAsJsonArray().size() > 0
+                            ? path.getAsJsonArray().get(0).getAsString() : null;
+                    if (!rejections.containsKey(alias)) {
+                        rejections.put(alias, string(error, "message"));
+                    }
+                }
+            }
+            JsonElement data = response.get("data");
+            boolean success = true;
+            for (int k = 0; k < chunk.size(); k++) {
+                int i = chunk.get(k);
+                String applicationId = deployments.get(i).getApplicationId();
+                JsonElement result = data != null && data.isJsonObject() ? data.getAsJsonObject().get("d" + k) : null;
+                if (result != null && result.isJsonObject()) {
+                    outcomes[i] = new Outcome(applicationId,
+                            new Deployment(string(result, "deploymentId"), applicationId), null);
+                    continue;
+                }
+                success = false;
+                String error = rejections.get("d" + k);
+                if (error == null) {
+                    error = rejections.get(null);
+                }
+                outcomes[i] = new Outcome(applicationId, null, error != null ? error : "Rejected by New Relic");
+            }
+            return success;
+        }
+
+        private void finish() {
+            for (int i = 0; i < outcomes.length; i++) {
+                if (!outcomes[i].isSuccess()) {
+                    audits[i].setError(outcomes[i].getError());
+                }
+                audits[i].finish(outcomes[i].getDeployment());
+                listener.getLogger().println(audits[i].summary());
+                DeploymentAuditLog.get().write(audits[i]);
+            }
+            completed(Arrays.asList(outcomes));
+        }
+
+        private void post(String document, JsonObject variables, boolean query,
+                          List<DeploymentAuditLog.Entry> audits, FutureCallback<JsonObject> callback) {
+            Post post = new Post(this, document, variables, query, audits, callback);
+            inFlight = post;
+            post.attempt();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Post post = inFlight;
+            if (cancelled && post != null) {
+                post.abort();
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * A GraphQL request, retried on a timer according to the {@link RetryPolicy} of this client.
+     * <p>
+     * A query can be repeated, so it is also retried on server errors. A request of mutations may have been applied
+     * in part whatever went wrong once it was sent, and retrying it could record up to {@link #MAX_MUTATIONS}
+     * deployments twice. It is only retried when it could not be sent, or on {@code 429 Too Many Requests}, which
+     * New Relic answers before running anything.
+     */
+    private final class Post {
+        private final Exchange exchange;
+        private final HttpPost request;
+        private final boolean query;
+        private final List<DeploymentAuditLog.Entry> audits;
+        private final FutureCallback<JsonObject> callback;
+        private final long deadline = System.currentTimeMillis() + retryPolicy.getBudgetMillis();
+        private int attempt;
+        private volatile NewRelicAsyncClientImpl.SentTracking sending;
+        private volatile Future<HttpResponse> call;
+
+        /**
+         * @param query Whether the request is a query rather than mutations
+         * @param audits Entries of the deployments sent with the request, to record each attempt in
+         * @param callback Completed with the response body
+         */
+        Post(Exchange exchange, String document, JsonObject variables, boolean query,
+             List<DeploymentAuditLog.Entry> audits, FutureCallback<JsonObject> callback) {
+            this.exchange = exchange;
+            this.query = query;
+            this.audits = audits;
+            this.callback = callback;
+            JsonObject body = new JsonObject();
+            body.addProperty("query", document);
+            body.add("variables", variables);
+            request = new HttpPost(URI.create(apiUrl + GRAPHQL_ENDPOINT));
+            request.setConfig(timeouts.toRequestConfig());
+            request.setHeader("API-Key", exchange.apiKey);
+            request.setHeader("Accept", "application/json");
+            request.setEntity(new ByteArrayEntity(body.toString().getBytes(StandardCharsets.UTF_8),
+                    ContentType.APPLICATION_JSON));
+        }
+
+        void attempt() {
+            if (exchange.isDone()) {
+                return;
+            }
+            attempt++;
+            long waitMillis = NewRelicAsyncClientImpl.limiterWait(attempt, deadline);
+            if (waitMillis <= 0) {
+                callback.failed(NewRelicAsyncClientImpl.budgetSpent(retryPolicy));
+                return;
+            }
+            sending = new NewRelicAsyncClientImpl.SentTracking(HttpAsyncMethods.create(request));
+            Permit.acquire(apiUrl, exchange.apiKey, waitMillis, new FutureCallback<Permit>() {
+                @Override
+                public void completed(Permit permit) {
+                    execute(permit);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    callback.failed(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    callback.cancelled();
+                }
+            });
+        }
+
+        private void execute(final Permit permit) {
+            if (exchange.isDone()) {
+                // cancelled while waiting for the slot
+                permit.cancel();
+                return;
+            }
+            try {
+                HttpAsyncResponseConsumer<HttpResponse> consumer = HttpAsyncMethods.createConsumer();
+                call = SharedAsyncHttpClient.get().execute(sending, consumer, null, new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse response) {
+                        permit.release(response.getStatusLine().getStatusCode());
+                        responded(response);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        if (exchange.isCancelled()) {
+                            // aborting the request may be reported as a failure
+                            permit.cancel();
+                            return;
+                        }
+                        permit.release(Permit.NO_RESPONSE);
+                        if (e instanceof TimeoutException) {
+                            // the non-blocking pool reports a lease timeout like this
+                            e = new ConnectionPoolTimeoutException(e.getMessage());
+                        }
+                        if (e instanceof IOException && timeouts.describe((IOException) e) != null) {
+                            ClientMetrics.get().recordTimeout();
+                        }
+                        unanswered(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        permit.cancel();
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                // the client could not be created or is shutting down
+                permit.release(Permit.NO_RESPONSE);
+                unanswered(e);
+                return;
+            }
+            if (exchange.isCancelled()) {
+                abort();
+            }
+        }
+
+        private void responded(HttpResponse response) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            for (DeploymentAuditLog.Entry audit : audits) {
+                audit.attempted(statusCode);
+            }
+            if (exchange.isDone()) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return;
+            }
+            boolean retryable;
+            try {
+                if (statusCode == HttpStatus.SC_OK && response.getEntity() != null) {
+                    JsonElement json = new JsonParser().parse(
+                            EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+                    if (!json.isJsonObject()) {
+                        throw new JsonParseException("Not a GraphQL response");
+                    }
+                    callback.completed(json.getAsJsonObject());
+                    return;
+                }
+                retryable = query ? retryPolicy.isRetryable(statusCode) || statusCode >= 500
+                        : statusCode == HttpStatus.SC_TOO_MANY_REQUESTS;
+            } catch (IOException | JsonParseException e) {
+                callback.failed(e);
+                return;
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+            retry(new HttpResponseException(statusCode, response.getStatusLine().toString()), retryable,
+                    RetryPolicy.retryAfterMillis(response));
+        }
+
+        private void unanswered(Exception e) {
+            for (DeploymentAuditLog.Entry audit : audits) {
+                audit.attempted(Permit.NO_RESPONSE);
+            }
+            if (exchange.isDone()) {
+                return;
+            }
+            if (!(e instanceof IOException)) {
+                callback.failed(e);
+                return;
+            }
+            IOException failure = (IOException) e;
+            retry(failure, retryPolicy.isRetryable(failure, !query && sending.isRequestSent()), -1);
+        }
+
+        private void retry(IOException failure, boolean retryable, long retryAfter) {
+            long delay = retryAfter >= 0 ? retryAfter : retryPolicy.backoff(attempt);
+            if (!retryable || attempt >= retryPolicy.getMaxAttempts()
+                    || System.currentTimeMillis() + delay > deadline) {
+                callback.failed(failure);
+                return;
+            }
+            ClientMetrics.get().recordRetry();
+            request.reset();
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Abort the request in flight, a pending retry or slot gives up on its own.
+         */
+        void abort() {
+            Future<HttpResponse> current = call;
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+    }
+
+    private static JsonArray array(JsonElement json, String... path) {
+        for (String name : path) {
+            if (json == null || !json.isJsonObject()) {
+                return null;
+            }
+            json = json.getAsJsonObject().get(name);
+        }
+        return json != null && json.isJsonArray() ? json.getAsJsonArray() : null;
+    }
+
+    private static String string(JsonElement json, String name) {
+        JsonElement value = json != null && json.isJsonObject() ? json.getAsJsonObject().get(name) : null;
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    private static String firstError(JsonObject response, String fallback) {
+        JsonArray errors = array(response, "errors");
+        String message = errors != null && errors.size() > 0 ? string(errors.get(0), "message") : null;
+        return message != null ? message : fallback;
+    }
+
+    /**
+     * @return The cached GUID, or null if not cached or expired
+     */
+    private static String cachedGuid(String key) {
+        synchronized (GUIDS) {
+            CachedGuid cached = GUIDS.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - cached.cachedAt >= GUID_TTL_MILLIS) {
+                GUIDS.remove(key);
+                return null;
+            }
+            return cached.guid;
+        }
+    }
+
+    private static void cacheGuid(String key, String guid) {
+        synchronized (GUIDS) {
+            GUIDS.put(key, new CachedGuid(guid, System.currentTimeMillis()));
+        }
+    }
+
+    private static final class CachedGuid {
+        private final String guid;
+        private final long cachedAt;
+
+        CachedGuid(String guid, long cachedAt) {
+            this.guid = guid;
+            this.cachedAt = cachedAt;
+        }
+    }
+
+    /**
+     * The outcome of one of the deployments.
+     */
+    public static final class Outcome {
+        private final String applicationId;
+        private final Deployment deployment;
+        private final String error;
+
+        Outcome(String applicationId, Deployment deployment, String error) {
+            this.applicationId = applicationId;
+            this.deployment = deployment;
+            this.error = error;
+        }
+
+        public String getApplicationId() {
+            return applicationId;
+        }
+
+        /**
+         * @return The recorded deployment, or null if it failed
+         */
+        public Deployment getDeployment() {
+            return deployment;
+        }
+
+        /**
+         * @return Why the deployment failed, or null if it was recorded
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return deployment != null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import hudson.model.TaskListener;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Non-blocking REST client interface for the New Relic API.
+ * <p>
+ * Calls return immediately. The outcome is delivered through the returned future and, if given, the callback,
+ * which is invoked on a thread of the client and must not block. Failures such as an {@link java.io.IOException}
+ * are reported through {@link FutureCallback#failed(Exception)} and as the cause of the
+ * {@link java.util.concurrent.ExecutionException} thrown by the future.
+ *
+ * @see NewRelicClient
+ */
+public interface NewRelicAsyncClient {
+
+    /**
+     * Get the list of applications available to record deployment notifications for.
+     *
+     * @param apiKey New Relic API key
+     * @param callback Notified of the outcome, may be null
+     * @return The applications available for supplied API key.
+     * @see NewRelicClient#getApplications(String)
+     */
+    Future<List<Application>> getApplications(String apiKey, FutureCallback<List<Application>> callback);
+
+    /**
+     * Get the applications whose name contains the given text, filtered by New Relic.
+     *
+     * @param apiKey New Relic API key
+     * @param name Text the application names must contain
+     * @param callback Notified of the outcome, may be null
+     * @return The matching applications available for supplied API key.
+     * @see NewRelicClient#findApplications(String, String)
+     */
+    Future<List<Application>> findApplications(String apiKey, String name,
+                                               FutureCallback<List<Application>> callback);
+
+    /**
+     * Submit deployment notification
+     *
+     * @param apiKey New Relic API key
+     * @param applicationId Application to register deployment for
+     * @param description Text annotation for the deployment
+     * @param revision The revision number from your source control system
+     * @param changelog A list of changes for this deployment
+     * @param user The name of the user/process that triggered this deployment
+     * @param listener Used for logging
+     * @param callback Notified of the outcome, may be null
+     * @return Whether the notification was successful
+     * @see NewRelicClient#sendNotification(String, String, String, String, String, String, hudson.model.BuildListener)
+     */
+    Future<Boolean> sendNotification(
+            String apiKey,
+            String applicationId,
+            String description,
+            String revision,
+            String changelog,
+            String user,
+            TaskListener listener,
+            FutureCallback<Boolean> callback
+    );
+
+    /**
+     * Submit deployment notification and return the recorded deployment.
+     *
+     * @param apiKey New Relic API key
+     * @param applicationId Application to register deployment for
+     * @param description Text annotation for the deployment
+     * @param revision The revision number from your source control system
+     * @param changelog A list of changes for this deployment
+     * @param user The name of the user/process that triggered this deployment
+     * @param listener Used for logging
+     * @param callback Notified of the outcome, may be null
+     * @return The recorded deployment. Fails with a {@link DeploymentRejectedException} if New Relic rejected it,
+     *         where {@link NewRelicClient#createDeployment} returns null.
+     * @see NewRelicClient#createDeployment(String, String, String, String, String, String, TaskListener)
+     */
+    Future<Deployment> createDeployment(
+            String apiKey,
+            String applicationId,
+            String description,
+            String revision,
+            String changelog,
+            String user,
+            TaskListener listener,
+            FutureCallback<Deployment> callback
+    );
+
+    /**
+     * Get API Endpoint URL for looking up credentials.
+     *
+     * @return The endpoint URL for the New Relic API
+     */
+    String getApiEndpoint();
+}
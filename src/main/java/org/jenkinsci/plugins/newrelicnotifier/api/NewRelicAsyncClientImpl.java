@@ -0,0 +1,743 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking REST client implementation for the New Relic API.
+ * <p>
+ * Requests are sent by the {@link SharedAsyncHttpClient}, waiting for a slot of the API key and for retries is
+ * done with callbacks and timers, so no thread is tied up while a call is outstanding. Cancelling the future of a
+ * call aborts the request in flight. {@link NewRelicClientImpl} waits for the calls of this client.
+ */
+public class NewRelicAsyncClientImpl implements NewRelicAsyncClient {
+
+    public static final String API_URL = "https://api.newrelic.com";
+
+    private static final String DEPLOYMENT_ENDPOINT = "/deployments.json";
+
+    static final String APPLICATIONS_ENDPOINT = "/v2/applications.json";
+
+    static final int MAX_APPLICATION_PAGES = 1000;
+
+    static final long LIMITER_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * How long an attempt may wait for a slot of the limiter: at most {@link #LIMITER_WAIT_MILLIS}, and never past
+     * the deadline of the retry budget. A first attempt under a policy without budget still waits.
+     *
+     * @param attempt Number of the attempt, starting at 1
+     * @param deadline End of the retry budget in milliseconds
+     * @return The wait in milliseconds, not positive if the budget is spent and the attempt must not be made
+     */
+    static long limiterWait(int attempt, long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        return attempt == 1 && remaining <= 0 ? LIMITER_WAIT_MILLIS : Math.min(remaining, LIMITER_WAIT_MILLIS);
+    }
+
+    static IOException budgetSpent(RetryPolicy retryPolicy) {
+        return new IOException("Retry budget of " + retryPolicy.getBudgetMillis() + " ms spent");
+    }
+
+    private final RetryPolicy retryPolicy;
+
+    private final Timeouts timeouts;
+
+    private final String apiUrl;
+
+    private int compressionThreshold;
+
+    public NewRelicAsyncClientImpl() {
+        this(RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * @param retryPolicy How failed deployment notifications are retried
+     */
+    public NewRelicAsyncClientImpl(RetryPolicy retryPolicy) {
+        this(retryPolicy, Timeouts.DEFAULT);
+    }
+
+    /**
+     * @param retryPolicy How failed deployment notifications are retried
+     * @param timeouts Timeouts of each call to New Relic
+     */
+    public NewRelicAsyncClientImpl(RetryPolicy retryPolicy, Timeouts timeouts) {
+        this(retryPolicy, timeouts, API_URL);
+    }
+
+    /**
+     * @param retryPolicy How failed deployment notifications are retried
+     * @param timeouts Timeouts of each call to New Relic
+     * @param apiUrl Base URL of the New Relic REST API, e.g. of a stand-in server for testing
+     */
+    public NewRelicAsyncClientImpl(RetryPolicy retryPolicy, Timeouts timeouts, String apiUrl) {
+        this.retryPolicy = retryPolicy;
+        this.timeouts = timeouts;
+        this.apiUrl = apiUrl;
+    }
+
+    /**
+     * @param compressionThreshold Deployment bodies of at least this many characters are sent gzip compressed,
+     *                             0 to never compress
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<List<Application>> getApplications(String apiKey, FutureCallback<List<Application>> callback) {
+        return fetchApplications(apiKey, apiUrl + APPLICATIONS_ENDPOINT, callback);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<List<Application>> findApplications(String apiKey, String name,
+                                                      FutureCallback<List<Application>> callback) {
+        try {
+            return fetchApplications(apiKey, apiUrl + APPLICATIONS_ENDPOINT + "?filter%5Bname%5D="
+                    + URLEncoder.encode(name, "UTF-8"), callback);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Future<List<Application>> fetchApplications(String apiKey, String firstPage,
+                                                        FutureCallback<List<Application>> callback) {
+        Call<List<Application>> future = new Call<>(
+                new Recording<List<Application>>(ClientMetrics.get().getApplications(), callback));
+        new ApplicationsCall(apiKey, future).fetch(URI.create(firstPage));
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<Boolean> sendNotification(String apiKey, String applicationId, String description, String revision,
+                                            String changelog, String user, TaskListener listener,
+                                            FutureCallback<Boolean> callback) {
+        final BasicFuture<Boolean> sent = new BasicFuture<>(callback);
+        createDeployment(apiKey, applicationId, description, revision, changelog, user, listener,
+                new FutureCallback<Deployment>() {
+                    @Override
+                    public void completed(Deployment deployment) {
+                        sent.completed(deployment != null);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        if (e instanceof DeploymentRejectedException) {
+                            sent.completed(false);
+                        } else {
+                            sent.failed(e);
+                        }
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        sent.cancel();
+                    }
+                });
+        return sent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<Deployment> createDeployment(String apiKey, String applicationId, String description,
+                                               String revision, String changelog, String user,
+                                               TaskListener listener, FutureCallback<Deployment> callback) {
+        String changeLogContent = changelog != null ? changelog : "";
+        DeploymentAuditLog.Entry audit = DeploymentAuditLog.Entry.start("rest", apiUrl, apiKey, applicationId,
+                revision, description, changeLogContent, user);
+        Call<Deployment> future = new Call<>(new Recording<Deployment>(ClientMetrics.get().getDeployments(),
+                new Audited(audit, listener, callback)));
+        DeploymentPayload payload;
+        boolean gzip;
+        try {
+            checkLimits(revision, changeLogContent, description, user);
+            payload = new DeploymentPayload(revision, changeLogContent, description, user);
+            gzip = compressionThreshold > 0 && payload.getCharCount() >= compressionThreshold;
+            // compress up front, so the body is sent with a length rather than chunked
+            if (gzip) {
+                payload.toGzipByteArray();
+            }
+        } catch (IOException | RuntimeException e) {
+            future.failed(e);
+            return future;
+        }
+
+        HttpPost request = new HttpPost(deploymentUrl(apiUrl, applicationId));
+        request.setConfig(timeouts.toRequestConfig());
+        request.setHeader("X-Api-Key", apiKey);
+        request.setHeader("Content-Type", "application/json");
+        request.setEntity(new DeploymentEntity(payload, gzip));
+        audit.setBytes(payload.getContentLength(), gzip ? payload.getCompressedLength() : -1);
+
+        new DeploymentCall(request, apiKey, applicationId, listener, audit, future).attempt();
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getApiEndpoint() {
+        return apiUrl;
+    }
+
+    static URI deploymentUrl(String apiUrl, String applicationId) {
+        try {
+            String appUrl = "/v2/applications/" + applicationId;
+            return new URI(apiUrl + appUrl + DEPLOYMENT_ENDPOINT);
+        } catch (URISyntaxException e) {
+            // no need to handle this
+            return null;
+        }
+    }
+
+    /**
+     * Check lengths of the parameters to ensure they don't exceed.
+     *
+     * @see <a href="https://docs.newrelic.com/docs/apm/new-relic-apm/maintenance/record-deployments#deployment_limits">Deployment limits</a>
+     */
+    static void checkLimits(String revision, String changelog, String description, String user) {
+        if (revision == null || revision.length() >= 127) {
+            throw new InvalidParameterException("The length of Revision should be less than 127 characters.");
+        } else if (changelog.length() >= 65535) {
+            throw new InvalidParameterException("The length of changelog should be less than 65535.");
+        } else if (description.length() >= 65535) {
+            throw new InvalidParameterException("The length of description should be less than 65535.");
+        } else if (user.length() >= 31) {
+            throw new InvalidParameterException("The length of user should be less than 31.");
+        }
+    }
+
+    /**
+     * Get the HTTP client used for talking to New Relic. The client is shared, so it must not be closed.
+     *
+     * @return The shared, started HTTP client
+     * @throws IOException if the client cannot be created
+     */
+    protected CloseableHttpAsyncClient getHttpClient() throws IOException {
+        return SharedAsyncHttpClient.get();
+    }
+
+    /**
+     * Send a request once a slot for the API key is available.
+     *
+     * @param future Failed if no slot is available, cancelling it aborts the request
+     * @param callback Notified of the response
+     */
+    private void send(HttpAsyncRequestProducer request, String apiKey, long waitMillis, Call<?> future,
+                      FutureCallback<HttpResponse> callback) {
+        Permit.acquire(apiUrl, apiKey, waitMillis, new Send(request, future, callback));
+    }
+
+    /**
+     * Executes a request with the permit it waited for and gives the permit back once the call completed.
+     */
+    private final class Send implements FutureCallback<Permit> {
+        private final HttpAsyncRequestProducer request;
+        private final Call<?> future;
+        private final FutureCallback<HttpResponse> callback;
+
+        Send(HttpAsyncRequestProducer request, Call<?> future, FutureCallback<HttpResponse> callback) {
+            this.request = request;
+            this.future = future;
+            this.callback = callback;
+        }
+
+        @Override
+        public void completed(final Permit permit) {
+            if (future.isDone()) {
+                // cancelled while waiting for the slot
+                permit.cancel();
+                return;
+            }
+            try {
+                HttpAsyncResponseConsumer<HttpResponse> consumer = HttpAsyncMethods.createConsumer();
+                future.sending(getHttpClient().execute(request, consumer, null, new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse response) {
+                        permit.release(response.getStatusLine().getStatusCode());
+                        callback.completed(response);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        if (future.isCancelled()) {
+                            // aborting the request may be reported as a failure
+                            permit.cancel();
+                            callback.cancelled();
+                            return;
+                        }
+                        permit.release(Permit.NO_RESPONSE);
+                        if (e instanceof TimeoutException) {
+                            // the non-blocking pool reports a lease timeout like this
+                            e = new ConnectionPoolTimeoutException(e.getMessage());
+                        }
+                        if (e instanceof IOException && timeouts.describe((IOException) e) != null) {
+                            ClientMetrics.get().recordTimeout();
+                        }
+                        callback.failed(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        permit.cancel();
+                        callback.cancelled();
+                    }
+                }));
+            } catch (IOException | RuntimeException e) {
+                // the client could not be created or is shutting down
+                permit.release(Permit.NO_RESPONSE);
+                callback.failed(e);
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            future.failed(e);
+        }
+
+        @Override
+        public void cancelled() {
+            future.cancel();
+        }
+    }
+
+    /**
+     * Fetches the pages of an application list. Each page is buffered by the client and parsed once it is complete.
+     * The next page is requested as soon as its link is known, so it is on its way while the current one is parsed.
+     */
+    private final class ApplicationsCall {
+        private final String apiKey;
+        private final Call<List<Application>> future;
+        private final List<List<Application>> pages = new ArrayList<>();
+        private int parsed;
+        private boolean last;
+
+        ApplicationsCall(String apiKey, Call<List<Application>> future) {
+            this.apiKey = apiKey;
+            this.future = future;
+        }
+
+        void fetch(final URI url) {
+            if (future.isDone()) {
+                return;
+            }
+            final int index;
+            synchronized (this) {
+                index = pages.size();
+                pages.add(null);
+            }
+            HttpGet get = new HttpGet(url);
+            get.setConfig(timeouts.toRequestConfig());
+            get.addHeader("X-Api-Key", apiKey);
+            get.addHeader("Accept", "application/json");
+            HttpAsyncRequestProducer request = HttpAsyncMethods.create(get);
+            send(request, apiKey, LIMITER_WAIT_MILLIS, future, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    page(index, url, response);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    future.failed(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    future.cancel();
+                }
+            });
+        }
+
+        private void page(int index, URI url, HttpResponse response) {
+            List<Application> applications = new ArrayList<>();
+            try {
+                StatusLine statusLine = response.getStatusLine();
+                if (statusLine.getStatusCode() != HttpStatus.SC_OK) {
+                    throw new HttpResponseException(
+                            statusLine.getStatusCode(),
+                            statusLine.getReasonPhrase()
+                    );
+                }
+                if (response.getEntity() == null) {
+                    throw new ClientProtocolException("Response contains no content");
+                }
+                URI next = ApplicationListReader.nextLink(response, url);
+                if (next != null && index + 1 < MAX_APPLICATION_PAGES) {
+                    fetch(next);
+                } else {
+                    synchronized (this) {
+                        last = true;
+                    }
+                }
+                // the body is already buffered, reading it does not block
+                Reader reader = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8);
+                ApplicationListReader.read(reader, applications);
+            } catch (IOException | RuntimeException e) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                future.failed(e);
+                return;
+            }
+            List<Application> result = null;
+            synchronized (this) {
+                pages.set(index, applications);
+                parsed++;
+                if (last && parsed == pages.size()) {
+                    result = new ArrayList<>();
+                    for (List<Application> page : pages) {
+                        result.addAll(page);
+                    }
+                }
+            }
+            if (result != null) {
+                future.completed(result);
+            }
+        }
+    }
+
+    /**
+     * Posts a deployment, retrying according to the {@link RetryPolicy} of this client on a timer.
+     */
+    private final class DeploymentCall implements FutureCallback<HttpResponse> {
+        private final HttpPost request;
+        private final String apiKey;
+        private final String applicationId;
+        private final TaskListener listener;
+        private final DeploymentAuditLog.Entry audit;
+        private final Call<Deployment> future;
+        private final long deadline = System.currentTimeMillis() + retryPolicy.getBudgetMillis();
+        private int attempt;
+        private volatile SentTracking sending;
+
+        DeploymentCall(HttpPost request, String apiKey, String applicationId, TaskListener listener,
+                       DeploymentAuditLog.Entry audit, Call<Deployment> future) {
+            this.request = request;
+            this.apiKey = apiKey;
+            this.applicationId = applicationId;
+            this.listener = listener;
+            this.audit = audit;
+            this.future = future;
+        }
+
+        void attempt() {
+            if (future.isDone()) {
+                return;
+            }
+            attempt++;
+            long waitMillis = limiterWait(attempt, deadline);
+            if (waitMillis <= 0) {
+                listener.error("New Relic deployment failed after %d attempt(s): retry budget spent", attempt - 1);
+                future.failed(budgetSpent(retryPolicy));
+                return;
+            }
+            sending = new SentTracking(HttpAsyncMethods.create(request));
+            send(sending, apiKey, waitMillis, future, this);
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            audit.attempted(statusCode);
+            if (future.isDone()) {
+                // cancelled while the response was on its way
+                EntityUtils.consumeQuietly(response.getEntity());
+                return;
+            }
+            if (statusCode == HttpStatus.SC_CREATED) {
+                if (attempt > 1) {
+                    listener.getLogger().println("New Relic accepted the deployment on attempt " + attempt);
+                }
+                future.completed(Deployment.read(applicationId, response.getEntity()));
+                return;
+            }
+            EntityUtils.consumeQuietly(response.getEntity());
+            retry(response.getStatusLine().toString(), new DeploymentRejectedException(statusCode,
+                    response.getStatusLine().toString()), retryPolicy.isRetryable(statusCode),
+                    RetryPolicy.retryAfterMillis(response));
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (future.isDone()) {
+                return;
+            }
+            if (!(e instanceof IOException)) {
+                future.failed(e);
+                return;
+            }
+            audit.attempted(Permit.NO_RESPONSE);
+            IOException failure = (IOException) e;
+            String timeout = timeouts.describe(failure);
+            retry(timeout != null ? timeout : e.toString(), failure,
+                    retryPolicy.isRetryable(failure, sending.isRequestSent()), -1);
+        }
+
+        @Override
+        public void cancelled() {
+            future.cancel();
+        }
+
+        private void retry(String cause, IOException failure, boolean retryable, long retryAfter) {
+            long delay = retryAfter >= 0 ? retryAfter : retryPolicy.backoff(attempt);
+            if (!retryable || attempt >= retryPolicy.getMaxAttempts()
+                    || System.currentTimeMillis() + delay > deadline) {
+                listener.error("New Relic deployment failed after %d attempt(s): %s", attempt, cause);
+                future.failed(failure);
+                return;
+            }
+            ClientMetrics.get().recordRetry();
+            listener.getLogger().println("New Relic deployment attempt " + attempt + " of "
+                    + retryPolicy.getMaxAttempts() + " failed: " + cause + ". Retrying in " + delay + " ms");
+            request.reset();
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Produces a request and remembers whether HttpClient sent all of it, which tells whether New Relic may have
+     * acted on a request that failed.
+     */
+    static final class SentTracking implements HttpAsyncRequestProducer {
+        private final HttpAsyncRequestProducer producer;
+        private volatile boolean requestSent;
+
+        SentTracking(HttpAsyncRequestProducer producer) {
+            this.producer = producer;
+        }
+
+        boolean isRequestSent() {
+            return requestSent;
+        }
+
+        @Override
+        public HttpHost getTarget() {
+            return producer.getTarget();
+        }
+
+        @Override
+        public HttpRequest generateRequest() throws IOException, HttpException {
+            return producer.generateRequest();
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+            producer.produceContent(encoder, ioctrl);
+        }
+
+        @Override
+        public void requestCompleted(HttpContext context) {
+            requestSent = true;
+            producer.requestCompleted(context);
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            producer.failed(ex);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return producer.isRepeatable();
+        }
+
+        @Override
+        public void resetRequest() throws IOException {
+            producer.resetRequest();
+        }
+
+        @Override
+        public void close() throws IOException {
+            producer.close();
+        }
+    }
+
+    /**
+     * Writes the console summary and the {@link DeploymentAuditLog} entry of a deployment before passing it on.
+     */
+    private static final class Audited implements FutureCallback<Deployment> {
+        private final DeploymentAuditLog.Entry audit;
+        private final TaskListener listener;
+        private final FutureCallback<Deployment> callback;
+
+        Audited(DeploymentAuditLog.Entry audit, TaskListener listener, FutureCallback<Deployment> callback) {
+            this.audit = audit;
+            this.listener = listener;
+            this.callback = callback;
+        }
+
+        @Override
+        public void completed(Deployment deployment) {
+            finish(deployment);
+            if (callback != null) {
+                callback.completed(deployment);
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            audit.setError(e instanceof DeploymentRejectedException ? e.getMessage() : e.toString());
+            finish(null);
+            if (callback != null) {
+                callback.failed(e);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            audit.setError("Cancelled");
+            finish(null);
+            if (callback != null) {
+                callback.cancelled();
+            }
+        }
+
+        private void finish(Deployment deployment) {
+            audit.finish(deployment);
+            listener.getLogger().println(audit.summary());
+            DeploymentAuditLog.get().write(audit);
+        }
+    }
+
+    /**
+     * Future of a call. Cancelling it aborts the request in flight, or the retry or slot the call is waiting for.
+     */
+    private static final class Call<T> extends BasicFuture<T> {
+        private volatile Future<HttpResponse> inFlight;
+
+        Call(FutureCallback<T> callback) {
+            super(callback);
+        }
+
+        void sending(Future<HttpResponse> request) {
+            inFlight = request;
+            if (isCancelled() && request != null) {
+                request.cancel(true);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<HttpResponse> request = inFlight;
+            if (cancelled && request != null) {
+                request.cancel(true);
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * Records the outcome of a call in the {@link ClientMetrics} before passing it on.
+     */
+    private static final class Recording<T> implements FutureCallback<T> {
+        private final ClientMetrics.Operation operation;
+        private final FutureCallback<T> callback;
+        private final long start = System.nanoTime();
+
+        Recording(ClientMetrics.Operation operation, FutureCallback<T> callback) {
+            this.operation = operation;
+            this.callback = callback;
+        }
+
+        @Override
+        public void completed(T result) {
+            operation.record(start, result != null);
+            if (callback != null) {
+                callback.completed(result);
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            operation.record(start, false);
+            if (callback != null) {
+                callback.failed(e);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            operation.record(start, false);
+            if (callback != null) {
+                callback.cancelled();
+            }
+        }
+    }
+}
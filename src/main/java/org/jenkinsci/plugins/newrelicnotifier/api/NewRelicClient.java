@@ -27,7 +27,7 @@ import java.io.IOException;
 import java.util.List;
 
 import hudson.model.BuildListener;
-import hudson.FilePath;
+import hudson.model.TaskListener;
 
 /**
  * REST client interface for the New Relic API.
@@ -44,6 +44,16 @@ public interface NewRelicClient {
      */
     List<Application> getApplications(String apiKey) throws IOException;
 
+    /**
+     * Get the applications whose name contains the given text, filtered by New Relic.
+     *
+     * @param apiKey New Relic API key
+     * @param name Text the application names must contain
+     * @return The matching applications available for supplied API key.
+     * @throws IOException
+     */
+    List<Application> findApplications(String apiKey, String name) throws IOException;
+
     /**
      * Submit deployment notification
      *
@@ -54,7 +64,6 @@ public interface NewRelicClient {
      * @param changelog A list of changes for this deployment
      * @param user The name of the user/process that triggered this deployment
      * @param listener The Listener object provided by Jenkins. Used for logging
-     * @param workspacePath The path of the working directory where the Jenkins Job is running.
      * @return Returns true if notifications was successful
      * @throws IOException
      * @see <a href="https://docs.newrelic.com/docs/apm/apis/requirements/api-key">https://docs.newrelic.com/docs/apm/apis/requirements/api-key</a>
@@ -66,8 +75,30 @@ public interface NewRelicClient {
             String revision,
             String changelog,
             String user,
-            BuildListener listener,
-            FilePath workspacePath
+            BuildListener listener
+    ) throws IOException;
+
+    /**
+     * Submit deployment notification and return the recorded deployment.
+     *
+     * @param apiKey New Relic API key
+     * @param applicationId Application to register deployment for
+     * @param description Text annotation for the deployment
+     * @param revision The revision number from your source control system
+     * @param changelog A list of changes for this deployment
+     * @param user The name of the user/process that triggered this deployment
+     * @param listener The Listener object provided by Jenkins. Used for logging
+     * @return The recorded deployment, or null if New Relic rejected it
+     * @throws IOException
+     */
+    Deployment createDeployment(
+            String apiKey,
+            String applicationId,
+            String description,
+            String revision,
+            String changelog,
+            String user,
+            TaskListener listener
     ) throws IOException;
 
     /**
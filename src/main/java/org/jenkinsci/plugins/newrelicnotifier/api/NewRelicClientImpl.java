@@ -23,177 +23,100 @@
  */
 package org.jenkinsci.plugins.newrelicnotifier.api;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import hudson.ProxyConfiguration;
 import hudson.model.BuildListener;
-import hudson.FilePath;
-import jenkins.model.Jenkins;
-import org.apache.http.*;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpResponseException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.ProxyAuthenticationStrategy;
-import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
-import org.apache.http.message.BasicNameValuePair;
+import hudson.model.TaskListener;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.net.*;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.security.InvalidParameterException;
-import java.util.ArrayList;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * REST client implementation for the New Relic API.
+ * <p>
+ * The calls are made by a {@link NewRelicAsyncClient}, this client only waits for them. An interrupted wait
+ * cancels the call, which aborts the request in flight.
  */
 public class NewRelicClientImpl implements NewRelicClient {
 
-    private static final String API_URL = "https://api.newrelic.com";
+    private final NewRelicAsyncClient client;
 
-    private static final String DEPLOYMENT_ENDPOINT = "/deployments.json";
+    public NewRelicClientImpl() {
+        this(RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * @param retryPolicy How failed deployment notifications are retried
+     */
+    public NewRelicClientImpl(RetryPolicy retryPolicy) {
+        this(retryPolicy, Timeouts.DEFAULT);
+    }
 
-    private static final String APPLICATIONS_ENDPOINT = "/v2/applications.json";
+    /**
+     * @param retryPolicy How failed deployment notifications are retried
+     * @param timeouts Timeouts of each call to New Relic
+     */
+    public NewRelicClientImpl(RetryPolicy retryPolicy, Timeouts timeouts) {
+        this(retryPolicy, timeouts, NewRelicAsyncClientImpl.API_URL);
+    }
+
+    /**
+     * @param retryPolicy How failed deployment notifications are retried
+     * @param timeouts Timeouts of each call to New Relic
+     * @param apiUrl Base URL of the New Relic REST API, e.g. of a stand-in server for testing
+     */
+    public NewRelicClientImpl(RetryPolicy retryPolicy, Timeouts timeouts, String apiUrl) {
+        this(new NewRelicAsyncClientImpl(retryPolicy, timeouts, apiUrl));
+    }
+
+    /**
+     * @param client The client making the calls
+     */
+    public NewRelicClientImpl(NewRelicAsyncClient client) {
+        this.client = client;
+    }
+
+    public NewRelicAsyncClient getAsyncClient() {
+        return client;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public List<Application> getApplications(String apiKey) throws IOException {
-        List<Application> result = new ArrayList<>();
-        URI url = null;
-        try {
-            url = new URI(API_URL + APPLICATIONS_ENDPOINT);
-        } catch (URISyntaxException e) {
-            // no need to handle this
-        }
-        HttpGet request = new HttpGet(url);
-        setHeaders(request, apiKey);
-        CloseableHttpClient client = getHttpClient(url);
-        ResponseHandler<ApplicationList> rh = new ResponseHandler<ApplicationList>() {
-            @Override
-            public ApplicationList handleResponse(HttpResponse response) throws IOException {
-                StatusLine statusLine = response.getStatusLine();
-                if (statusLine.getStatusCode() != HttpStatus.SC_OK) {
-                    throw new HttpResponseException(
-                            statusLine.getStatusCode(),
-                            statusLine.getReasonPhrase()
-                    );
-                }
-                HttpEntity entity = response.getEntity();
-                if (entity == null) {
-                    throw new ClientProtocolException("Response contains no content");
-                }
-                Gson gson = new GsonBuilder().create();
-                Reader reader = new InputStreamReader(entity.getContent(), Charset.forName("UTF-8"));
-                return gson.fromJson(reader, ApplicationList.class);
-            }
-        };
-        try {
-            ApplicationList response = client.execute(request, rh);
-            result.addAll(response.getApplications());
-        } finally {
-            if (client != null) {
-                client.close();
-            }
-        }
-        return result;
+        return await(client.getApplications(apiKey, null));
     }
 
     /**
-     * This function is used to read the contents of the Changelog File if specified. If the path is valid and the file is readable, it will return the contents of the file and in case it fails, it will return NULL.
-     * @param workspacePath The path of the Workspace where the Jenkins Job is running.
-     * @param filePath The path of the changelog file which needs to be read.
-     * @return Returns the contents of a file as string or NULL if unable to read the file.
+     * {@inheritDoc}
      */
-    private String getChangelogFileContents(String workspacePath, String filePath) {
-        try {
-            String data =  new String(Files.readAllBytes(Paths.get(workspacePath,filePath).toAbsolutePath()),StandardCharsets.UTF_8);
-            return data;
-        } catch (Exception e) {
-            return null;
-        }
+    @Override
+    public List<Application> findApplications(String apiKey, String name) throws IOException {
+        return await(client.findApplications(apiKey, name, null));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean sendNotification(String apiKey, String applicationId, String description, String revision, String changelog, String user, BuildListener listener, FilePath workspacePath) throws IOException {
-        URI url = null;
-        try {
-            String appUrl = "/v2/applications/" + applicationId;
-            url = new URI(API_URL + appUrl + DEPLOYMENT_ENDPOINT);
-        } catch (URISyntaxException e) {
-            // no need to handle this
-        }
-        String changeLogContent = "";
-        String changeLogFileContent = getChangelogFileContents(workspacePath.toString(), changelog);
-
-        if (changeLogFileContent != null) {
-            changeLogContent = changeLogFileContent;
-        } else {
-            changeLogContent = changelog;
-        }
-
-        // Check lengths of the parameters to ensure they don't exceed. More info over here - https://docs.newrelic.com/docs/apm/new-relic-apm/maintenance/record-deployments#deployment_limits
-        if (revision == null || revision.length() >= 127) {
-            throw new InvalidParameterException("The length of Revision should be less than 127 characters.");
-        } else if (changeLogContent.length() >= 65535) {
-            throw new InvalidParameterException("The length of changelog should be less than 65535.");
-        } else if (description.length() >= 65535) {
-            throw new InvalidParameterException("The length of description should be less than 65535.");
-        } else if (user.length() >= 31) {
-            throw new InvalidParameterException("The length of user should be less than 31.");
-        }
-
-        HttpPost request = new HttpPost(url);
-        request.setHeader("X-Api-Key", apiKey);
-        request.setHeader("Content-Type", "application/json");
-
-        JsonObject deployment = new JsonObject();
-        JsonObject deploymentProperties = new JsonObject();
-        deploymentProperties.addProperty("revision", revision);
-        deploymentProperties.addProperty("changelog", changeLogContent);
-        deploymentProperties.addProperty("description", description);
-        deploymentProperties.addProperty("user", user);
+    public boolean sendNotification(String apiKey, String applicationId, String description, String revision, String changelog, String user, BuildListener listener) throws IOException {
+        return await(client.sendNotification(apiKey, applicationId, description, revision, changelog, user, listener,
+                null));
+    }
 
-        deployment.add("deployment", deploymentProperties);
-        
-        String deploymentJsonString = deployment.toString().replace("\\\\", "");
-        //deploymentJsonString = deploymentJsonString.replace("\\\\", "\\"); // This is because the new API supports Newlines and stringifying a JSON object escapes the newlines which make them useless in the Changelog section.
-        listener.getLogger().println(deploymentJsonString);
-        StringEntity entity = new StringEntity(deploymentJsonString,ContentType.APPLICATION_JSON);
-        request.setEntity(entity);
-        CloseableHttpClient client = getHttpClient(url);
-        boolean result = false;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Deployment createDeployment(String apiKey, String applicationId, String description, String revision, String changelog, String user, TaskListener listener) throws IOException {
         try {
-            CloseableHttpResponse response = client.execute(request);
-            result = HttpStatus.SC_CREATED == response.getStatusLine().getStatusCode();
-        } finally {
-            if (client != null) {
-                client.close();
-            }
+            return await(client.createDeployment(apiKey, applicationId, description, revision, changelog, user,
+                    listener, null));
+        } catch (DeploymentRejectedException e) {
+            return null;
         }
-        return result;
     }
 
     /**
@@ -201,57 +124,28 @@ public class NewRelicClientImpl implements NewRelicClient {
      */
     @Override
     public String getApiEndpoint() {
-        return API_URL;
+        return client.getApiEndpoint();
     }
 
-    protected CloseableHttpClient getHttpClient(URI url) {
-        HttpClientBuilder builder = HttpClientBuilder.create();
-        Jenkins instance = Jenkins.getInstance();
-
-        if (instance != null) {
-            ProxyConfiguration proxyConfig = instance.proxy;
-            if (proxyConfig != null) {
-                Proxy proxy = proxyConfig.createProxy(url.getHost());
-                if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
-                    SocketAddress addr = proxy.address();
-                    if (addr != null && addr instanceof InetSocketAddress) {
-                        InetSocketAddress proxyAddr = (InetSocketAddress) addr;
-                        HttpHost proxyHost = new HttpHost(proxyAddr.getAddress().getHostAddress(), proxyAddr.getPort());
-                        DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxyHost);
-                        builder = builder.setRoutePlanner(routePlanner);
-
-                        String proxyUser = proxyConfig.getUserName();
-                        if (proxyUser != null) {
-                            String proxyPass = proxyConfig.getPassword();
-                            CredentialsProvider cred = new BasicCredentialsProvider();
-                            cred.setCredentials(new AuthScope(proxyHost),
-                                    new UsernamePasswordCredentials(proxyUser, proxyPass));
-                            builder = builder
-                                    .setDefaultCredentialsProvider(cred)
-                                    .setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
-                        }
-                    }
-                }
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for New Relic");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
-        }
-
-        return builder.build();
-    }
-
-    private void setHeaders(HttpRequest request, String apiKey) {
-        request.addHeader("X-Api-Key", apiKey);
-        request.addHeader("Accept", "application/json");
-    }
-
-    private class ApplicationList {
-        private List<Application> applications;
-
-        public ApplicationList(List<Application> applications) {
-            this.applications = applications;
-        }
-
-        public List<Application> getApplications() {
-            return applications;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
         }
     }
 }
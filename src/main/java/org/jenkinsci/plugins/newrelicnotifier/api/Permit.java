@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import jenkins.util.Timer;
+import org.apache.http.HttpStatus;
+import org.apache.http.concurrent.FutureCallback;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A slot for one call to New Relic, taken from the concurrency limiter and the circuit breaker of the API key.
+ */
+final class Permit {
+
+    static final int NO_RESPONSE = -1;
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final AdaptiveLimiter limiter;
+    private final CircuitBreaker breaker;
+    private final long started = System.nanoTime();
+
+    private Permit(AdaptiveLimiter limiter, CircuitBreaker breaker) {
+        this.limiter = limiter;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Take a slot without blocking the calling thread.
+     *
+     * @param callback Completed with the permit, on the calling thread if a slot is available right away, otherwise
+     *                 on a timer thread once one is freed up. Failed if no slot became available in time or the
+     *                 circuit is open.
+     */
+    static void acquire(String endpoint, String apiKey, long timeoutMillis, FutureCallback<Permit> callback) {
+        AdaptiveLimiter limiter = AdaptiveLimiter.forApiKey(apiKey);
+        Waiter waiter = new Waiter(limiter, endpoint, apiKey, callback);
+        if (!limiter.acquire(waiter)) {
+            waiter.expireAfter(timeoutMillis);
+        }
+    }
+
+    private static Permit open(AdaptiveLimiter limiter, String endpoint, String apiKey) throws CircuitOpenException {
+        CircuitBreaker breaker = CircuitBreaker.forEndpoint(endpoint, apiKey);
+        try {
+            breaker.acquirePermission();
+        } catch (CircuitOpenException e) {
+            limiter.release();
+            throw e;
+        }
+        return new Permit(limiter, breaker);
+    }
+
+    private static IOException timedOut(AdaptiveLimiter limiter) {
+        return new IOException("Timed out waiting for a New Relic API slot (limit " + limiter.getLimit()
+                + ", queued " + limiter.getQueueDepth() + ")");
+    }
+
+    /**
+     * @param statusCode The status code of the response, or {@link #NO_RESPONSE} if the call failed
+     */
+    void release(int statusCode) {
+        boolean throttled = statusCode == SC_TOO_MANY_REQUESTS;
+        limiter.release(System.nanoTime() - started, throttled);
+        breaker.record(statusCode != NO_RESPONSE && !throttled && statusCode < HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        ClientMetrics.get().recordStatus(statusCode);
+    }
+
+    /**
+     * Give back the slot of a call that was cancelled, e.g. because the build was aborted. Says nothing about New
+     * Relic, so neither the limit nor the circuit breaker learn from it.
+     */
+    void cancel() {
+        limiter.release();
+        breaker.cancel();
+    }
+
+    /**
+     * A caller waiting for a slot. A slot freed up by another call is granted on the thread releasing it, which may
+     * be an I/O reactor thread, so opening the circuit and starting the call are handed off to the timer.
+     */
+    private static final class Waiter implements Runnable {
+        private final AdaptiveLimiter limiter;
+        private final String endpoint;
+        private final String apiKey;
+        private final FutureCallback<Permit> callback;
+        private final Thread requester = Thread.currentThread();
+        private boolean queued;
+        private boolean granted;
+        private ScheduledFuture<?> timeout;
+
+        Waiter(AdaptiveLimiter limiter, String endpoint, String apiKey, FutureCallback<Permit> callback) {
+            this.limiter = limiter;
+            this.endpoint = endpoint;
+            this.apiKey = apiKey;
+            this.callback = callback;
+        }
+
+        void expireAfter(long timeoutMillis) {
+            synchronized (this) {
+                queued = true;
+            }
+            ScheduledFuture<?> scheduled = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (limiter.cancel(Waiter.this)) {
+                        callback.failed(timedOut(limiter));
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                if (!granted) {
+                    timeout = scheduled;
+                    return;
+                }
+            }
+            scheduled.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            ScheduledFuture<?> pending;
+            boolean immediate;
+            synchronized (this) {
+                granted = true;
+                pending = timeout;
+                immediate = !queued && Thread.currentThread() == requester;
+            }
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            if (immediate) {
+                // a slot was available right away
+                grant();
+                return;
+            }
+            try {
+                Timer.get().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        grant();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                limiter.release();
+                callback.failed(e);
+            }
+        }
+
+        private void grant() {
+            Permit permit;
+            try {
+                permit = open(limiter, endpoint, apiKey);
+            } catch (CircuitOpenException e) {
+                callback.failed(e);
+                return;
+            }
+            callback.completed(permit);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.Extension;
+import hudson.ProxyConfiguration;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.protocol.HttpContext;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of how hosts are reached through the Jenkins proxy configuration.
+ * <p>
+ * The snapshot is taken once per proxy configuration instead of on every call, and taken again when the
+ * configuration is saved. Whether a host bypasses the proxy is decided per request, so one client serves all hosts.
+ * The proxy address is resolved on first use and cached for {@link #DNS_TTL_MILLIS}. If a later lookup fails, the
+ * last known address is used for another {@link #DNS_FAILURE_TTL_MILLIS}; if the name never resolved, it is left to
+ * HttpClient to resolve when connecting, so the failure is reported by the call rather than while routing it.
+ */
+final class ProxyRouting {
+
+    private static final Logger LOGGER = Logger.getLogger(ProxyRouting.class.getName());
+
+    private static final String PREFIX = ProxyRouting.class.getName();
+
+    static final long DNS_TTL_MILLIS = Long.getLong(PREFIX + ".dnsTtlMillis", TimeUnit.SECONDS.toMillis(60));
+
+    static final long DNS_FAILURE_TTL_MILLIS = Long.getLong(PREFIX + ".dnsFailureTtlMillis",
+            TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * Routing without a proxy.
+     */
+    static final ProxyRouting DIRECT = new ProxyRouting(null, null, 0, Collections.<Pattern>emptyList(), null);
+
+    private static volatile ProxyRouting current;
+
+    private final ProxyConfiguration source;
+
+    private final String proxyName;
+
+    private final int proxyPort;
+
+    private final List<Pattern> noProxyHosts;
+
+    private final CredentialsProvider credentials;
+
+    private volatile Resolved resolved;
+
+    private ProxyRouting(ProxyConfiguration source, String proxyName, int proxyPort, List<Pattern> noProxyHosts,
+                         CredentialsProvider credentials) {
+        this.source = source;
+        this.proxyName = proxyName;
+        this.proxyPort = proxyPort;
+        this.noProxyHosts = noProxyHosts;
+        this.credentials = credentials;
+    }
+
+    /**
+     * @return The routing of the current Jenkins proxy configuration
+     */
+    static ProxyRouting current() {
+        ProxyConfiguration config = currentProxyConfiguration();
+        ProxyRouting routing = current;
+        if (routing == null || routing.source != config) {
+            synchronized (ProxyRouting.class) {
+                routing = current;
+                if (routing == null || routing.source != config) {
+                    routing = of(config);
+                    current = routing;
+                }
+            }
+        }
+        return routing;
+    }
+
+    /**
+     * Take a new snapshot on next use, for a proxy configuration that was changed in place.
+     */
+    static void refresh() {
+        current = null;
+    }
+
+    static ProxyConfiguration currentProxyConfiguration() {
+        Jenkins instance = Jenkins.getInstance();
+        return instance != null ? instance.proxy : null;
+    }
+
+    static ProxyRouting of(ProxyConfiguration config) {
+        if (config == null || config.name == null || config.name.trim().isEmpty()) {
+            return config == null ? DIRECT
+                    : new ProxyRouting(config, null, 0, Collections.<Pattern>emptyList(), null);
+        }
+        String name = config.name.trim();
+        CredentialsProvider credentials = null;
+        String user = config.getUserName();
+        if (user != null && !user.isEmpty()) {
+            credentials = new BasicCredentialsProvider();
+            credentials.setCredentials(new AuthScope(name, config.port),
+                    new UsernamePasswordCredentials(user, config.getPassword()));
+        }
+        return new ProxyRouting(config, name, config.port,
+                Collections.unmodifiableList(new ArrayList<>(config.getNoProxyHostPatterns())), credentials);
+    }
+
+    /**
+     * @return The proxy to reach the host through, or null to connect directly
+     */
+    HttpHost proxyFor(String host) {
+        if (proxyName == null) {
+            return null;
+        }
+        for (Pattern pattern : noProxyHosts) {
+            if (pattern.matcher(host).matches()) {
+                return null;
+            }
+        }
+        return proxyHost(System.currentTimeMillis());
+    }
+
+    /**
+     * @return The credentials of the proxy, or null if it does not need any
+     */
+    CredentialsProvider getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * @return A route planner sending requests through the proxy unless their host bypasses it
+     */
+    HttpRoutePlanner routePlanner() {
+        return new DefaultRoutePlanner(null) {
+            @Override
+            protected HttpHost determineProxy(HttpHost target, HttpRequest request, HttpContext context) {
+                return proxyFor(target.getHostName());
+            }
+        };
+    }
+
+    private HttpHost proxyHost(long now) {
+        Resolved last = resolved;
+        if (last != null && now < last.expires) {
+            return last.host;
+        }
+        HttpHost host;
+        long ttl;
+        try {
+            // keep the name as well, proxy credentials are scoped to it
+            host = new HttpHost(InetAddress.getByName(proxyName), proxyName, proxyPort, null);
+            ttl = DNS_TTL_MILLIS;
+        } catch (UnknownHostException e) {
+            LOGGER.log(Level.FINE, "Failed to resolve proxy " + proxyName, e);
+            host = last != null ? last.host : new HttpHost(proxyName, proxyPort);
+            ttl = DNS_FAILURE_TTL_MILLIS;
+        }
+        resolved = new Resolved(host, now + ttl);
+        return host;
+    }
+
+    private static final class Resolved {
+        private final HttpHost host;
+        private final long expires;
+
+        Resolved(HttpHost host, long expires) {
+            this.host = host;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Takes a new snapshot when the proxy configuration is saved.
+     */
+    @Extension
+    public static final class ConfigurationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof ProxyConfiguration) {
+                refresh();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how failed deployment notifications are retried.
+ * <p>
+ * Delays grow exponentially from the base delay up to the maximum delay and are randomized with full jitter.
+ * A {@code Retry-After} header sent by New Relic takes precedence over the computed delay. No retry is attempted
+ * once the time budget of the notification would be exceeded.
+ * <p>
+ * Only {@code 429 Too Many Requests} is retried by default. A server error, especially one from a proxy, may come
+ * after New Relic recorded the deployment, and retrying it would record the deployment twice.
+ */
+public final class RetryPolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, TimeUnit.SECONDS.toMillis(10),
+            Collections.singleton(429), TimeUnit.SECONDS.toMillis(60));
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, Collections.<Integer>emptySet(), 0);
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Set<Integer> retryableStatusCodes;
+    private final long budgetMillis;
+
+    /**
+     * @param maxAttempts Maximum number of attempts, including the first one
+     * @param baseDelayMillis Delay before the first retry, before jitter
+     * @param maxDelayMillis Upper bound of the delay between attempts, before jitter
+     * @param retryableStatusCodes HTTP status codes that are retried
+     * @param budgetMillis Total time allowed for all attempts of a notification
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                       Collection<Integer> retryableStatusCodes, long budgetMillis) {
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.baseDelayMillis = Math.max(baseDelayMillis, 0);
+        this.maxDelayMillis = Math.max(maxDelayMillis, this.baseDelayMillis);
+        this.retryableStatusCodes = Collections.unmodifiableSet(new TreeSet<>(retryableStatusCodes));
+        this.budgetMillis = Math.max(budgetMillis, 0);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public Set<Integer> getRetryableStatusCodes() {
+        return retryableStatusCodes;
+    }
+
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    /**
+     * @param statusCode HTTP status code of a failed attempt
+     * @return Whether the attempt should be retried
+     */
+    public boolean isRetryable(int statusCode) {
+        return retryableStatusCodes.contains(statusCode);
+    }
+
+    /**
+     * Creating a deployment is not idempotent, so only failures before New Relic could have seen the request are
+     * retried: connections that could not be established, and connections closed without an answer before
+     * HttpClient had sent the whole request, which it reports as {@link NoHttpResponseException}. Once the request
+     * was sent, New Relic may have recorded the deployment whatever happens next, so no failure is retried then, nor
+     * are requests aborted on purpose.
+     *
+     * @param e The exception of a failed attempt
+     * @param requestSent Whether HttpClient had sent the whole request
+     * @return Whether the attempt should be retried
+     */
+    public boolean isRetryable(IOException e, boolean requestSent) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        return e instanceof ConnectException
+                || e instanceof NoRouteToHostException
+                || e instanceof ConnectTimeoutException
+                || (e instanceof NoHttpResponseException && !requestSent);
+    }
+
+    /**
+     * @param attempt The attempt that failed, starting at 1
+     * @return Randomized delay before the next attempt
+     */
+    public long backoff(int attempt) {
+        long delay = baseDelayMillis << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+        return delay == 0 ? 0 : ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+    /**
+     * @param response A failed response
+     * @return The delay requested by the {@code Retry-After} header in milliseconds, or -1 if there is none
+     */
+    public static long retryAfterMillis(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(Long.parseLong(value), 0));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(date.getTime() - System.currentTimeMillis(), 0);
+        }
+    }
+
+    /**
+     * @param value Comma or whitespace separated list of status codes
+     * @return The status codes, ignoring anything that is not a number
+     */
+    public static Set<Integer> parseStatusCodes(String value) {
+        Set<Integer> result = new TreeSet<>();
+        if (value != null) {
+            for (String code : value.split("[,\\s]+")) {
+                try {
+                    result.add(Integer.parseInt(code));
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plugin wide non-blocking HTTP client shared by all {@link NewRelicAsyncClientImpl} instances.
+ * <p>
+ * All connections are served by a small, fixed number of I/O reactor threads, so the number of requests in flight
+ * does not depend on the number of threads. Like {@link SharedHttpClient}, the client is only rebuilt when the
+ * {@link ProxyRouting} changes and the previous one is closed after a grace period.
+ */
+final class SharedAsyncHttpClient {
+
+    private static final String PREFIX = SharedAsyncHttpClient.class.getName();
+
+    static final int IO_THREADS = Integer.getInteger(PREFIX + ".ioThreads", 2);
+
+    static final int MAX_TOTAL = Integer.getInteger(PREFIX + ".maxTotal", 64);
+
+    static final int MAX_PER_ROUTE = Integer.getInteger(PREFIX + ".maxPerRoute", 32);
+
+    private static Holder current;
+
+    private SharedAsyncHttpClient() {
+    }
+
+    /**
+     * Get the shared, started client. The returned client must not be closed by the caller. Requests are routed
+     * through the proxy by the client itself, so the same client serves every URL.
+     *
+     * @return the shared client
+     * @throws IOException if the I/O reactor cannot be created
+     */
+    static synchronized CloseableHttpAsyncClient get() throws IOException {
+        ProxyRouting routing = ProxyRouting.current();
+        if (current == null || current.routing != routing) {
+            Holder previous = current;
+            PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                            .setIoThreadCount(IO_THREADS)
+                            .setConnectTimeout(Timeouts.DEFAULT.getConnectTimeoutMillis())
+                            .setSoTimeout(Timeouts.DEFAULT.getSocketTimeoutMillis())
+                            .build(),
+                            new NamingThreadFactory(new DaemonThreadFactory(), "SharedAsyncHttpClient.io")));
+            CloseableHttpAsyncClient client = build(routing, connectionManager);
+            client.start();
+            current = new Holder(routing, connectionManager, client);
+            if (previous != null) {
+                SharedHttpClient.retire(previous.client);
+            }
+        }
+        current.evictIdleConnections();
+        return current.client;
+    }
+
+    /**
+     * @return Connection pool statistics of the current client, or null if no client was built yet
+     */
+    static synchronized PoolStats poolStats() {
+        return current != null ? current.connectionManager.getTotalStats() : null;
+    }
+
+    static CloseableHttpAsyncClient build(ProxyRouting routing, PoolingNHttpClientConnectionManager connectionManager) {
+        connectionManager.setMaxTotal(MAX_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(Timeouts.DEFAULT.toRequestConfig())
+                .setKeepAliveStrategy(new SharedHttpClient.BoundedKeepAliveStrategy())
+                .disableCookieManagement();
+
+        builder.setRoutePlanner(routing.routePlanner());
+        if (routing.getCredentials() != null) {
+            builder.setDefaultCredentialsProvider(routing.getCredentials())
+                    .setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+        }
+
+        return builder.build();
+    }
+
+    private static class Holder {
+        private final ProxyRouting routing;
+        private final PoolingNHttpClientConnectionManager connectionManager;
+        private final CloseableHttpAsyncClient client;
+        private long lastEviction = System.currentTimeMillis();
+
+        Holder(ProxyRouting routing, PoolingNHttpClientConnectionManager connectionManager,
+               CloseableHttpAsyncClient client) {
+            this.routing = routing;
+            this.connectionManager = connectionManager;
+            this.client = client;
+        }
+
+        /**
+         * The non-blocking client has no eviction thread of its own, so idle connections are closed while it is used.
+         */
+        void evictIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastEviction >= SharedHttpClient.IDLE_EVICTION_MILLIS) {
+                lastEviction = now;
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(SharedHttpClient.IDLE_EVICTION_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
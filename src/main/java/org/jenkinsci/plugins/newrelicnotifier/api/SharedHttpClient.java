@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import jenkins.util.Timer;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plugin wide pooled HTTP client shared by all {@link NerdGraphClient} instances.
+ * <p>
+ * Connections are kept alive and reused between deployment notifications. The client is only rebuilt when the
+ * {@link ProxyRouting} changes, in which case the previous client is closed after a grace period so in-flight
+ * requests can complete.
+ */
+final class SharedHttpClient {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedHttpClient.class.getName());
+
+    private static final String PREFIX = SharedHttpClient.class.getName();
+
+    static final int MAX_TOTAL = Integer.getInteger(PREFIX + ".maxTotal", 20);
+
+    static final int MAX_PER_ROUTE = Integer.getInteger(PREFIX + ".maxPerRoute", 10);
+
+    static final long KEEP_ALIVE_MILLIS = Long.getLong(PREFIX + ".keepAliveMillis", TimeUnit.SECONDS.toMillis(30));
+
+    static final long IDLE_EVICTION_MILLIS = Long.getLong(PREFIX + ".idleEvictionMillis", TimeUnit.SECONDS.toMillis(60));
+
+    private static final long RETIRE_DELAY_MINUTES = 5;
+
+    private static Holder current;
+
+    private SharedHttpClient() {
+    }
+
+    /**
+     * Get the shared client for the given URL. The returned client must not be closed by the caller.
+     *
+     * @param url the URL the client is going to be used for
+     * @return the shared client
+     */
+    static synchronized CloseableHttpClient get(URI url) {
+        ProxyRouting routing = ProxyRouting.current();
+        if (current == null || current.routing != routing) {
+            Holder previous = current;
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            current = new Holder(routing, connectionManager, build(routing, connectionManager));
+            if (previous != null) {
+                retire(previous.client);
+            }
+        }
+        return current.client;
+    }
+
+    /**
+     * @return Connection pool statistics of the current client, or null if no client was built yet
+     */
+    static synchronized PoolStats poolStats() {
+        return current != null ? current.connectionManager.getTotalStats() : null;
+    }
+
+    // visible for benchmarks
+    static CloseableHttpClient build(ProxyRouting routing, PoolingHttpClientConnectionManager connectionManager) {
+        connectionManager.setMaxTotal(MAX_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+        // requests set their own timeouts, these only make sure nothing ever waits indefinitely
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(Timeouts.DEFAULT.getSocketTimeoutMillis())
+                .build());
+
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(Timeouts.DEFAULT.toRequestConfig())
+                .setKeepAliveStrategy(new BoundedKeepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_EVICTION_MILLIS, TimeUnit.MILLISECONDS)
+                .disableCookieManagement();
+
+        builder.setRoutePlanner(routing.routePlanner());
+        if (routing.getCredentials() != null) {
+            builder.setDefaultCredentialsProvider(routing.getCredentials())
+                    .setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+        }
+
+        return builder.build();
+    }
+
+    static void retire(final Closeable client) {
+        Runnable close = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close retired HTTP client", e);
+                }
+            }
+        };
+        try {
+            Timer.get().schedule(close, RETIRE_DELAY_MINUTES, TimeUnit.MINUTES);
+        } catch (RuntimeException e) {
+            // timer not available, e.g. during shutdown
+            close.run();
+        }
+    }
+
+    /**
+     * Honours the server supplied keep-alive but never keeps a connection longer than {@link #KEEP_ALIVE_MILLIS}.
+     */
+    static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, KEEP_ALIVE_MILLIS) : KEEP_ALIVE_MILLIS;
+        }
+    }
+
+    private static class Holder {
+        private final ProxyRouting routing;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient client;
+
+        Holder(ProxyRouting routing, PoolingHttpClientConnectionManager connectionManager, CloseableHttpClient client) {
+            this.routing = routing;
+            this.connectionManager = connectionManager;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeouts of the calls to New Relic.
+ */
+public final class Timeouts implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long DEFAULT_CONNECT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long DEFAULT_SOCKET_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long DEFAULT_CONNECTION_REQUEST_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * 10 seconds to connect or to get a connection from the pool, 30 seconds between packets of a response.
+     */
+    public static final Timeouts DEFAULT = new Timeouts(DEFAULT_CONNECT_MILLIS, DEFAULT_SOCKET_MILLIS,
+            DEFAULT_CONNECTION_REQUEST_MILLIS);
+
+    private final int connectTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final int connectionRequestTimeoutMillis;
+
+    /**
+     * Values not greater than zero are replaced by the {@link #DEFAULT} value, calls never wait indefinitely.
+     *
+     * @param connectTimeoutMillis Time to establish a connection
+     * @param socketTimeoutMillis Maximum time without data while waiting for a response
+     * @param connectionRequestTimeoutMillis Time to wait for a connection from the pool
+     */
+    public Timeouts(long connectTimeoutMillis, long socketTimeoutMillis, long connectionRequestTimeoutMillis) {
+        this.connectTimeoutMillis = positive(connectTimeoutMillis, DEFAULT_CONNECT_MILLIS);
+        this.socketTimeoutMillis = positive(socketTimeoutMillis, DEFAULT_SOCKET_MILLIS);
+        this.connectionRequestTimeoutMillis = positive(connectionRequestTimeoutMillis, DEFAULT_CONNECTION_REQUEST_MILLIS);
+    }
+
+    private static int positive(long value, long fallback) {
+        return (int) Math.min(value > 0 ? value : fallback, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param defaults The timeouts to use where this has none
+     * @param connectTimeoutMillis Overrides the default if greater than zero
+     * @param socketTimeoutMillis Overrides the default if greater than zero
+     * @param connectionRequestTimeoutMillis Overrides the default if greater than zero
+     * @return The combined timeouts
+     */
+    public static Timeouts override(Timeouts defaults, long connectTimeoutMillis, long socketTimeoutMillis,
+                                    long connectionRequestTimeoutMillis) {
+        return new Timeouts(
+                connectTimeoutMillis > 0 ? connectTimeoutMillis : defaults.connectTimeoutMillis,
+                socketTimeoutMillis > 0 ? socketTimeoutMillis : defaults.socketTimeoutMillis,
+                connectionRequestTimeoutMillis > 0 ? connectionRequestTimeoutMillis : defaults.connectionRequestTimeoutMillis);
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public int getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    RequestConfig toRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * @param e The exception of a failed call
+     * @return Which timeout expired, or null if the exception is not a timeout
+     */
+    String describe(IOException e) {
+        if (e instanceof ConnectionPoolTimeoutException) {
+            return "Timed out after " + connectionRequestTimeoutMillis
+                    + " ms waiting for a free connection to New Relic (connection request timeout)";
+        }
+        if (e instanceof ConnectTimeoutException) {
+            return "Timed out after " + connectTimeoutMillis + " ms connecting to New Relic (connect timeout)";
+        }
+        if (e instanceof SocketTimeoutException) {
+            return "New Relic did not respond within " + socketTimeoutMillis + " ms (socket timeout)";
+        }
+        return null;
+    }
+}
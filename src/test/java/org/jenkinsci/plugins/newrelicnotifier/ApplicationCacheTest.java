@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.jenkinsci.plugins.newrelicnotifier.api.Application;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ApplicationCacheTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private NewRelicClient client;
+
+    private List<Application> applications;
+
+    @Before
+    public void setup() throws Exception {
+        client = mock(NewRelicClient.class);
+        applications = Collections.singletonList(new Application("1", "app"));
+        when(client.getApplications("secret")).thenReturn(applications);
+        when(client.getApplications("other")).thenReturn(applications);
+    }
+
+    @Test
+    public void freshEntryIsServedFromCache() throws Exception {
+        ApplicationCache cache = new ApplicationCache(TimeUnit.MINUTES.toMillis(10), 10, DIRECT);
+
+        assertEquals(applications, cache.get("id", "secret", client));
+        assertEquals(applications, cache.get("id", "secret", client));
+
+        verify(client, times(1)).getApplications("secret");
+    }
+
+    @Test
+    public void staleEntryIsServedAndRevalidated() throws Exception {
+        ApplicationCache cache = new ApplicationCache(0, 10, DIRECT);
+
+        cache.get("id", "secret", client);
+        assertEquals(applications, cache.get("id", "secret", client));
+
+        verify(client, times(2)).getApplications("secret");
+    }
+
+    @Test
+    public void changedKeyIsAMiss() throws Exception {
+        ApplicationCache cache = new ApplicationCache(TimeUnit.MINUTES.toMillis(10), 10, DIRECT);
+
+        cache.get("id", "secret", client);
+        cache.get("id", "other", client);
+
+        verify(client, times(1)).getApplications("secret");
+        verify(client, times(1)).getApplications("other");
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws Exception {
+        ApplicationCache cache = new ApplicationCache(TimeUnit.MINUTES.toMillis(10), 1, DIRECT);
+
+        cache.get("first", "secret", client);
+        cache.get("second", "secret", client);
+        cache.get("first", "secret", client);
+
+        verify(client, times(3)).getApplications("secret");
+    }
+}
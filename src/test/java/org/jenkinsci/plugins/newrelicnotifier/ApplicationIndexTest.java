@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.jenkinsci.plugins.newrelicnotifier.api.Application;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicStubServer;
+import org.jenkinsci.plugins.newrelicnotifier.api.RetryPolicy;
+import org.jenkinsci.plugins.newrelicnotifier.api.Timeouts;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ApplicationIndexTest {
+
+    private NewRelicStubServer server;
+
+    private NewRelicClientImpl client;
+
+    private ApplicationIndex index;
+
+    @Before
+    public void setup() throws IOException {
+        server = new NewRelicStubServer(50);
+        client = new NewRelicClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        index = new ApplicationIndex(60000, 10);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void nameIsQueriedOnce() throws IOException {
+        assertEquals("1000007", index.resolve("key", "Application 7", client));
+        assertEquals("1000007", index.resolve("key", "Application 7", client));
+
+        assertEquals(Integer.valueOf(1), server.getResponses().get(200));
+        assertEquals(1, index.getHits());
+        assertEquals(1, index.getMisses());
+    }
+
+    @Test
+    public void namesReturnedByAQueryAreIndexed() throws IOException {
+        index.resolve("key", "Application 1", client);
+        assertEquals("1000012", index.resolve("key", "Application 12", client));
+
+        assertEquals(Integer.valueOf(1), server.getResponses().get(200));
+    }
+
+    @Test
+    public void indexesAreKeptPerApiKey() throws IOException {
+        index.resolve("key", "Application 7", client);
+        index.resolve("other", "Application 7", client);
+
+        assertEquals(Integer.valueOf(2), server.getResponses().get(200));
+    }
+
+    @Test
+    public void patternMustMatchOneApplication() throws IOException {
+        assertEquals("1000049", index.resolve("key", "Application 4*9", client));
+        try {
+            index.resolve("key", "Application 4?", client);
+            fail("ambiguous pattern resolved");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Several New Relic applications match"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownNameFails() throws IOException {
+        index.resolve("key", "Missing", client);
+    }
+
+    @Test
+    public void unknownNameIsRemembered() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                index.resolve("key", "Missing", client);
+                fail("unknown name resolved");
+            } catch (IOException e) {
+                assertEquals("No New Relic application named Missing", e.getMessage());
+            }
+        }
+        assertEquals(Integer.valueOf(1), server.getResponses().get(200));
+    }
+
+    @Test
+    public void duplicateNamesAreAmbiguous() throws IOException {
+        NewRelicClientImpl duplicating = new NewRelicClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl()) {
+            @Override
+            public List<Application> findApplications(String apiKey, String name) throws IOException {
+                List<Application> applications = new ArrayList<>(super.findApplications(apiKey, name));
+                applications.add(new Application("2000007", "Application 7"));
+                return applications;
+            }
+        };
+        try {
+            index.resolve("key", "Application 7", duplicating);
+            fail("duplicate name resolved");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Several New Relic applications named Application 7"));
+        }
+        assertEquals("1000017", index.resolve("key", "Application 17", duplicating));
+    }
+
+    @Test
+    public void concurrentLookupsShareOneQuery() throws Exception {
+        server.setDelayMillis(200);
+        List<Future<String>> lookups = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 4; i++) {
+                lookups.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return index.resolve("key", "Application 7", client);
+                    }
+                }));
+            }
+            for (Future<String> lookup : lookups) {
+                assertEquals("1000007", lookup.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(Integer.valueOf(1), server.getResponses().get(200));
+        assertEquals(1, index.getMisses());
+    }
+
+    @Test
+    public void patternsAreFilteredByTheirLongestLiteral() {
+        assertTrue(ApplicationIndex.isPattern("web-*-prod"));
+        assertFalse(ApplicationIndex.isPattern("web (prod)"));
+        assertEquals("-prod", ApplicationIndex.filter("web-*-prod"));
+        assertTrue(ApplicationIndex.toRegex("web-*-prod").matcher("web-eu-prod").matches());
+        assertFalse(ApplicationIndex.toRegex("web-?.prod").matcher("web-eu.prod").matches());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangelogReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int LIMIT = 40;
+
+    private static final String LONG = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    @Test
+    public void shortChangelogIsKept() throws Exception {
+        for (ChangelogTruncation truncation : ChangelogTruncation.values()) {
+            assertEquals("short", read(truncation, "short"));
+        }
+    }
+
+    @Test
+    public void headKeepsBeginning() throws Exception {
+        String result = read(ChangelogTruncation.HEAD, LONG);
+
+        assertEquals(LIMIT, result.length());
+        assertTrue(result.startsWith("0123456789abcdefghi"));
+        assertTrue(result.endsWith(ChangelogReader.TRUNCATED));
+    }
+
+    @Test
+    public void tailKeepsEnd() throws Exception {
+        String result = read(ChangelogTruncation.TAIL, LONG);
+
+        assertEquals(LIMIT, result.length());
+        assertTrue(result.startsWith(ChangelogReader.TRUNCATED));
+        assertTrue(result.endsWith("JKLMNOPQRSTUVWXYZ"));
+    }
+
+    @Test
+    public void headAndTailKeepsBoth() throws Exception {
+        String result = read(ChangelogTruncation.HEAD_AND_TAIL, LONG);
+
+        assertEquals(LIMIT, result.length());
+        assertTrue(result.startsWith("012345678"));
+        assertTrue(result.contains(ChangelogReader.TRUNCATED));
+        assertTrue(result.endsWith("RSTUVWXYZ"));
+    }
+
+    @Test
+    public void tailOfLongStream() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append(LONG);
+        }
+        String result = read(ChangelogTruncation.TAIL, sb.toString());
+
+        assertEquals(LIMIT, result.length());
+        assertTrue(result.endsWith("JKLMNOPQRSTUVWXYZ"));
+    }
+
+    @Test
+    public void onlyRelativePathsAreLookedUp() {
+        assertTrue(ChangelogReader.isRelativePath("changelog.txt"));
+        assertTrue(ChangelogReader.isRelativePath("target/release-notes.md"));
+        assertFalse(ChangelogReader.isRelativePath("Fixed the login page"));
+        assertFalse(ChangelogReader.isRelativePath("/etc/passwd"));
+        assertFalse(ChangelogReader.isRelativePath("C:\\secrets.txt"));
+        assertFalse(ChangelogReader.isRelativePath("../../secrets.txt"));
+        assertFalse(ChangelogReader.isRelativePath("target/..\\..\\secrets.txt"));
+    }
+
+    @Test
+    public void fileIsReadFromTheWorkspace() throws Exception {
+        File workspace = folder.newFolder("workspace");
+        Files.write(new File(workspace, "changelog.txt").toPath(), "from file".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("from file", new ChangelogReader(ChangelogTruncation.HEAD, LIMIT, "changelog.txt")
+                .invoke(workspace, null));
+        assertNull(new ChangelogReader(ChangelogTruncation.HEAD, LIMIT, "missing.txt").invoke(workspace, null));
+    }
+
+    @Test
+    public void linkOutOfTheWorkspaceIsNotFollowed() throws Exception {
+        File workspace = folder.newFolder("workspace");
+        File secret = folder.newFile("secret.txt");
+        Files.write(secret.toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(new File(workspace, "changelog.txt").toPath(), secret.toPath());
+
+        assertNull(new ChangelogReader(ChangelogTruncation.HEAD, LIMIT, "changelog.txt").invoke(workspace, null));
+    }
+
+    private static String read(ChangelogTruncation truncation, String changelog) throws Exception {
+        return new ChangelogReader(truncation, LIMIT).read(new StringReader(changelog));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.FreeStyleProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CredentialsCacheTest {
+
+    private static final String SOURCE = "https://api.newrelic.com";
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private CredentialsStore store;
+
+    private FreeStyleProject project;
+
+    @Before
+    public void setup() throws Exception {
+        store = CredentialsProvider.lookupStores(jenkinsRule.getInstance()).iterator().next();
+        store.addCredentials(Domain.global(), credentials("first"));
+        project = jenkinsRule.createFreeStyleProject();
+    }
+
+    @Test
+    public void repeatedLookupIsCached() {
+        CredentialsCache cache = new CredentialsCache(60000, 10);
+
+        assertNotNull(cache.lookup(project, "first", SOURCE));
+        assertSame(cache.lookup(project, "first", SOURCE), cache.lookup(project, "first", SOURCE));
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void missingCredentialsAreNotCached() throws Exception {
+        CredentialsCache cache = new CredentialsCache(60000, 10);
+
+        assertNull(cache.lookup(project, "second", SOURCE));
+        store.addCredentials(Domain.global(), credentials("second"));
+
+        assertNotNull(cache.lookup(project, "second", SOURCE));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void resolverLooksUpEachIdOnce() {
+        CredentialsCache cache = new CredentialsCache(0, 10);
+        CredentialsCache.Resolver resolver = cache.forBuild(project, SOURCE);
+
+        resolver.get("first");
+        resolver.get("first");
+        resolver.get("missing");
+        resolver.get("missing");
+
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void savedStoreClearsTheCache() {
+        CredentialsCache cache = CredentialsCache.get();
+        cache.lookup(project, "first", SOURCE);
+        assertEquals(1, cache.size());
+
+        new CredentialsCache.StoreListener().onChange(SystemCredentialsProvider.getInstance(), null);
+
+        assertEquals(0, cache.size());
+    }
+
+    private static UsernamePasswordCredentialsImpl credentials(String id) {
+        return new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, id, "test", "user", "key-" + id);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeploymentHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lastDeploymentsAreFoundByApplicationAndRevision() throws Exception {
+        DeploymentHistory history = new DeploymentHistory(new File(folder.getRoot(), "history.jsonl"));
+        for (int i = 0; i < 1000; i++) {
+            record(history, String.valueOf(i % 10), "1." + i, i);
+        }
+
+        List<DeploymentHistory.Entry> last = history.query("3", null, 0, Long.MAX_VALUE, 2);
+        assertEquals(2, last.size());
+        assertEquals("1.993", last.get(0).getRevision());
+        assertEquals(993, last.get(0).getBuild());
+        assertEquals("job", last.get(0).getJob());
+        assertEquals("1.983", last.get(1).getRevision());
+
+        List<DeploymentHistory.Entry> revision = history.query("3", "1.13", 0, Long.MAX_VALUE, 10);
+        assertEquals(1, revision.size());
+        assertEquals("deployment-13", revision.get(0).getDeploymentId());
+
+        assertTrue(history.query("3", "1.14", 0, Long.MAX_VALUE, 10).isEmpty());
+        assertEquals(5, history.query(null, null, 0, Long.MAX_VALUE, 5).size());
+    }
+
+    @Test
+    public void deploymentsAreFoundByTime() throws Exception {
+        DeploymentHistory history = new DeploymentHistory(new File(folder.getRoot(), "history.jsonl"));
+        record(history, "1", "1.0", 1);
+        Thread.sleep(10);
+        long from = System.currentTimeMillis();
+        record(history, "1", "1.1", 2);
+        long to = System.currentTimeMillis();
+        Thread.sleep(10);
+        record(history, "1", "1.2", 3);
+
+        List<DeploymentHistory.Entry> range = history.query("1", null, from, to, 10);
+        assertEquals(1, range.size());
+        assertEquals("1.1", range.get(0).getRevision());
+    }
+
+    @Test
+    public void indexIsRebuiltOnLoad() throws Exception {
+        File file = new File(folder.getRoot(), "history.jsonl");
+        DeploymentHistory history = new DeploymentHistory(file);
+        for (int i = 0; i < 600; i++) {
+            record(history, "1", "1." + i, i);
+        }
+        // a record only partially written before a crash
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("{\"t\":1,\"a\":\"1".getBytes(StandardCharsets.UTF_8));
+        }
+
+        DeploymentHistory reloaded = new DeploymentHistory(file);
+        reloaded.load();
+        assertEquals(3, reloaded.getBlockCount());
+        record(reloaded, "1", "2.0", 600);
+
+        List<DeploymentHistory.Entry> last = reloaded.query("1", null, 0, Long.MAX_VALUE, 2);
+        assertEquals("2.0", last.get(0).getRevision());
+        assertEquals("1.599", last.get(1).getRevision());
+        assertEquals(601, reloaded.query("1", null, 0, Long.MAX_VALUE, 1000).size());
+    }
+
+    @Test
+    public void oldDeploymentsAreFound() throws Exception {
+        DeploymentHistory history = new DeploymentHistory(new File(folder.getRoot(), "history.jsonl"));
+        for (int i = 0; i < 20 * DeploymentHistory.BLOCK_RECORDS; i++) {
+            record(history, String.valueOf(i % 7), "1." + i, i);
+        }
+
+        assertEquals(20, history.getBlockCount());
+        List<DeploymentHistory.Entry> first = history.query("0", "1.0", 0, Long.MAX_VALUE, 10);
+        assertEquals(1, first.size());
+        assertEquals(0, first.get(0).getBuild());
+        assertEquals(20 * DeploymentHistory.BLOCK_RECORDS, history.query(null, null, 0, Long.MAX_VALUE, 1000000).size());
+    }
+
+    @Test
+    public void oldRecordsAreArchived() throws Exception {
+        File file = new File(folder.getRoot(), "history.jsonl");
+        DeploymentHistory history = new DeploymentHistory(file, 4);
+        for (int i = 0; i < 6 * DeploymentHistory.BLOCK_RECORDS; i++) {
+            record(history, String.valueOf(i % 7), "1." + i, i);
+        }
+
+        // two blocks were archived when the fifth one was full
+        assertEquals(4, history.getBlockCount());
+        File archive = new File(folder.getRoot(), "history.archive.jsonl");
+        assertEquals(2 * DeploymentHistory.BLOCK_RECORDS, Files.readAllLines(archive.toPath(),
+                StandardCharsets.UTF_8).size());
+        assertTrue(history.query("0", "1.0", 0, Long.MAX_VALUE, 10).isEmpty());
+        int last = 6 * DeploymentHistory.BLOCK_RECORDS - 1;
+        assertEquals(last, history.query(String.valueOf(last % 7), null, 0, Long.MAX_VALUE, 1).get(0).getBuild());
+        assertEquals(4 * DeploymentHistory.BLOCK_RECORDS,
+                history.query(null, null, 0, Long.MAX_VALUE, 1000000).size());
+
+        DeploymentHistory reloaded = new DeploymentHistory(file, 4);
+        reloaded.load();
+        assertEquals(4, reloaded.getBlockCount());
+        List<DeploymentHistory.Entry> all = reloaded.query(null, null, 0, Long.MAX_VALUE, 1000000);
+        assertEquals(4 * DeploymentHistory.BLOCK_RECORDS, all.size());
+        // the oldest record left in the history
+        assertEquals(2 * DeploymentHistory.BLOCK_RECORDS, all.get(all.size() - 1).getBuild());
+    }
+
+    @Test
+    public void coalescedDeploymentIsRecordedOnce() throws Exception {
+        DeploymentHistory history = new DeploymentHistory(new File(folder.getRoot(), "history.jsonl"));
+        Deployment deployment = new Deployment("42", "1");
+        history.record("job", 1, "1", "1.0", "user", deployment);
+        history.record("other", 7, "1", "1.0", "user", deployment);
+        history.record("job", 2, "1", "1.0", "user", null);
+        history.record("job", 3, "1", "1.0", "user", null);
+
+        List<DeploymentHistory.Entry> all = history.query("1", null, 0, Long.MAX_VALUE, 10);
+        assertEquals(3, all.size());
+        assertEquals("job", all.get(2).getJob());
+        assertEquals(1, all.get(2).getBuild());
+    }
+
+    @Test
+    public void queriesDoNotWaitForRecording() throws Exception {
+        final DeploymentHistory history = new DeploymentHistory(new File(folder.getRoot(), "history.jsonl"));
+        record(history, "1", "1.0", 1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // hold the writer lock as a build recording a deployment would
+            synchronized (history) {
+                Future<List<DeploymentHistory.Entry>> last = executor.submit(
+                        new Callable<List<DeploymentHistory.Entry>>() {
+                            @Override
+                            public List<DeploymentHistory.Entry> call() {
+                                return history.query("1", null, 0, Long.MAX_VALUE, 10);
+                            }
+                        });
+                assertEquals("1.0", last.get(10, TimeUnit.SECONDS).get(0).getRevision());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void record(DeploymentHistory history, String applicationId, String revision, int build) {
+        history.record("job", build, applicationId, revision, "user",
+                new Deployment("deployment-" + build, applicationId));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeploymentOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pendingNotificationsSurviveReload() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.jsonl");
+        DeploymentOutbox outbox = new DeploymentOutbox(file);
+        QueuedNotification first = notification("1");
+        QueuedNotification second = notification("2");
+        outbox.add(first);
+        outbox.add(second);
+        outbox.remove(first.getId());
+
+        DeploymentOutbox reloaded = new DeploymentOutbox(file);
+        reloaded.load();
+
+        List<QueuedNotification> pending = reloaded.peek(10);
+        assertEquals(1, pending.size());
+        assertEquals(second.getId(), pending.get(0).getId());
+        assertEquals("changelog", pending.get(0).getChangelog());
+    }
+
+    @Test
+    public void attemptsSurviveReload() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.jsonl");
+        DeploymentOutbox outbox = new DeploymentOutbox(file);
+        QueuedNotification n = notification("1");
+        outbox.add(n);
+        assertEquals(1, outbox.failed(n.getId()));
+        assertEquals(2, outbox.failed(n.getId()));
+
+        DeploymentOutbox reloaded = new DeploymentOutbox(file);
+        reloaded.load();
+
+        assertEquals(2, reloaded.peek(1).get(0).getAttempts());
+        assertEquals(3, reloaded.failed(n.getId()));
+    }
+
+    @Test
+    public void journalIsCompacted() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.jsonl");
+        DeploymentOutbox outbox = new DeploymentOutbox(file);
+        for (int i = 0; i < 100; i++) {
+            QueuedNotification n = notification(String.valueOf(i));
+            outbox.add(n);
+            outbox.remove(n.getId());
+        }
+        outbox.add(notification("last"));
+
+        assertEquals(1, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+
+        DeploymentOutbox reloaded = new DeploymentOutbox(file);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+    }
+
+    private static QueuedNotification notification(String applicationId) {
+        return new QueuedNotification("job", 1, "credentials", applicationId, "description", "revision",
+                "changelog", "user");
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
+import org.jenkinsci.plugins.newrelicnotifier.api.ClientMetrics;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClientImpl;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicStubServer;
+import org.jenkinsci.plugins.newrelicnotifier.api.RetryPolicy;
+import org.jenkinsci.plugins.newrelicnotifier.api.Timeouts;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+/**
+ * Runs many concurrent builds notifying an in-process stand-in for New Relic and reports throughput, latency,
+ * thread count and heap usage. Skipped unless the number of builds is given:
+ * <pre>
+ * mvn -P load test
+ * mvn test -Dtest=NewRelicDeploymentNotifierLoadTest -Dload.builds=500 -Dload.executors=100
+ * </pre>
+ */
+public class NewRelicDeploymentNotifierLoadTest {
+
+    private static final int BUILDS = Integer.getInteger("load.builds", 0);
+    private static final int PROJECTS = Integer.getInteger("load.projects", 20);
+    private static final int EXECUTORS = Integer.getInteger("load.executors", 50);
+    private static final int APPLICATIONS = Integer.getInteger("load.applications", 3);
+    private static final long MIN_LATENCY = Long.getLong("load.minLatency", 20);
+    private static final long MAX_LATENCY = Long.getLong("load.maxLatency", 200);
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("load.errorRate", "0.02"));
+
+    private static final String CREDENTIALS_ID = "load";
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private NewRelicStubServer server;
+
+    @Before
+    public void setup() throws Exception {
+        assumeTrue(BUILDS > 0);
+        server = new NewRelicStubServer(APPLICATIONS);
+        server.setLatency(MIN_LATENCY, MAX_LATENCY);
+        server.setErrorRate(ERROR_RATE, 429);
+
+        CredentialsProvider.lookupStores(jenkinsRule.getInstance()).iterator().next().addCredentials(Domain.global(),
+                new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, CREDENTIALS_ID, "load", "load", "key"));
+        jenkinsRule.getInstance().setNumExecutors(EXECUTORS);
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void concurrentBuilds() throws Exception {
+        NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl(new RetryPolicy(3, 50, 1000,
+                Arrays.asList(429), TimeUnit.SECONDS.toMillis(30)), Timeouts.DEFAULT,
+                server.getUrl());
+        List<FreeStyleProject> projects = new ArrayList<>();
+        for (int i = 0; i < Math.min(PROJECTS, BUILDS); i++) {
+            FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+            p.setConcurrentBuild(true);
+            p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("INDEX", "")));
+            List<DeploymentNotificationBean> notifications = new ArrayList<>();
+            for (int app = 0; app < APPLICATIONS; app++) {
+                notifications.add(new DeploymentNotificationBean(CREDENTIALS_ID, Integer.toString(app),
+                        "Load test build ${INDEX}", "${BUILD_TAG}", "Changes of build ${INDEX}", "jenkins"));
+            }
+            NewRelicDeploymentNotifier notifier = spy(new NewRelicDeploymentNotifier(notifications));
+            doReturn(client).when(notifier).getClient();
+            p.getPublishersList().add(notifier);
+            projects.add(p);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int threadsBefore = threads.getThreadCount();
+        long start = System.nanoTime();
+
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<>();
+        for (int i = 0; i < BUILDS; i++) {
+            futures.add(projects.get(i % projects.size()).scheduleBuild2(0, new Cause.UserIdCause(),
+                    new ParametersAction(new StringParameterValue("INDEX", Integer.toString(i)))));
+        }
+        long[] durations = new long[BUILDS];
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleBuild build = jenkinsRule.assertBuildStatusSuccess(futures.get(i));
+            durations[i] = build.getDuration();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(durations);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        ClientMetrics.Operation deployments = ClientMetrics.get().getDeployments();
+
+        System.out.println("Load test: " + BUILDS + " builds of " + projects.size() + " projects on " + EXECUTORS
+                + " executors, " + APPLICATIONS + " applications each");
+        System.out.println(String.format("  throughput        %.1f builds/s, %.1f notifications/s", BUILDS / seconds,
+                BUILDS * APPLICATIONS / seconds));
+        System.out.println(String.format("  build duration    p50 %d ms, p95 %d ms, p99 %d ms, max %d ms",
+                percentile(durations, 0.5), percentile(durations, 0.95), percentile(durations, 0.99),
+                durations[durations.length - 1]));
+        System.out.println(String.format("  notification      p50 %.0f ms, p95 %.0f ms, p99 %.0f ms, max %.0f ms",
+                deployments.getP50Millis(), deployments.getP95Millis(), deployments.getP99Millis(),
+                deployments.getMaxMillis()));
+        System.out.println(String.format("  threads           %d before, %d peak", threadsBefore,
+                threads.getPeakThreadCount()));
+        System.out.println(String.format("  heap after gc     %d MB",
+                memory.getHeapMemoryUsage().getUsed() / (1024 * 1024)));
+        System.out.println("  responses         " + server.getResponses());
+
+        assertEquals(Integer.valueOf(BUILDS * APPLICATIONS), server.getResponses().get(201));
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.Result;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicAsyncClientImpl;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicStubServer;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NewRelicDeploymentStepTest {
+
+    private static final String CREDENTIALS_ID = "newrelic";
+
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    private NewRelicStubServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new NewRelicStubServer(3);
+        NewRelicDeploymentStep.Execution.apiUrl = server.getUrl();
+    }
+
+    @After
+    public void stopServer() {
+        NewRelicDeploymentStep.Execution.apiUrl = NewRelicAsyncClientImpl.API_URL;
+        server.close();
+    }
+
+    @Test
+    public void returnsTheDeployments() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob p = pipeline(story.j, "p", "def r = newRelicDeployment concurrency: 1, notifications: ["
+                        + notification("1000000") + ", " + notification("1000001") + "]\n"
+                        + "echo \"deploymentId=${r.deploymentId}\"\n"
+                        + "echo \"results=${r.results.size()} first=${r.results[0].success}/"
+                        + "${r.results[0].deploymentId} second=${r.results[1].applicationId}\"");
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("deploymentId=1", b);
+                story.j.assertLogContains("results=2 first=true/1 second=1000001", b);
+                assertEquals(2, server.getDeployments());
+            }
+        });
+    }
+
+    @Test
+    public void failOnError() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                server.setDeploymentStatus(500);
+                WorkflowJob failing = pipeline(story.j, "failing", "newRelicDeployment notifications: ["
+                        + notification("1000000") + "]");
+                WorkflowRun b = failing.scheduleBuild2(0).get();
+                story.j.assertBuildStatus(Result.FAILURE, b);
+                story.j.assertLogContains("Failed to notify New Relic for 1 of 1 application(s)", b);
+
+                WorkflowJob lenient = pipeline(story.j, "lenient", "def r = newRelicDeployment failOnError: false, "
+                        + "notifications: [" + notification("1000000") + "]\n"
+                        + "echo \"success=${r.results[0].success} deploymentId=${r.deploymentId}\"");
+                b = story.j.assertBuildStatusSuccess(lenient.scheduleBuild2(0));
+                story.j.assertLogContains("success=false deploymentId=null", b);
+            }
+        });
+    }
+
+    @Test
+    public void parallelBranches() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob p = pipeline(story.j, "p", "parallel a: {\n"
+                        + "  echo \"a=${newRelicDeployment(notifications: [" + notification("1000000")
+                        + "]).deploymentId}\"\n"
+                        + "}, b: {\n"
+                        + "  echo \"b=${newRelicDeployment(notifications: [" + notification("1000001")
+                        + "]).deploymentId}\"\n"
+                        + "}");
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogNotContains("=null", b);
+                assertEquals(2, server.getDeployments());
+            }
+        });
+    }
+
+    @Test
+    public void stoppingCancelsTheNotifications() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                server.setDelayMillis(60000);
+                WorkflowJob p = pipeline(story.j, "p", "newRelicDeployment notifications: ["
+                        + notification("1000002") + "]");
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                awaitFlight();
+
+                b.doStop();
+                story.j.waitForCompletion(b);
+                story.j.assertBuildStatus(Result.ABORTED, b);
+                // the request in flight was aborted, so its flight landed
+                assertEquals(0, SingleFlight.size());
+            }
+        });
+    }
+
+    @Test
+    public void restartFailsTheStep() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                server.setDelayMillis(60000);
+                WorkflowJob p = pipeline(story.j, "p", "newRelicDeployment notifications: ["
+                        + notification("1000001") + "]");
+                p.scheduleBuild2(0).waitForStart();
+                awaitFlight();
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.getItemByFullName("p", WorkflowJob.class);
+                WorkflowRun b = p.getBuildByNumber(1);
+                story.j.waitForCompletion(b);
+                story.j.assertBuildStatus(Result.FAILURE, b);
+                story.j.assertLogContains("Jenkins was restarted while notifying New Relic", b);
+            }
+        });
+    }
+
+    private static WorkflowJob pipeline(JenkinsRule j, String name, String script) throws IOException {
+        if (CredentialsProvider.lookupCredentials(UsernamePasswordCredentialsImpl.class, j.jenkins).isEmpty()) {
+            CredentialsProvider.lookupStores(j.jenkins).iterator().next().addCredentials(Domain.global(),
+                    new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, CREDENTIALS_ID, "test", "user",
+                            "api-key"));
+        }
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, name);
+        p.setDefinition(new CpsFlowDefinition(script, true));
+        return p;
+    }
+
+    private static String notification(String applicationId) {
+        return "[apiKey: '" + CREDENTIALS_ID + "', applicationId: '" + applicationId
+                + "', description: 'desc', revision: '1.0', changelog: 'log', user: 'jenkins']";
+    }
+
+    /**
+     * Wait until the notification is on its way to New Relic.
+     */
+    private static void awaitFlight() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (SingleFlight.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(SingleFlight.size() > 0);
+    }
+}
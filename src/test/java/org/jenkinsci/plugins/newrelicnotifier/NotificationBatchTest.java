@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.model.TaskListener;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentRequest;
+import org.jenkinsci.plugins.newrelicnotifier.api.NerdGraphClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicStubServer;
+import org.jenkinsci.plugins.newrelicnotifier.api.RetryPolicy;
+import org.jenkinsci.plugins.newrelicnotifier.api.Timeouts;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationBatchTest {
+
+    private NewRelicStubServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void sendsTheBatchOnceThroughTheDispatcher() throws Exception {
+        server = new NewRelicStubServer(3);
+        NotificationBatch batch = new NotificationBatch(new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT,
+                server.getUrl()), "NRAK-once", TaskListener.NULL);
+        server.rejectDeployments("1000002");
+        List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+        tasks.add(batch.add(new DeploymentRequest("1000000", "desc", "1.0", "log", "jenkins")));
+        tasks.add(batch.add(new DeploymentRequest("1000001", "desc", "1.0", "log", "jenkins")));
+        // identical to the first one
+        tasks.add(batch.add(new DeploymentRequest("1000000", "desc", "1.0", "log", "jenkins")));
+        tasks.add(batch.add(new DeploymentRequest("1000002", "desc", "1.0", "log", "jenkins")));
+
+        List<NotificationDispatcher.Outcome> outcomes = NotificationDispatcher.dispatch(tasks, 1, 10000);
+        assertEquals(4, outcomes.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(outcomes.get(i).isSuccess());
+            assertNotNull(outcomes.get(i).getDeployment());
+        }
+        assertEquals(outcomes.get(0).getDeployment().getId(), outcomes.get(2).getDeployment().getId());
+        assertFalse(outcomes.get(3).isSuccess());
+        assertNotNull(outcomes.get(3).getCause());
+        assertEquals(2, server.getDeployments());
+        // one search and one mutation
+        assertEquals(2, server.getGraphQLRequests());
+        assertEquals(0, SingleFlight.size());
+    }
+
+    @Test
+    public void expiredDeadlineTimesOutTheBatch() throws Exception {
+        server = new NewRelicStubServer(2);
+        server.setDelayMillis(2000);
+        NotificationBatch batch = new NotificationBatch(new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT,
+                server.getUrl()), "NRAK-deadline", TaskListener.NULL);
+        List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+        tasks.add(batch.add(new DeploymentRequest("1000000", "desc", "1.0", "log", "jenkins")));
+        tasks.add(batch.add(new DeploymentRequest("1000001", "desc", "1.0", "log", "jenkins")));
+
+        List<NotificationDispatcher.Outcome> outcomes = NotificationDispatcher.dispatch(tasks, 2, 200);
+        assertTrue(outcomes.get(0).isTimedOut());
+        assertTrue(outcomes.get(1).isTimedOut());
+        assertEquals(0, SingleFlight.size());
+    }
+
+    @Test
+    public void cancellingDuringSendAbortsTheBatch() throws Exception {
+        server = new NewRelicStubServer(2);
+        server.setDelayMillis(2000);
+        NotificationBatch batch = new NotificationBatch(new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT,
+                server.getUrl()), "NRAK-cancel", TaskListener.NULL);
+        NotificationDispatcher.Task first = batch.add(
+                new DeploymentRequest("1000000", "desc", "1.0", "log", "jenkins"));
+        NotificationDispatcher.Task second = batch.add(
+                new DeploymentRequest("1000001", "desc", "1.0", "log", "jenkins"));
+
+        long start = System.currentTimeMillis();
+        Future<Deployment> sending = first.start(null);
+        // the batch is on its way, New Relic is not waited for
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(2, SingleFlight.size());
+
+        assertTrue(sending.cancel(true));
+        assertTrue(second.start(null).isCancelled());
+        assertEquals(0, SingleFlight.size());
+        Thread.sleep(3000);
+        assertEquals(0, server.getDeployments());
+    }
+
+    @Test
+    public void coalescedRestFlightIsShared() throws Exception {
+        server = new NewRelicStubServer(2);
+        NotificationBatch batch = new NotificationBatch(new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT,
+                server.getUrl()), "NRAK-rest", TaskListener.NULL);
+        // the same notification sent through the REST API by another build
+        RecordingTask rest = new RecordingTask();
+        SingleFlight.Seat other = SingleFlight.join(SingleFlight.key("NRAK-rest", "1000000", "1.0", "desc"), rest,
+                null);
+        List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+        tasks.add(batch.add(new DeploymentRequest("1000000", "desc", "1.0", "log", "jenkins")));
+        tasks.add(batch.add(new DeploymentRequest("1000001", "desc", "1.0", "log", "jenkins")));
+
+        NotificationDispatcher.Batch dispatch = NotificationDispatcher.start(tasks, 2, 10000, null);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getDeployments() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(dispatch.isDone());
+        rest.calls.get(0).completed(new Deployment("rest-1", "1000000"));
+
+        List<NotificationDispatcher.Outcome> outcomes = dispatch.get(10, TimeUnit.SECONDS);
+        assertEquals("rest-1", outcomes.get(0).getDeployment().getId());
+        assertEquals("rest-1", other.get().getId());
+        assertTrue(outcomes.get(1).isSuccess());
+        assertEquals(1, server.getDeployments());
+        assertEquals(1, rest.calls.size());
+        assertEquals(0, SingleFlight.size());
+    }
+
+    @Test
+    public void abortedRestFlightIsSentByTheBatch() throws Exception {
+        server = new NewRelicStubServer(2);
+        NotificationBatch batch = new NotificationBatch(new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT,
+                server.getUrl()), "NRAK-aborted", TaskListener.NULL);
+        RecordingTask rest = new RecordingTask();
+        SingleFlight.join(SingleFlight.key("NRAK-aborted", "1000000", "1.0", "desc"), rest, null);
+        List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+        tasks.add(batch.add(new DeploymentRequest("1000000", "desc", "1.0", "log", "jenkins")));
+        tasks.add(batch.add(new DeploymentRequest("1000001", "desc", "1.0", "log", "jenkins")));
+
+        NotificationDispatcher.Batch dispatch = NotificationDispatcher.start(tasks, 2, 10000, null);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getDeployments() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // the build sending it through the REST API was aborted
+        rest.calls.get(0).failed(new InterruptedIOException());
+
+        List<NotificationDispatcher.Outcome> outcomes = dispatch.get(10, TimeUnit.SECONDS);
+        assertTrue(outcomes.get(0).isSuccess());
+        assertTrue(outcomes.get(1).isSuccess());
+        assertEquals(2, server.getDeployments());
+        // the batch and then the aborted notification on its own, each with a search and a mutation
+        assertEquals(4, server.getGraphQLRequests());
+        assertEquals(0, SingleFlight.size());
+    }
+
+    /**
+     * Records the calls it starts, so the test decides when and how they complete.
+     */
+    private static final class RecordingTask implements NotificationDispatcher.Task {
+        private final List<BasicFuture<Deployment>> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Future<Deployment> start(FutureCallback<Deployment> callback) {
+            BasicFuture<Deployment> call = new BasicFuture<>(callback);
+            calls.add(call);
+            return call;
+        }
+    }
+}
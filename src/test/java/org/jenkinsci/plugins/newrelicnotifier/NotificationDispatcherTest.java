@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentRejectedException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationDispatcherTest {
+
+    /**
+     * Records the calls it starts, so the test decides when and how they complete.
+     */
+    private static final class RecordingTask implements NotificationDispatcher.Task {
+        private final List<BasicFuture<Deployment>> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Future<Deployment> start(FutureCallback<Deployment> callback) {
+            BasicFuture<Deployment> call = new BasicFuture<>(callback);
+            calls.add(call);
+            return call;
+        }
+    }
+
+    @Test
+    public void concurrencyIsCapped() throws Exception {
+        List<RecordingTask> tasks = tasks(5);
+        NotificationDispatcher.Batch batch = NotificationDispatcher.start(tasks, 2, 10000, null);
+        awaitStarted(tasks, 2);
+        Thread.sleep(100);
+        assertEquals(2, started(tasks));
+
+        tasks.get(0).calls.get(0).completed(new Deployment("0", "1000000"));
+        awaitStarted(tasks, 3);
+        Thread.sleep(100);
+        assertEquals(1, tasks.get(2).calls.size());
+
+        for (int i = 1; i < tasks.size(); i++) {
+            tasks.get(i).calls.get(0).completed(new Deployment(String.valueOf(i), "1000000"));
+            awaitStarted(tasks, Math.min(i + 3, tasks.size()));
+        }
+        assertEquals(5, batch.get(10, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void outcomesAreInTaskOrder() throws Exception {
+        List<RecordingTask> tasks = tasks(3);
+        NotificationDispatcher.Batch batch = NotificationDispatcher.start(tasks, 3, 10000, null);
+        awaitStarted(tasks, 3);
+        tasks.get(2).calls.get(0).completed(new Deployment("2", "1000000"));
+        tasks.get(1).calls.get(0).failed(new DeploymentRejectedException(422, "HTTP/1.1 422 Unprocessable Entity"));
+        tasks.get(0).calls.get(0).failed(new IOException("unavailable"));
+
+        List<NotificationDispatcher.Outcome> outcomes = batch.get(10, TimeUnit.SECONDS);
+        assertFalse(outcomes.get(0).isSuccess());
+        assertEquals("unavailable", outcomes.get(0).getCause().getMessage());
+        assertNull(outcomes.get(0).getRejection());
+        assertFalse(outcomes.get(1).isSuccess());
+        assertNull(outcomes.get(1).getCause());
+        assertEquals(422, outcomes.get(1).getRejection().getStatusCode());
+        assertEquals("2", outcomes.get(2).getDeployment().getId());
+    }
+
+    @Test
+    public void failureToPrepareIsAnOutcome() throws Exception {
+        List<NotificationDispatcher.Task> tasks = new ArrayList<>();
+        tasks.add(new NotificationDispatcher.Task() {
+            @Override
+            public Future<Deployment> start(FutureCallback<Deployment> callback) throws Exception {
+                throw new IOException("no changelog");
+            }
+        });
+        List<NotificationDispatcher.Outcome> outcomes = NotificationDispatcher.dispatch(tasks, 1, 10000);
+        assertEquals("no changelog", outcomes.get(0).getCause().getMessage());
+    }
+
+    @Test
+    public void expiredDeadlineCancelsPendingTasks() throws Exception {
+        List<RecordingTask> tasks = tasks(3);
+        long expired = NotificationDispatcher.getExpired();
+        List<NotificationDispatcher.Outcome> outcomes = NotificationDispatcher.dispatch(tasks, 2, 200);
+        for (NotificationDispatcher.Outcome outcome : outcomes) {
+            assertTrue(outcome.isTimedOut());
+        }
+        assertEquals(expired + 3, NotificationDispatcher.getExpired());
+        assertTrue(tasks.get(0).calls.get(0).isCancelled());
+        assertTrue(tasks.get(1).calls.get(0).isCancelled());
+        // never started, as the others did not complete in time
+        assertTrue(tasks.get(2).calls.isEmpty());
+    }
+
+    @Test
+    public void cancellingTheBatchCancelsStartedTasks() throws Exception {
+        List<RecordingTask> tasks = tasks(3);
+        NotificationDispatcher.Batch batch = NotificationDispatcher.start(tasks, 2, 10000, null);
+        awaitStarted(tasks, 2);
+
+        assertTrue(batch.cancel(true));
+        assertTrue(tasks.get(0).calls.get(0).isCancelled());
+        assertTrue(tasks.get(1).calls.get(0).isCancelled());
+        Thread.sleep(100);
+        assertTrue(tasks.get(2).calls.isEmpty());
+    }
+
+    @Test
+    public void fullQueueRejectsTasks() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            // occupy every notification thread and fill the queue
+            occupy(release);
+            // again once the tasks of earlier tests ran, they may have freed a place in the queue
+            Thread.sleep(200);
+            occupy(release);
+            List<RecordingTask> tasks = tasks(2);
+            List<NotificationDispatcher.Outcome> outcomes = NotificationDispatcher.start(tasks, 2, 10000, null)
+                    .get(10, TimeUnit.SECONDS);
+            for (NotificationDispatcher.Outcome outcome : outcomes) {
+                assertFalse(outcome.isSuccess());
+                assertFalse(outcome.isTimedOut());
+                assertNotNull(outcome.getCause());
+                assertTrue(outcome.getCause() instanceof RejectedExecutionException);
+            }
+            assertTrue(tasks.get(0).calls.isEmpty());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static void occupy(final CountDownLatch release) {
+        for (;;) {
+            try {
+                NotificationDispatcher.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private static List<RecordingTask> tasks(int count) {
+        List<RecordingTask> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tasks.add(new RecordingTask());
+        }
+        return tasks;
+    }
+
+    private static int started(List<RecordingTask> tasks) {
+        int started = 0;
+        for (RecordingTask task : tasks) {
+            started += task.calls.size();
+        }
+        return started;
+    }
+
+    private static void awaitStarted(List<RecordingTask> tasks, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (started(tasks) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, started(tasks));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScmChangelogTest {
+
+    @Test
+    public void formatReplacesTokens() {
+        assertEquals("abc123 Fix bug (Jane) 100%",
+                ScmChangelog.format("%r %m (%a) 100%%", "abc123", " Fix bug\n", "Jane", -1));
+        assertEquals(" - Fix bug", ScmChangelog.format("%r - %m%d", null, "Fix bug", null, -1));
+        assertEquals("%x", ScmChangelog.format("%x", "abc123", "Fix bug", "Jane", -1));
+    }
+
+    @Test
+    public void entriesAreJoinedByLines() throws Exception {
+        List<ChangeLogSet.Entry> entries = new ArrayList<>();
+        entries.add(entry("a1", "First"));
+        entries.add(entry("b2", "Second"));
+
+        String changelog = new ChangelogReader(ChangelogTruncation.HEAD, 1000)
+                .read(new ScmChangelog.EntryReader(entries.iterator(), "%r %m"));
+
+        assertEquals("a1 First\nb2 Second", changelog);
+    }
+
+    @Test
+    public void readingStopsAtTheLimit() throws Exception {
+        final int[] formatted = {0};
+        Iterator<ChangeLogSet.Entry> entries = new Iterator<ChangeLogSet.Entry>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public ChangeLogSet.Entry next() {
+                formatted[0]++;
+                return entry("0123456789", "A change that is long enough to fill the buffer quickly");
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        String changelog = new ChangelogReader(ChangelogTruncation.HEAD, 1000)
+                .read(new ScmChangelog.EntryReader(entries, null));
+
+        assertEquals(1000, changelog.length());
+        assertTrue(changelog.endsWith(ChangelogReader.TRUNCATED));
+        assertTrue("formatted " + formatted[0] + " entries", formatted[0] < 200);
+    }
+
+    private static ChangeLogSet.Entry entry(final String commitId, final String message) {
+        return new ChangeLogSet.Entry() {
+            @Override
+            public String getCommitId() {
+                return commitId;
+            }
+
+            @Override
+            public String getMsg() {
+                return message;
+            }
+
+            @Override
+            public User getAuthor() {
+                return null;
+            }
+
+            @Override
+            public Collection<String> getAffectedPaths() {
+                return Collections.emptyList();
+            }
+        };
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    /**
+     * Records the calls it starts, so the test decides when and how they complete.
+     */
+    private static final class RecordingTask implements NotificationDispatcher.Task {
+        private final List<BasicFuture<Deployment>> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Future<Deployment> start(FutureCallback<Deployment> callback) {
+            BasicFuture<Deployment> call = new BasicFuture<>(callback);
+            calls.add(call);
+            return call;
+        }
+    }
+
+    @Test
+    public void concurrentDuplicatesShareOneCall() throws Exception {
+        RecordingTask task = new RecordingTask();
+        String key = SingleFlight.key("apiKey", "1234", "1.0", "description");
+        SingleFlight.Seat leader = SingleFlight.join(key, task, null);
+        SingleFlight.Seat follower = SingleFlight.join(key, task, null);
+        assertFalse(leader.isCoalesced());
+        assertTrue(follower.isCoalesced());
+        assertEquals(1, task.calls.size());
+        assertFalse(follower.isDone());
+
+        task.calls.get(0).completed(new Deployment("42", "1234"));
+        assertEquals("42", leader.get(10, TimeUnit.SECONDS).getId());
+        assertEquals("42", follower.get(10, TimeUnit.SECONDS).getId());
+
+        SingleFlight.Seat next = SingleFlight.join(key, task, null);
+        assertFalse(next.isCoalesced());
+        assertEquals(2, task.calls.size());
+        task.calls.get(1).completed(new Deployment("43", "1234"));
+        assertEquals("43", next.get(10, TimeUnit.SECONDS).getId());
+    }
+
+    @Test
+    public void failureIsSharedWithDuplicates() throws Exception {
+        RecordingTask task = new RecordingTask();
+        String key = SingleFlight.key("apiKey", "1234", "2.0", "description");
+        SingleFlight.Seat leader = SingleFlight.join(key, task, null);
+        SingleFlight.Seat follower = SingleFlight.join(key, task, null);
+        task.calls.get(0).failed(new IOException("unavailable"));
+        try {
+            leader.get(10, TimeUnit.SECONDS);
+            fail("expected the failure of the call");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        try {
+            follower.get(10, TimeUnit.SECONDS);
+            fail("expected the failure of the call to be shared");
+        } catch (ExecutionException expected) {
+            assertEquals("unavailable", expected.getCause().getMessage());
+        }
+        assertEquals(1, task.calls.size());
+    }
+
+    @Test
+    public void cancelledLeaderHandsOverToDuplicates() throws Exception {
+        RecordingTask task = new RecordingTask();
+        String key = SingleFlight.key("apiKey", "1234", "3.0", "description");
+        SingleFlight.Seat leader = SingleFlight.join(key, task, null);
+        SingleFlight.Seat follower = SingleFlight.join(key, task, null);
+        // the build of the leader was aborted
+        leader.cancel(true);
+        assertTrue(task.calls.get(0).isCancelled());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (task.calls.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, task.calls.size());
+        assertFalse(follower.isDone());
+        task.calls.get(1).completed(new Deployment("44", "1234"));
+        assertEquals("44", follower.get(10, TimeUnit.SECONDS).getId());
+    }
+
+    @Test
+    public void keyDependsOnRevisionAndDescription() {
+        String key = SingleFlight.key("apiKey", "1234", "1.0", "description");
+        assertEquals(key, SingleFlight.key("apiKey", "1234", "1.0", "description"));
+        assertFalse(key.equals(SingleFlight.key("apiKey", "1234", "1.1", "description")));
+        assertFalse(key.equals(SingleFlight.key("apiKey", "1234", "1.0", "other description")));
+        assertFalse(key.equals(SingleFlight.key("otherKey", "1234", "1.0", "description")));
+    }
+}
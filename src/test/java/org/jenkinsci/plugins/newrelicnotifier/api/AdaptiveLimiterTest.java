@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(5);
+
+    @Test
+    public void limitGrowsAdditivelyWhileHealthy() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("key", 2, 1, 10);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(limiter.acquire(0));
+            limiter.release(FAST, false);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void limitIsHalvedWhenThrottled() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("key", 8, 1, 10);
+        assertTrue(limiter.acquire(0));
+        limiter.release(FAST, true);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void limitIsCutWhenLatencyRises() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("key", 8, 1, 10);
+        assertTrue(limiter.acquire(0));
+        limiter.release(FAST, false);
+        assertTrue(limiter.acquire(0));
+        limiter.release(SLOW, false);
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void limitNeverDropsBelowMinimum() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("key", 2, 1, 10);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire(0));
+            limiter.release(FAST, true);
+        }
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void acquireTimesOutWhenSaturated() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("key", 1, 1, 10);
+        assertTrue(limiter.acquire(0));
+        assertFalse(limiter.acquire(10));
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getQueueDepth());
+        limiter.release();
+        assertTrue(limiter.acquire(0));
+    }
+
+    @Test
+    public void callbacksWaitInLine() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("key", 1, 1, 10);
+        final AtomicInteger admitted = new AtomicInteger();
+        Runnable onSlot = new Runnable() {
+            @Override
+            public void run() {
+                admitted.incrementAndGet();
+            }
+        };
+        assertTrue(limiter.acquire(onSlot));
+        assertFalse(limiter.acquire(onSlot));
+        assertFalse(limiter.acquire(new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("cancelled callback must not run");
+            }
+        }));
+        assertEquals(1, admitted.get());
+        assertEquals(2, limiter.getQueueDepth());
+
+        limiter.release();
+        assertEquals(2, admitted.get());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(1, limiter.getQueueDepth());
+
+        assertFalse(limiter.acquire(0));
+        assertEquals(1, limiter.getQueueDepth());
+    }
+
+    @Test
+    public void cancelledCallbackDoesNotRun() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("key", 1, 1, 10);
+        assertTrue(limiter.acquire(0));
+        Runnable onSlot = new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("cancelled callback must not run");
+            }
+        };
+        assertFalse(limiter.acquire(onSlot));
+        assertTrue(limiter.cancel(onSlot));
+        assertFalse(limiter.cancel(onSlot));
+        limiter.release();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueueDepth());
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ApplicationListReaderTest {
+
+    @Test
+    public void readsIdAndNameOnly() throws Exception {
+        String json = "{\"applications\":[" +
+                "{\"id\":123,\"name\":\"first\",\"settings\":{\"app_apdex_threshold\":0.5},\"links\":{\"servers\":[1,2]}}," +
+                "{\"name\":\"second\",\"id\":456,\"health_status\":null}" +
+                "],\"links\":{\"application.servers\":\"/v2/servers?ids={server_ids}\"}}";
+        List<Application> applications = new ArrayList<>();
+
+        ApplicationListReader.read(new StringReader(json), applications);
+
+        assertEquals(2, applications.size());
+        assertEquals("123", applications.get(0).getId());
+        assertEquals("first", applications.get(0).getName());
+        assertEquals("456", applications.get(1).getId());
+        assertEquals("second", applications.get(1).getName());
+    }
+
+    @Test
+    public void followsNextLink() throws Exception {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader("Link", "<https://api.newrelic.com/v2/applications.json?page=2>; rel=\"next\", " +
+                "<https://api.newrelic.com/v2/applications.json?page=5>; rel=\"last\"");
+
+        URI next = ApplicationListReader.nextLink(response, new URI("https://api.newrelic.com/v2/applications.json"));
+
+        assertEquals(new URI("https://api.newrelic.com/v2/applications.json?page=2"), next);
+    }
+
+    @Test
+    public void lastPageHasNoNextLink() throws Exception {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader("Link", "<https://api.newrelic.com/v2/applications.json?page=1>; rel=\"first\"");
+
+        assertNull(ApplicationListReader.nextLink(response, new URI("https://api.newrelic.com/v2/applications.json")));
+    }
+}
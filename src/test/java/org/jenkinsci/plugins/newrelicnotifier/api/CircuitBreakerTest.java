@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    @After
+    public void restoreDefaults() {
+        CircuitBreaker.configure(20, 10, 50, TimeUnit.SECONDS.toMillis(30));
+    }
+
+    @Test
+    public void staysClosedBelowMinimumCalls() throws Exception {
+        CircuitBreaker.configure(10, 4, 50, TimeUnit.MINUTES.toMillis(1));
+        CircuitBreaker breaker = new CircuitBreaker("key", "endpoint");
+        for (int i = 0; i < 3; i++) {
+            breaker.acquirePermission();
+            breaker.record(false);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensWhenFailureRateIsReached() throws Exception {
+        CircuitBreaker.configure(10, 4, 50, TimeUnit.MINUTES.toMillis(1));
+        CircuitBreaker breaker = new CircuitBreaker("key", "endpoint");
+        record(breaker, true, true, false, false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.acquirePermission();
+            fail("expected the open breaker to reject the call");
+        } catch (CircuitOpenException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void oldOutcomesLeaveTheWindow() throws Exception {
+        CircuitBreaker.configure(4, 4, 75, TimeUnit.MINUTES.toMillis(1));
+        CircuitBreaker breaker = new CircuitBreaker("key", "endpoint");
+        record(breaker, false, false, true, true, true, true, false);
+        assertEquals(4, breaker.getCalls());
+        assertEquals(1, breaker.getFailures());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void successfulProbeClosesTheBreaker() throws Exception {
+        CircuitBreaker.configure(2, 2, 50, 0);
+        CircuitBreaker breaker = new CircuitBreaker("key", "endpoint");
+        record(breaker, false, false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.acquirePermission();
+        try {
+            breaker.acquirePermission();
+            fail("expected a single probe while half-open");
+        } catch (CircuitOpenException expected) {
+            // expected
+        }
+        breaker.record(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getCalls());
+    }
+
+    @Test
+    public void failedProbeReopensTheBreaker() throws Exception {
+        CircuitBreaker.configure(2, 2, 50, 0);
+        CircuitBreaker breaker = new CircuitBreaker("key", "endpoint");
+        record(breaker, false, false);
+        breaker.acquirePermission();
+        CircuitBreaker.configure(2, 2, 50, TimeUnit.MINUTES.toMillis(1));
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private static void record(CircuitBreaker breaker, boolean... outcomes) throws CircuitOpenException {
+        for (boolean success : outcomes) {
+            breaker.acquirePermission();
+            breaker.record(success);
+        }
+    }
+}
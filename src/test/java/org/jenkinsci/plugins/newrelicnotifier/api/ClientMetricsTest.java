@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClientMetricsTest {
+
+    @Test
+    public void percentilesOfRecentCalls() {
+        ClientMetrics.Operation operation = new ClientMetrics.Operation();
+        for (int i = 1; i <= 100; i++) {
+            operation.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(i), i % 10 != 0);
+        }
+        assertEquals(100, operation.getCalls());
+        assertEquals(10, operation.getFailures());
+        assertEquals(50, operation.getP50Millis(), 1);
+        assertEquals(95, operation.getP95Millis(), 1);
+        assertEquals(99, operation.getP99Millis(), 1);
+        assertEquals(100, operation.getMaxMillis(), 1);
+    }
+
+    @Test
+    public void onlyRecentCallsCountForPercentiles() {
+        ClientMetrics.Operation operation = new ClientMetrics.Operation();
+        for (int i = 0; i < ClientMetrics.Operation.SAMPLES; i++) {
+            operation.record(System.nanoTime() - TimeUnit.SECONDS.toNanos(10), true);
+        }
+        for (int i = 0; i < ClientMetrics.Operation.SAMPLES; i++) {
+            operation.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(10), true);
+        }
+        assertEquals(10, operation.getMaxMillis(), 1);
+    }
+
+    @Test
+    public void emptyOperationHasNoLatency() {
+        assertEquals(0, new ClientMetrics.Operation().getP99Millis(), 0);
+    }
+
+    @Test
+    public void responsesAreCountedByStatus() {
+        ClientMetrics metrics = new ClientMetrics();
+        metrics.recordStatus(201);
+        metrics.recordStatus(201);
+        metrics.recordStatus(429);
+        metrics.recordStatus(503);
+        metrics.recordStatus(-1);
+        assertEquals(2, (long) metrics.getStatusCounts().get(201));
+        assertEquals(1, metrics.getStatusCount(400, 499));
+        assertEquals(1, metrics.getStatusCount(500, 599));
+        assertEquals(1, metrics.getConnectionErrors());
+    }
+}
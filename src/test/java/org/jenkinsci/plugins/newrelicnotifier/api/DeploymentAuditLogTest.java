@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeploymentAuditLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DeploymentAuditLog.Entry entry(String applicationId, String revision, boolean recorded) {
+        DeploymentAuditLog.Entry entry = DeploymentAuditLog.Entry.start("rest", "https://api.newrelic.com",
+                "secret", applicationId, revision, "description", "changelog", "user");
+        entry.setBytes(120, -1);
+        entry.attempted(recorded ? 201 : 422);
+        entry.finish(recorded ? new Deployment("42", applicationId) : null);
+        return entry;
+    }
+
+    @Test
+    public void entriesAreQueriedNewestFirst() throws Exception {
+        DeploymentAuditLog log = new DeploymentAuditLog(folder.getRoot(), 1024 * 1024, TimeUnit.DAYS.toMillis(1), 5);
+        log.write(entry("1", "1.0", true));
+        log.write(entry("2", "1.0", false));
+        log.write(entry("1", "1.1", true));
+        log.flush();
+
+        List<DeploymentAuditLog.Entry> all = log.query(null, null, null, 10);
+        assertEquals(3, all.size());
+        assertEquals("1.1", all.get(0).getRevision());
+        assertEquals("changelog", all.get(0).getChangelog());
+        assertEquals("42", all.get(0).getDeploymentId());
+
+        assertEquals(2, log.query("1", null, null, 10).size());
+        assertEquals(1, log.query(null, "1.1", null, 10).size());
+        assertEquals(1, log.query(null, null, true, 10).size());
+        assertEquals("2", log.query(null, null, true, 10).get(0).getApplicationId());
+        assertEquals(1, log.query(null, null, null, 1).size());
+    }
+
+    @Test
+    public void filesAreRotatedBySize() throws Exception {
+        DeploymentAuditLog log = new DeploymentAuditLog(folder.getRoot(), 100, TimeUnit.DAYS.toMillis(1), 2);
+        for (int i = 0; i < 5; i++) {
+            log.write(entry("1", "1." + i, true));
+            log.flush();
+        }
+
+        // the current file and the two newest rotated ones
+        assertEquals(3, folder.getRoot().list().length);
+        List<DeploymentAuditLog.Entry> entries = log.query(null, null, null, 10);
+        assertEquals(3, entries.size());
+        assertEquals("1.4", entries.get(0).getRevision());
+        assertEquals("1.2", entries.get(2).getRevision());
+    }
+
+    @Test
+    public void filesAreRotatedByTime() throws Exception {
+        DeploymentAuditLog log = new DeploymentAuditLog(folder.getRoot(), 1024 * 1024, TimeUnit.DAYS.toMillis(1), 5);
+        log.write(entry("1", "1.0", true));
+        log.flush();
+        File current = new File(folder.getRoot(), DeploymentAuditLog.CURRENT);
+        assertTrue(current.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+
+        log.write(entry("1", "1.1", true));
+        log.flush();
+
+        assertEquals(2, folder.getRoot().list().length);
+        assertEquals(2, log.query(null, null, null, 10).size());
+    }
+
+    @Test
+    public void longEntriesAreReadBackwards() throws Exception {
+        DeploymentAuditLog log = new DeploymentAuditLog(folder.getRoot(), 1024 * 1024, TimeUnit.DAYS.toMillis(1), 5);
+        // longer than the chunks the files are read in
+        StringBuilder changelog = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            changelog.append("Fixed \u00e9 ").append(i).append('\n');
+        }
+        for (int i = 0; i < 3; i++) {
+            DeploymentAuditLog.Entry entry = DeploymentAuditLog.Entry.start("rest", "https://api.newrelic.com",
+                    "secret", String.valueOf(i % 2), "1." + i, "description", changelog.toString(), "user");
+            entry.finish(new Deployment(String.valueOf(i), "1"));
+            log.write(entry);
+        }
+        log.flush();
+
+        List<DeploymentAuditLog.Entry> last = log.query(null, null, null, 2);
+        assertEquals(2, last.size());
+        assertEquals("1.2", last.get(0).getRevision());
+        assertEquals("1.1", last.get(1).getRevision());
+        assertEquals(changelog.toString(), last.get(1).getChangelog());
+        List<DeploymentAuditLog.Entry> first = log.query("0", null, null, 10);
+        assertEquals(2, first.size());
+        assertEquals("1.0", first.get(1).getRevision());
+        assertEquals(changelog.toString(), first.get(1).getChangelog());
+    }
+
+    @Test
+    public void changesAfterQueueingAreNotWritten() throws Exception {
+        DeploymentAuditLog log = new DeploymentAuditLog(folder.getRoot(), 1024 * 1024, TimeUnit.DAYS.toMillis(1), 5);
+        DeploymentAuditLog.Entry entry = entry("1", "1.0", true);
+        log.write(entry);
+        entry.setError("late");
+        log.flush();
+
+        assertFalse(log.query(null, null, null, 10).get(0).isFailed());
+    }
+
+    @Test
+    public void summaryLeavesOutThePayload() {
+        DeploymentAuditLog.Entry entry = entry("1", "1.0", false);
+
+        String summary = entry.summary();
+        assertTrue(summary.contains("application 1"));
+        assertTrue(summary.contains("revision 1.0"));
+        assertTrue(summary.contains("120 bytes"));
+        assertTrue(summary.contains("status 422"));
+        assertFalse(summary.contains("changelog"));
+        assertTrue(entry.isFailed());
+        assertNull(entry.getDeploymentId());
+    }
+
+    @Test
+    public void entriesAreDiscardedWithoutDirectory() throws Exception {
+        DeploymentAuditLog log = new DeploymentAuditLog(null, 100, 1000, 1);
+        log.write(entry("1", "1.0", true));
+        log.flush();
+
+        assertTrue(log.query(null, null, null, 10).isEmpty());
+    }
+}
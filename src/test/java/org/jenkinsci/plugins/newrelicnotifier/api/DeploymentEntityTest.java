@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeploymentEntityTest {
+
+    @Test
+    public void backslashesAndNewlinesSurvive() throws IOException {
+        String changelog = "Fixed C:\\dir\\file\nAdded \"quotes\"\tand \u00e9";
+        DeploymentEntity entity = new DeploymentEntity(
+                new DeploymentPayload("1.0", changelog, "Deployed by Jenkins", "jenkins"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        JsonObject deployment = new JsonParser().parse(out.toString("UTF-8")).getAsJsonObject()
+                .getAsJsonObject("deployment");
+        assertEquals("1.0", deployment.get("revision").getAsString());
+        assertEquals(changelog, deployment.get("changelog").getAsString());
+        assertEquals("jenkins", deployment.get("user").getAsString());
+    }
+
+    @Test
+    public void repeatedWritesSendTheSameBytes() throws IOException {
+        DeploymentEntity entity = new DeploymentEntity(new DeploymentPayload("1.0", "log", "desc", "jenkins"));
+        assertTrue(entity.isRepeatable());
+        long length = entity.getContentLength();
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        entity.writeTo(first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        entity.writeTo(second);
+
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+        assertEquals(first.size(), length);
+    }
+
+    @Test
+    public void contentIsSerializedWhileItIsRead() throws IOException {
+        // escapes, multi-byte and surrogate pair characters across several buffers
+        StringBuilder changelog = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            changelog.append("\u00e9\"\\\u0001\u2028\ud83d\ude00 ").append(i).append('\n');
+        }
+        DeploymentEntity entity = new DeploymentEntity(
+                new DeploymentPayload("1.0", changelog.toString(), "desc", null));
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeTo(written);
+        byte[] read = readAll(entity.getContent());
+
+        assertArrayEquals(written.toByteArray(), read);
+        assertEquals(read.length, entity.getContentLength());
+        JsonObject deployment = new JsonParser().parse(new String(read, "UTF-8")).getAsJsonObject()
+                .getAsJsonObject("deployment");
+        assertEquals(changelog.toString(), deployment.get("changelog").getAsString());
+        assertTrue(deployment.get("user").isJsonNull());
+    }
+
+    @Test
+    public void gzipBodyIsCompressedOnce() throws IOException {
+        StringBuilder changelog = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            changelog.append("Fixed issue ").append(i).append('\n');
+        }
+        DeploymentPayload payload = new DeploymentPayload("1.0", changelog.toString(), "desc", "jenkins");
+        DeploymentEntity entity = new DeploymentEntity(payload, true);
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        entity.writeTo(first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        entity.writeTo(second);
+
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+        assertTrue(payload.getCompressedLength() < payload.getContentLength());
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        payload.writeTo(plain);
+        assertArrayEquals(plain.toByteArray(), readAll(new GZIPInputStream(entity.getContent())));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
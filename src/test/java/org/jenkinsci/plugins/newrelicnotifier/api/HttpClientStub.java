@@ -23,30 +23,45 @@
  */
 package org.jenkinsci.plugins.newrelicnotifier.api;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 
-public class HttpClientStub extends CloseableHttpClient {
+public class HttpClientStub extends CloseableHttpAsyncClient {
 
     @Override
-    protected CloseableHttpResponse doExecute(org.apache.http.HttpHost target, org.apache.http.HttpRequest request, org.apache.http.protocol.HttpContext context) throws IOException, org.apache.http.client.ClientProtocolException {
-        return new HttpResponseStub(request);
+    public Future<HttpResponse> execute(HttpUriRequest request, FutureCallback<HttpResponse> callback) {
+        BasicFuture<HttpResponse> future = new BasicFuture<>(callback);
+        future.completed(new HttpResponseStub(request));
+        return future;
     }
 
     @Override
-    public void close() throws IOException {
+    public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer, HttpAsyncResponseConsumer<T> responseConsumer,
+                                 HttpContext context, FutureCallback<T> callback) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void start() {
 
     }
 
     @Override
-    public org.apache.http.params.HttpParams getParams() {
-        return null;
+    public boolean isRunning() {
+        return true;
     }
 
     @Override
-    public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
-        return null;
+    public void close() throws IOException {
+
     }
 }
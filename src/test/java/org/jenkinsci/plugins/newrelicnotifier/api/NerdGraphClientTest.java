@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NerdGraphClientTest {
+
+    private static final RetryPolicy RETRY = new RetryPolicy(3, 10, 100, Arrays.asList(429, 503), 10000);
+
+    private NewRelicStubServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void sendsDeploymentsInChunks() throws IOException {
+        server = new NewRelicStubServer(30);
+        NerdGraphClient client = new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        client.setChunkLimits(10, 1024 * 1024);
+        List<NerdGraphClient.Outcome> outcomes = client.createDeployments("chunks", deployments(0, 25),
+                TaskListener.NULL);
+        assertEquals(25, outcomes.size());
+        for (int i = 0; i < outcomes.size(); i++) {
+            assertTrue(outcomes.get(i).isSuccess());
+            assertEquals(Integer.toString(1000000 + i), outcomes.get(i).getApplicationId());
+            assertNotNull(outcomes.get(i).getDeployment().getId());
+        }
+        assertEquals(25, server.getDeployments());
+        assertEquals(10, server.getLargestMutation());
+        // three searches and three mutations
+        assertEquals(6, server.getGraphQLRequests());
+    }
+
+    @Test
+    public void splitsLargeRequests() throws IOException {
+        server = new NewRelicStubServer(4);
+        NerdGraphClient client = new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        client.setChunkLimits(25, 2048);
+        List<DeploymentRequest> deployments = new ArrayList<>();
+        char[] changelog = new char[1500];
+        Arrays.fill(changelog, 'x');
+        for (int i = 0; i < 4; i++) {
+            deployments.add(new DeploymentRequest(Integer.toString(1000000 + i), "desc", "1.0",
+                    new String(changelog), "jenkins"));
+        }
+        for (NerdGraphClient.Outcome outcome : client.createDeployments("large", deployments, TaskListener.NULL)) {
+            assertTrue(outcome.isSuccess());
+        }
+        assertEquals(1, server.getLargestMutation());
+    }
+
+    @Test
+    public void mapsFailuresToTheirApplications() throws IOException {
+        server = new NewRelicStubServer(3);
+        server.rejectDeployments("1000001");
+        NerdGraphClient client = new NerdGraphClient(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        List<DeploymentRequest> deployments = deployments(0, 3);
+        deployments.add(new DeploymentRequest("1000099", "desc", "1.0", "log", "jenkins"));
+        deployments.add(new DeploymentRequest("MyApp", "desc", "1.0", "log", "jenkins"));
+        List<NerdGraphClient.Outcome> outcomes = client.createDeployments("failures", deployments, TaskListener.NULL);
+        assertTrue(outcomes.get(0).isSuccess());
+        assertFalse(outcomes.get(1).isSuccess());
+        assertEquals("stub rejected GUID-1000001", outcomes.get(1).getError());
+        assertTrue(outcomes.get(2).isSuccess());
+        assertFalse(outcomes.get(3).isSuccess());
+        assertFalse(outcomes.get(4).isSuccess());
+        assertEquals(2, server.getDeployments());
+    }
+
+    @Test
+    public void cachesEntityGuids() throws IOException {
+        server = new NewRelicStubServer(2);
+        NerdGraphClient client = new NerdGraphClient(RETRY, Timeouts.DEFAULT, server.getUrl());
+        client.createDeployments("guids", deployments(0, 2), TaskListener.NULL);
+        assertEquals(2, server.getGraphQLRequests());
+        server.throttle(1, 0);
+        for (NerdGraphClient.Outcome outcome : client.createDeployments("guids", deployments(0, 2), TaskListener.NULL)) {
+            assertTrue(outcome.isSuccess());
+        }
+        // one throttled and one accepted mutation, no search
+        assertEquals(4, server.getGraphQLRequests());
+    }
+
+    @Test
+    public void mutationsAreNotRetriedOnServerErrors() throws IOException {
+        server = new NewRelicStubServer(2);
+        NerdGraphClient client = new NerdGraphClient(RETRY, Timeouts.DEFAULT, server.getUrl());
+        client.createDeployments("server-errors", deployments(0, 2), TaskListener.NULL);
+        server.failGraphQL(1, 503);
+        for (NerdGraphClient.Outcome outcome : client.createDeployments("server-errors", deployments(0, 2),
+                TaskListener.NULL)) {
+            assertFalse(outcome.isSuccess());
+        }
+        // a search and a mutation, then the failed mutation only
+        assertEquals(3, server.getGraphQLRequests());
+        assertEquals(2, server.getDeployments());
+    }
+
+    @Test
+    public void searchesAreRetriedOnServerErrors() throws IOException {
+        server = new NewRelicStubServer(2);
+        server.failGraphQL(1, 502);
+        NerdGraphClient client = new NerdGraphClient(RETRY, Timeouts.DEFAULT, server.getUrl());
+        for (NerdGraphClient.Outcome outcome : client.createDeployments("search-errors", deployments(0, 2),
+                TaskListener.NULL)) {
+            assertTrue(outcome.isSuccess());
+        }
+        // the failed search, its retry and the mutation
+        assertEquals(3, server.getGraphQLRequests());
+    }
+
+    private static List<DeploymentRequest> deployments(int from, int to) {
+        List<DeploymentRequest> deployments = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            deployments.add(new DeploymentRequest(Integer.toString(1000000 + i), "desc", "1.0", "log", "jenkins"));
+        }
+        return deployments;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.model.TaskListener;
+import org.apache.http.concurrent.FutureCallback;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NewRelicAsyncClientImplTest {
+
+    private static final RetryPolicy RETRY = new RetryPolicy(3, 10, 100, Arrays.asList(429, 503), 10000);
+
+    private NewRelicStubServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void followsApplicationPages() throws Exception {
+        server = new NewRelicStubServer(450, 100);
+        NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        assertEquals(450, client.getApplications("key", null).get(10, TimeUnit.SECONDS).size());
+        assertEquals(Integer.valueOf(5), server.getResponses().get(200));
+    }
+
+    @Test
+    public void manyDeploymentsAreOutstandingOnFewThreads() throws Exception {
+        server = new NewRelicStubServer(1);
+        server.setLatency(20, 50);
+        NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        int deployments = 200;
+        final CountDownLatch done = new CountDownLatch(deployments);
+        final AtomicInteger created = new AtomicInteger();
+        List<Future<Deployment>> futures = new ArrayList<>();
+        for (int i = 0; i < deployments; i++) {
+            futures.add(client.createDeployment("key", "1", "desc", "1." + i, "log", "jenkins", TaskListener.NULL,
+                    new FutureCallback<Deployment>() {
+                        @Override
+                        public void completed(Deployment deployment) {
+                            if (deployment != null) {
+                                created.incrementAndGet();
+                            }
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            done.countDown();
+                        }
+                    }));
+        }
+        // nothing above waited for New Relic
+        assertFalse(futures.get(deployments - 1).isDone());
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(deployments, created.get());
+        assertEquals(deployments, server.getDeployments());
+
+        int ioThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("SharedAsyncHttpClient.io")) {
+                ioThreads++;
+            }
+        }
+        assertTrue("I/O threads: " + ioThreads, ioThreads <= SharedAsyncHttpClient.IO_THREADS);
+    }
+
+    @Test
+    public void retriesThrottledDeployments() throws Exception {
+        server = new NewRelicStubServer(1);
+        server.throttle(2, 0);
+        NewRelicClient client = new NewRelicClientImpl(
+                new NewRelicAsyncClientImpl(RETRY, Timeouts.DEFAULT, server.getUrl()));
+        assertNotNull(client.createDeployment("key", "1", "desc", "1.0", "log", "jenkins", TaskListener.NULL));
+        assertEquals(Integer.valueOf(2), server.getResponses().get(429));
+        assertEquals(Integer.valueOf(1), server.getResponses().get(201));
+    }
+
+    @Test
+    public void failedDeploymentReturnsNull() throws IOException {
+        server = new NewRelicStubServer(1);
+        server.setErrorRate(1, 500);
+        NewRelicClient client = new NewRelicClientImpl(
+                new NewRelicAsyncClientImpl(RETRY, Timeouts.DEFAULT, server.getUrl()));
+        assertNull(client.createDeployment("key", "1", "desc", "1.0", "log", "jenkins", TaskListener.NULL));
+        assertEquals(Integer.valueOf(1), server.getResponses().get(500));
+    }
+
+    @Test
+    public void rejectedDeploymentFailsWithTheStatus() throws Exception {
+        server = new NewRelicStubServer(1);
+        server.setDeploymentStatus(422);
+        NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl(RETRY, Timeouts.DEFAULT, server.getUrl());
+        Future<Deployment> future = client.createDeployment("key", "1", "desc", "1.0", "log", "jenkins",
+                TaskListener.NULL, null);
+        try {
+            future.get();
+            fail("rejected deployment succeeded");
+        } catch (ExecutionException e) {
+            DeploymentRejectedException rejection = (DeploymentRejectedException) e.getCause();
+            assertEquals(422, rejection.getStatusCode());
+            assertTrue(rejection.isPermanent());
+        }
+        assertFalse(new DeploymentRejectedException(429, "HTTP/1.1 429 Too Many Requests").isPermanent());
+    }
+
+    @Test
+    public void invalidDeploymentFailsTheFuture() throws Exception {
+        NewRelicAsyncClientImpl client = new NewRelicAsyncClientImpl();
+        Future<Deployment> future = client.createDeployment("key", "1", "desc", null, "log", "jenkins",
+                TaskListener.NULL, null);
+        try {
+            future.get();
+            fail("invalid revision accepted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InvalidParameterException);
+        }
+    }
+
+    @Test
+    public void retriesDoNotWaitPastTheBudget() {
+        long now = System.currentTimeMillis();
+        assertTrue(NewRelicAsyncClientImpl.limiterWait(2, now + 5000) <= 5000);
+        assertEquals(NewRelicAsyncClientImpl.LIMITER_WAIT_MILLIS,
+                NewRelicAsyncClientImpl.limiterWait(2, now + 10 * NewRelicAsyncClientImpl.LIMITER_WAIT_MILLIS));
+        assertTrue(NewRelicAsyncClientImpl.limiterWait(2, now - 1) <= 0);
+        // a policy without budget still makes its only attempt
+        assertEquals(NewRelicAsyncClientImpl.LIMITER_WAIT_MILLIS, NewRelicAsyncClientImpl.limiterWait(1, now));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class NewRelicClientImplTest {
+
+    private static final RetryPolicy RETRY = new RetryPolicy(3, 10, 100, Arrays.asList(429, 503), 10000);
+
+    private NewRelicStubServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void followsApplicationPages() throws IOException {
+        server = new NewRelicStubServer(450, 100);
+        NewRelicClientImpl client = new NewRelicClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        assertEquals(450, client.getApplications("key").size());
+        assertEquals(Integer.valueOf(5), server.getResponses().get(200));
+    }
+
+    @Test
+    public void readsSlowlyDrippedBodies() throws IOException {
+        server = new NewRelicStubServer(3);
+        server.setDripMillis(2);
+        NewRelicClientImpl client = new NewRelicClientImpl(RetryPolicy.NONE, Timeouts.DEFAULT, server.getUrl());
+        assertEquals(3, client.getApplications("key").size());
+        assertNotNull(client.createDeployment("key", "1", "desc", "1.0", "log", "jenkins", TaskListener.NULL));
+    }
+
+    @Test
+    public void retriesThrottledDeployments() throws IOException {
+        server = new NewRelicStubServer(1);
+        server.throttle(2, 0);
+        NewRelicClientImpl client = new NewRelicClientImpl(RETRY, Timeouts.DEFAULT, server.getUrl());
+        Deployment deployment = client.createDeployment("key", "1", "desc", "1.0", "log", "jenkins", TaskListener.NULL);
+        assertNotNull(deployment);
+        assertEquals(Integer.valueOf(2), server.getResponses().get(429));
+        assertEquals(Integer.valueOf(1), server.getResponses().get(201));
+    }
+
+    @Test
+    public void failedDeploymentReturnsNull() throws IOException {
+        server = new NewRelicStubServer(1);
+        server.setErrorRate(1, 500);
+        NewRelicClientImpl client = new NewRelicClientImpl(RETRY, Timeouts.DEFAULT, server.getUrl());
+        assertNull(client.createDeployment("key", "1", "desc", "1.0", "log", "jenkins", TaskListener.NULL));
+        assertEquals(Integer.valueOf(1), server.getResponses().get(500));
+    }
+}
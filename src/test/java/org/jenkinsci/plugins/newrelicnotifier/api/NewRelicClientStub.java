@@ -23,20 +23,18 @@
  */
 package org.jenkinsci.plugins.newrelicnotifier.api;
 
-import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 
-import java.net.URI;
+public class NewRelicClientStub extends NewRelicAsyncClientImpl {
 
-public class NewRelicClientStub extends NewRelicClientImpl {
-
-    private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient httpClient;
 
     @Override
-    protected CloseableHttpClient getHttpClient(URI url) {
+    protected CloseableHttpAsyncClient getHttpClient() {
         return httpClient;
     }
 
-    public void setHttpClient(CloseableHttpClient httpClient) {
+    public void setHttpClient(CloseableHttpAsyncClient httpClient) {
         this.httpClient = httpClient;
     }
 }
@@ -0,0 +1,517 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the New Relic REST API, listening on a random local port.
+ * <p>
+ * Serves a paged application list and accepts deployments, also as aliased GraphQL mutations. Point a client at it
+ * with {@code new NewRelicClientImpl(retryPolicy, timeouts, server.getUrl())}. Latency, random errors, bursts of
+ * {@code 429 Too Many Requests} and slowly dripped response bodies can be configured to simulate a struggling API.
+ */
+public class NewRelicStubServer implements AutoCloseable {
+
+    public static final int PAGE_SIZE = 200;
+
+    private static final int DRIP_BYTES = 64;
+
+    private static final byte[] ERROR = "{\"error\":{\"title\":\"stub error\"}}".getBytes(StandardCharsets.UTF_8);
+
+    private static final Pattern PAGE = Pattern.compile("(?:^|&)page=(\\d+)");
+
+    private static final Pattern SEARCH_ID = Pattern.compile("'(\\d+)'");
+
+    private static final Pattern NAME_FILTER = Pattern.compile("(?:^|&)filter%5Bname%5D=([^&]*)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final List<byte[]> pages = new ArrayList<>();
+
+    private final int applications;
+
+    private final AtomicInteger deployments = new AtomicInteger();
+
+    private final AtomicLong deploymentBytes = new AtomicLong();
+
+    private final ConcurrentMap<Integer, AtomicInteger> responses = new ConcurrentHashMap<>();
+
+    private final AtomicInteger throttled = new AtomicInteger();
+
+    private final AtomicInteger graphQLRequests = new AtomicInteger();
+
+    private final AtomicInteger failedGraphQLRequests = new AtomicInteger();
+
+    private final AtomicInteger largestMutation = new AtomicInteger();
+
+    private final Set<String> rejected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile int deploymentStatus = 201;
+
+    private volatile long minDelayMillis;
+
+    private volatile long maxDelayMillis;
+
+    private volatile double errorRate;
+
+    private volatile int errorStatus = 503;
+
+    private volatile int retryAfterSeconds;
+
+    private volatile int graphQLErrorStatus;
+
+    private volatile long dripMillis;
+
+    /**
+     * @param applications Number of applications in the application list
+     * @throws IOException if the server cannot be started
+     */
+    public NewRelicStubServer(int applications) throws IOException {
+        this(applications, PAGE_SIZE);
+    }
+
+    /**
+     * @param applications Number of applications in the application list
+     * @param pageSize Number of applications per page of the application list
+     * @throws IOException if the server cannot be started
+     */
+    public NewRelicStubServer(int applications, int pageSize) throws IOException {
+        this.applications = applications;
+        for (int first = 0; first < applications || first == 0; first += pageSize) {
+            pages.add(applicationPage(first, Math.min(first + pageSize, applications)));
+        }
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/v2/applications.json", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                applications(exchange);
+            }
+        });
+        server.createContext("/v2/applications/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                deployment(exchange);
+            }
+        });
+        server.createContext("/graphql", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                graphQL(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return Base URL of the server
+     */
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return Number of deployments received
+     */
+    public int getDeployments() {
+        return deployments.get();
+    }
+
+    /**
+     * @return Total size of the deployment requests received, as sent over the wire
+     */
+    public long getDeploymentBytes() {
+        return deploymentBytes.get();
+    }
+
+    /**
+     * @return Number of responses sent per HTTP status
+     */
+    public Map<Integer, Integer> getResponses() {
+        Map<Integer, Integer> result = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicInteger> entry : responses.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * @param status HTTP status returned for deployments
+     */
+    public void setDeploymentStatus(int status) {
+        this.deploymentStatus = status;
+    }
+
+    /**
+     * @param delayMillis Time to wait before responding, to simulate a slow API
+     */
+    public void setDelayMillis(long delayMillis) {
+        setLatency(delayMillis, delayMillis);
+    }
+
+    /**
+     * @param minMillis Shortest time to wait before responding
+     * @param maxMillis Longest time to wait before responding, each response waits a random time in between
+     */
+    public void setLatency(long minMillis, long maxMillis) {
+        this.minDelayMillis = minMillis;
+        this.maxDelayMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * @param rate Fraction of deployments failing, between 0 and 1
+     * @param status HTTP status returned for the failed deployments
+     */
+    public void setErrorRate(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+    }
+
+    /**
+     * @return Number of GraphQL requests received, searches and mutations
+     */
+    public int getGraphQLRequests() {
+        return graphQLRequests.get();
+    }
+
+    /**
+     * @return Most mutations received in one GraphQL request
+     */
+    public int getLargestMutation() {
+        return largestMutation.get();
+    }
+
+    /**
+     * Reject the GraphQL deployments of an application with an error for its alias.
+     *
+     * @param applicationId ID of the application
+     */
+    public void rejectDeployments(String applicationId) {
+        rejected.add(applicationId);
+    }
+
+    /**
+     * Reject the next deployments with {@code 429 Too Many Requests}.
+     *
+     * @param requests Number of deployments rejected
+     * @param retryAfterSeconds Value of the {@code Retry-After} header, 0 to leave it out
+     */
+    public void throttle(int requests, int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        throttled.set(requests);
+    }
+
+    /**
+     * Fail the next GraphQL requests, searches or mutations, before handling them.
+     *
+     * @param requests Number of requests failed
+     * @param status HTTP status returned for the failed requests
+     */
+    public void failGraphQL(int requests, int status) {
+        this.graphQLErrorStatus = status;
+        failedGraphQLRequests.set(requests);
+    }
+
+    /**
+     * @param dripMillis Pause between each few bytes of a response body, 0 to send bodies at once
+     */
+    public void setDripMillis(long dripMillis) {
+        this.dripMillis = dripMillis;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void applications(HttpExchange exchange) throws IOException {
+        delay();
+        String query = exchange.getRequestURI().getRawQuery();
+        Matcher filter = NAME_FILTER.matcher(query != null ? query : "");
+        if (filter.find()) {
+            respond(exchange, 200, filteredPage(URLDecoder.decode(filter.group(1), "UTF-8")));
+            return;
+        }
+        Matcher matcher = PAGE.matcher(query != null ? query : "");
+        int page = matcher.find() ? Integer.parseInt(matcher.group(1)) : 1;
+        if (page < 1 || page > pages.size()) {
+            respond(exchange, 404, new byte[0]);
+            return;
+        }
+        if (page < pages.size()) {
+            exchange.getResponseHeaders().add("Link", "<" + getUrl() + "/v2/applications.json?page=" + (page + 1)
+                    + ">; rel=\"next\"");
+        }
+        respond(exchange, 200, pages.get(page - 1));
+    }
+
+    private void deployment(HttpExchange exchange) throws IOException {
+        delay();
+        long size = drain(exchange.getRequestBody());
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, new byte[0]);
+            return;
+        }
+        deploymentBytes.addAndGet(size);
+        int id = deployments.incrementAndGet();
+        if (takeThrottled()) {
+            if (retryAfterSeconds > 0) {
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+            }
+            respond(exchange, 429, "{\"error\":{\"title\":\"rate limited\"}}".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            respond(exchange, errorStatus, ERROR);
+            return;
+        }
+        int status = deploymentStatus;
+        byte[] body = status == 201
+                ? ("{\"deployment\":{\"id\":" + id + ",\"revision\":\"stub\"}}").getBytes(StandardCharsets.UTF_8)
+                : ERROR;
+        respond(exchange, status, body);
+    }
+
+    /**
+     * Answers entity searches by application ID with a GUID of {@code GUID-<id>} and aliased
+     * {@code changeTrackingCreateDeployment} mutations.
+     */
+    private void graphQL(HttpExchange exchange) throws IOException {
+        delay();
+        graphQLRequests.incrementAndGet();
+        JsonObject request;
+        try (InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            request = new JsonParser().parse(reader).getAsJsonObject();
+        }
+        if (takeThrottled()) {
+            respond(exchange, 429, ERROR);
+            return;
+        }
+        if (take(failedGraphQLRequests)) {
+            respond(exchange, graphQLErrorStatus, ERROR);
+            return;
+        }
+        JsonObject variables = request.getAsJsonObject("variables");
+        JsonObject data = new JsonObject();
+        JsonArray errors = new JsonArray();
+        if (request.get("query").getAsString().startsWith("query")) {
+            JsonArray entities = new JsonArray();
+            Matcher id = SEARCH_ID.matcher(variables.get("query").getAsString());
+            while (id.find()) {
+                long applicationId = Long.parseLong(id.group(1));
+                if (applicationId >= 1000000 && applicationId < 1000000 + applications) {
+                    JsonObject entity = new JsonObject();
+                    entity.addProperty("guid", "GUID-" + applicationId);
+                    entity.addProperty("applicationId", applicationId);
+                    entities.add(entity);
+                }
+            }
+            JsonObject results = new JsonObject();
+            results.add("entities", entities);
+            JsonObject search = new JsonObject();
+            search.add("results", results);
+            JsonObject actor = new JsonObject();
+            actor.add("entitySearch", search);
+            data.add("actor", actor);
+        } else {
+            int mutations = variables.entrySet().size();
+            for (int largest = largestMutation.get(); mutations > largest; largest = largestMutation.get()) {
+                largestMutation.compareAndSet(largest, mutations);
+            }
+            for (Map.Entry<String, JsonElement> mutation : variables.entrySet()) {
+                String guid = mutation.getValue().getAsJsonObject().get("entityGuid").getAsString();
+                if (rejected.contains(guid.substring("GUID-".length()))) {
+                    data.add(mutation.getKey(), null);
+                    JsonObject error = new JsonObject();
+                    error.addProperty("message", "stub rejected " + guid);
+                    JsonArray path = new JsonArray();
+                    path.add(new JsonPrimitive(mutation.getKey()));
+                    error.add("path", path);
+                    errors.add(error);
+                    continue;
+                }
+                JsonObject deployment = new JsonObject();
+                deployment.addProperty("deploymentId", "deployment-" + deployments.incrementAndGet());
+                deployment.addProperty("entityGuid", guid);
+                data.add(mutation.getKey(), deployment);
+            }
+        }
+        JsonObject response = new JsonObject();
+        response.add("data", data);
+        if (errors.size() > 0) {
+            response.add("errors", errors);
+        }
+        respond(exchange, 200, response.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean takeThrottled() {
+        return take(throttled);
+    }
+
+    private static boolean take(AtomicInteger counter) {
+        for (;;) {
+            int remaining = counter.get();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (counter.compareAndSet(remaining, remaining - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void delay() {
+        long min = minDelayMillis;
+        long max = maxDelayMillis;
+        sleep(max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min);
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        try {
+            for (int read; (read = in.read(buffer)) >= 0; ) {
+                total += read;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        AtomicInteger count = responses.get(status);
+        if (count == null) {
+            AtomicInteger existing = responses.putIfAbsent(status, count = new AtomicInteger());
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        long drip = dripMillis;
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : drip > 0 ? 0 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (drip > 0) {
+                for (int offset = 0; offset < body.length; offset += DRIP_BYTES) {
+                    out.write(body, offset, Math.min(DRIP_BYTES, body.length - offset));
+                    out.flush();
+                    sleep(drip);
+                }
+            } else {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Applications whose name contains the given text, ignoring case, like the {@code filter[name]} of New Relic.
+     */
+    private byte[] filteredPage(String name) {
+        List<Integer> matches = new ArrayList<>();
+        for (int i = 0; i < applications; i++) {
+            if (("Application " + i).toLowerCase().contains(name.toLowerCase())) {
+                matches.add(i);
+            }
+        }
+        return applicationPage(matches);
+    }
+
+    private static byte[] applicationPage(int first, int last) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = first; i < last; i++) {
+            ids.add(i);
+        }
+        return applicationPage(ids);
+    }
+
+    private static byte[] applicationPage(List<Integer> applications) {
+        StringBuilder sb = new StringBuilder("{\"applications\":[");
+        for (int i : applications) {
+            if (sb.charAt(sb.length() - 1) != '[') {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(1000000 + i)
+                    .append(",\"name\":\"Application ").append(i)
+                    .append("\",\"language\":\"java\",\"health_status\":\"green\",\"reporting\":true")
+                    .append(",\"last_reported_at\":\"2016-01-01T00:00:00+00:00\"")
+                    .append(",\"application_summary\":{\"response_time\":12.5,\"throughput\":100.0,")
+                    .append("\"error_rate\":0.0,\"apdex_target\":0.5,\"apdex_score\":1.0,\"host_count\":2,")
+                    .append("\"instance_count\":4},\"settings\":{\"app_apdex_threshold\":0.5,")
+                    .append("\"end_user_apdex_threshold\":7.0,\"enable_real_user_monitoring\":true,")
+                    .append("\"use_server_side_config\":false},\"links\":{\"application_instances\":[1,2,3,4],")
+                    .append("\"servers\":[5,6],\"application_hosts\":[7,8]}}");
+        }
+        sb.append("],\"links\":{\"application.servers\":\"/v2/servers?ids={server_ids}\"}}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
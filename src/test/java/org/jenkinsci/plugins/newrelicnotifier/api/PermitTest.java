@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PermitTest {
+
+    private static final String ENDPOINT = "https://api.newrelic.com";
+
+    /**
+     * Records the permits it is given and the threads it is called on.
+     */
+    private static final class RecordingCallback implements FutureCallback<Permit> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile Permit permit;
+        private volatile Thread thread;
+
+        @Override
+        public void completed(Permit permit) {
+            this.permit = permit;
+            thread = Thread.currentThread();
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Exception e) {
+            failures.incrementAndGet();
+            thread = Thread.currentThread();
+            done.countDown();
+        }
+
+        @Override
+        public void cancelled() {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void freedSlotIsGrantedOffTheReleasingThread() throws Exception {
+        String apiKey = "permit-handoff";
+        List<RecordingCallback> running = new ArrayList<>();
+        for (int i = 0; i < AdaptiveLimiter.INITIAL_LIMIT; i++) {
+            RecordingCallback callback = new RecordingCallback();
+            Permit.acquire(ENDPOINT, apiKey, 10000, callback);
+            // available right away, so granted on the calling thread
+            assertSame(Thread.currentThread(), callback.thread);
+            running.add(callback);
+        }
+        RecordingCallback waiting = new RecordingCallback();
+        Permit.acquire(ENDPOINT, apiKey, 300, waiting);
+        assertEquals(1, waiting.done.getCount());
+
+        running.get(0).permit.cancel();
+        assertTrue(waiting.done.await(10, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), waiting.thread);
+        // the timeout was cancelled with the grant, it does not fail the call later
+        Thread.sleep(600);
+        assertEquals(0, waiting.failures.get());
+
+        waiting.permit.cancel();
+        for (int i = 1; i < running.size(); i++) {
+            running.get(i).permit.cancel();
+        }
+    }
+
+    @Test
+    public void waitingCallTimesOut() throws Exception {
+        String apiKey = "permit-timeout";
+        List<RecordingCallback> running = new ArrayList<>();
+        for (int i = 0; i < AdaptiveLimiter.INITIAL_LIMIT; i++) {
+            RecordingCallback callback = new RecordingCallback();
+            Permit.acquire(ENDPOINT, apiKey, 10000, callback);
+            running.add(callback);
+        }
+        RecordingCallback waiting = new RecordingCallback();
+        Permit.acquire(ENDPOINT, apiKey, 100, waiting);
+        assertTrue(waiting.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, waiting.failures.get());
+        assertEquals(0, AdaptiveLimiter.forApiKey(apiKey).getQueueDepth());
+
+        for (RecordingCallback callback : running) {
+            callback.permit.cancel();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.ProxyConfiguration;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ProxyRoutingTest {
+
+    @Test
+    public void withoutProxyHostsAreReachedDirectly() {
+        assertNull(ProxyRouting.of(null).proxyFor("api.newrelic.com"));
+        assertNull(ProxyRouting.of(new ProxyConfiguration("", 0)).proxyFor("api.newrelic.com"));
+    }
+
+    @Test
+    public void proxyAddressIsResolvedOnce() {
+        ProxyRouting routing = ProxyRouting.of(new ProxyConfiguration("localhost", 3128));
+
+        HttpHost proxy = routing.proxyFor("api.newrelic.com");
+        assertEquals("localhost", proxy.getHostName());
+        assertEquals(3128, proxy.getPort());
+        assertNotNull(proxy.getAddress());
+        assertSame(proxy, routing.proxyFor("api.eu.newrelic.com"));
+    }
+
+    @Test
+    public void unresolvableProxyIsLeftToTheConnection() {
+        ProxyRouting routing = ProxyRouting.of(new ProxyConfiguration("proxy.invalid", 3128));
+
+        HttpHost proxy = routing.proxyFor("api.newrelic.com");
+        assertEquals("proxy.invalid", proxy.getHostName());
+        assertNull(proxy.getAddress());
+    }
+
+    @Test
+    public void hostsCanBypassTheProxy() throws Exception {
+        ProxyRouting routing = ProxyRouting.of(new ProxyConfiguration("localhost", 3128, null, null,
+                "*.internal\nlocalhost"));
+
+        assertNull(routing.proxyFor("newrelic.internal"));
+        HttpRoute direct = routing.routePlanner().determineRoute(new HttpHost("newrelic.internal", 443, "https"),
+                new HttpPost("/"), HttpClientContext.create());
+        assertNull(direct.getProxyHost());
+
+        HttpRoute proxied = routing.routePlanner().determineRoute(new HttpHost("api.newrelic.com", 443, "https"),
+                new HttpPost("/"), HttpClientContext.create());
+        assertEquals("localhost", proxied.getProxyHost().getHostName());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(5, 100, 1000, Arrays.asList(429, 503), 60000);
+
+    @Test
+    public void backoffIsBoundedByExponentialDelay() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(policy.backoff(1) <= 100);
+            assertTrue(policy.backoff(3) <= 400);
+            assertTrue(policy.backoff(10) <= 1000);
+            assertTrue(policy.backoff(64) >= 0);
+        }
+    }
+
+    @Test
+    public void onlyConfiguredStatusCodesAreRetried() {
+        assertTrue(policy.isRetryable(429));
+        assertTrue(policy.isRetryable(503));
+        assertFalse(policy.isRetryable(400));
+        assertFalse(policy.isRetryable(500));
+    }
+
+    @Test
+    public void serverErrorsAreNotRetriedByDefault() {
+        assertTrue(RetryPolicy.DEFAULT.isRetryable(429));
+        assertFalse(RetryPolicy.DEFAULT.isRetryable(500));
+        assertFalse(RetryPolicy.DEFAULT.isRetryable(502));
+        assertFalse(RetryPolicy.DEFAULT.isRetryable(503));
+        assertFalse(RetryPolicy.DEFAULT.isRetryable(504));
+    }
+
+    @Test
+    public void failuresBeforeSendingAreRetried() {
+        assertTrue(policy.isRetryable(new ConnectException("Connection refused"), false));
+        assertTrue(policy.isRetryable(new ConnectTimeoutException("Connect timed out"), false));
+        assertTrue(policy.isRetryable(new NoHttpResponseException("The target server failed to respond"), false));
+        assertFalse(policy.isRetryable(new UnknownHostException("api.newrelic.com"), false));
+    }
+
+    @Test
+    public void failuresAfterSendingAreNotRetried() {
+        assertFalse(policy.isRetryable(new NoHttpResponseException("The target server failed to respond"), true));
+        assertFalse(policy.isRetryable(new SocketTimeoutException("Read timed out"), true));
+        assertFalse(policy.isRetryable(new SocketException("Connection reset"), true));
+    }
+
+    @Test
+    public void retryAfterInSeconds() {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 429, "Too Many Requests");
+        response.addHeader("Retry-After", "7");
+
+        assertEquals(7000, RetryPolicy.retryAfterMillis(response));
+    }
+
+    @Test
+    public void retryAfterAsDate() {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable");
+        response.addHeader("Retry-After", DateUtils.formatDate(new Date(System.currentTimeMillis() + 30000)));
+
+        long delay = RetryPolicy.retryAfterMillis(response);
+        assertTrue(delay > 20000 && delay <= 30000);
+    }
+
+    @Test
+    public void missingRetryAfter() {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, "");
+
+        assertEquals(-1, RetryPolicy.retryAfterMillis(response));
+    }
+
+    @Test
+    public void parseStatusCodes() {
+        assertEquals(Arrays.asList(429, 500, 503), Arrays.asList(RetryPolicy.parseStatusCodes("503, 429 500,x").toArray()));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimeoutsTest {
+
+    @Test
+    public void missingValuesUseDefaults() {
+        Timeouts timeouts = new Timeouts(0, -1, 0);
+        assertEquals(Timeouts.DEFAULT.getConnectTimeoutMillis(), timeouts.getConnectTimeoutMillis());
+        assertEquals(Timeouts.DEFAULT.getSocketTimeoutMillis(), timeouts.getSocketTimeoutMillis());
+        assertEquals(Timeouts.DEFAULT.getConnectionRequestTimeoutMillis(), timeouts.getConnectionRequestTimeoutMillis());
+    }
+
+    @Test
+    public void overrideOnlyReplacesGivenValues() {
+        Timeouts global = new Timeouts(1000, 2000, 3000);
+        Timeouts timeouts = Timeouts.override(global, 0, 5000, 0);
+        assertEquals(1000, timeouts.getConnectTimeoutMillis());
+        assertEquals(5000, timeouts.getSocketTimeoutMillis());
+        assertEquals(3000, timeouts.getConnectionRequestTimeoutMillis());
+    }
+
+    @Test
+    public void requestConfigHasAllTimeouts() {
+        RequestConfig config = new Timeouts(1000, 2000, 3000).toRequestConfig();
+        assertEquals(1000, config.getConnectTimeout());
+        assertEquals(2000, config.getSocketTimeout());
+        assertEquals(3000, config.getConnectionRequestTimeout());
+    }
+
+    @Test
+    public void timeoutsAreAttributed() {
+        Timeouts timeouts = new Timeouts(1000, 2000, 3000);
+        assertTrue(timeouts.describe(new ConnectionPoolTimeoutException()).contains("connection request timeout"));
+        assertTrue(timeouts.describe(new ConnectTimeoutException()).contains("connect timeout"));
+        assertTrue(timeouts.describe(new SocketTimeoutException()).contains("2000 ms (socket timeout)"));
+        assertNull(timeouts.describe(new IOException("Connection reset")));
+    }
+}